@@ -18,14 +18,16 @@ package beans;
 import java.io.IOException;
 import java.io.Serializable;
 import java.text.MessageFormat;
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.faces.context.FacesContext;
 
-import com.ibm.xsp.application.ApplicationEx;
+import org.openntf.website.repositorybrowser.Constants;
+
 import com.ibm.xsp.designer.context.XSPContext;
 import com.ibm.xsp.extlib.util.ExtLibUtil;
 import com.ibm.xsp.model.DataObject;
@@ -34,6 +36,9 @@ import com.ibm.xsp.model.DataObject;
  * Provides access to translation strings from the "translation" bundle
  * on the classpath.
  * 
+ * <p>Translated strings and compiled message formats are cached per locale for the
+ * whole application, so beans themselves only track the locale in use.</p>
+ * 
  * @author Jesse Gallagher
  * @since 1.1
  */
@@ -41,19 +46,22 @@ public class Translation implements Serializable, DataObject {
 	private static final long serialVersionUID = 1L;
 	
 	public static final String BEAN_NAME = "translation"; //$NON-NLS-1$
+	
+	private static final Map<Locale, Messages> MESSAGES = new ConcurrentHashMap<>();
 
-	private transient ResourceBundle bundle_;
-	private Map<Object, String> cache_ = new HashMap<>();
+	private Locale locale_;
 
 	public static Translation get() {
+		if(FacesContext.getCurrentInstance() == null) {
+			// Background tasks have no request to hold a bean
+			return new Translation();
+		}
 		Translation existing = (Translation)ExtLibUtil.resolveVariable(BEAN_NAME);
 		return existing == null ? new Translation() : existing;
 	}
 	
 	public static String translate(String key, Object... params) {
-		Translation translation = get();
-		String translated = translation.getValue(key);
-		return MessageFormat.format(translated, params);
+		return get().getMessages().format(key, params);
 	}
 
 	@Override
@@ -63,17 +71,7 @@ public class Translation implements Serializable, DataObject {
 
 	@Override
 	public String getValue(Object key) {
-		if(!cache_.containsKey(key)) {
-			try {
-				ResourceBundle bundle = getTranslationBundle();
-				cache_.put(key, bundle.getString(String.valueOf(key)));
-			} catch(IOException ioe) {
-				throw new RuntimeException(ioe);
-			} catch(MissingResourceException mre) {
-				cache_.put(key, "[Untranslated " + key + "]"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-		}
-		return cache_.get(key);
+		return getMessages().getString(String.valueOf(key));
 	}
 
 	@Override
@@ -90,12 +88,79 @@ public class Translation implements Serializable, DataObject {
 	// * Internal utility methods
 	// *******************************************************************************
 
-	private ResourceBundle getTranslationBundle() throws IOException {
-		if(bundle_ == null) {
+	private Messages getMessages() {
+		if(locale_ == null) {
 			FacesContext facesContext = FacesContext.getCurrentInstance();
-			ApplicationEx app = (ApplicationEx)facesContext.getApplication();
-			bundle_ = app.getResourceBundle("translation", XSPContext.getXSPContext(facesContext).getLocale()); //$NON-NLS-1$
+			if(facesContext == null) {
+				// Background tasks have no request locale to use
+				locale_ = Locale.getDefault();
+			} else {
+				locale_ = XSPContext.getXSPContext(facesContext).getLocale();
+			}
+		}
+		// Check first to avoid locking the bin in the common case
+		Messages messages = MESSAGES.get(locale_);
+		return messages != null ? messages : MESSAGES.computeIfAbsent(locale_, Messages::new);
+	}
+	
+	/**
+	 * The translated strings and compiled formats for a single locale, shared by all
+	 * beans and threads.
+	 */
+	private static class Messages {
+		private final Locale locale;
+		private final ResourceBundle bundle;
+		private final Map<String, String> strings = new ConcurrentHashMap<>();
+		private final Map<String, MessageFormat> formats = new ConcurrentHashMap<>();
+		/** Results of formatting messages with no parameters, which never change */
+		private final Map<String, String> formatted = new ConcurrentHashMap<>();
+		
+		public Messages(Locale locale) {
+			this.locale = locale;
+			try {
+				this.bundle = Constants.getApplication().getResourceBundle("translation", locale); //$NON-NLS-1$
+			} catch(IOException ioe) {
+				throw new RuntimeException(ioe);
+			}
+		}
+		
+		public String getString(String key) {
+			String value = strings.get(key);
+			if(value == null) {
+				try {
+					value = bundle.getString(key);
+				} catch(MissingResourceException mre) {
+					value = "[Untranslated " + key + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+				}
+				strings.put(key, value);
+			}
+			return value;
+		}
+		
+		public String format(String key, Object[] params) {
+			if(params == null || params.length == 0) {
+				String value = formatted.get(key);
+				if(value == null) {
+					value = ((MessageFormat)getFormat(key).clone()).format(new Object[0]);
+					formatted.put(key, value);
+				}
+				return value;
+			}
+			// MessageFormat isn't thread-safe, but a clone skips re-parsing the pattern
+			return ((MessageFormat)getFormat(key).clone()).format(params);
+		}
+		
+		/**
+		 * Retrieves the compiled format for the key. The returned object is shared, so
+		 * callers must format with a clone.
+		 */
+		private MessageFormat getFormat(String key) {
+			MessageFormat format = formats.get(key);
+			if(format == null) {
+				format = new MessageFormat(getString(key), locale);
+				formats.put(key, format);
+			}
+			return format;
 		}
-		return bundle_;
 	}
 }
@@ -19,44 +19,157 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.faces.context.FacesContext;
+
 import org.openntf.website.repositorybrowser.fs.FilesystemFactory;
 
+import com.ibm.commons.util.StringUtil;
 import com.ibm.commons.vfs.VFS;
 import com.ibm.xsp.application.ApplicationEx;
 import com.ibm.xsp.extlib.util.ExtLibUtil;
 
 import lotus.domino.NotesException;
+import util.NotesThreads;
 
 public enum Constants {
 	;
 	
 	public static final String REPOSITORY_BASE = "repository"; //$NON-NLS-1$
 	public static final Path REPOSITORY_BASE_DIR;
-	
+	/**
+	 * The Domino server's data directory
+	 * @since 2.1.0
+	 */
+	public static final Path DATA_DIR;
+
 	static {
 		try {
-			String dataDir = ExtLibUtil.getCurrentSession().getEnvironmentString("directory", true); //$NON-NLS-1$
-			REPOSITORY_BASE_DIR = Paths.get(dataDir, "domino", "html", REPOSITORY_BASE); //$NON-NLS-1$ //$NON-NLS-2$
+			String dataDir = NotesThreads.getCurrentSession().getEnvironmentString("directory", true); //$NON-NLS-1$
+			DATA_DIR = Paths.get(dataDir);
+			REPOSITORY_BASE_DIR = DATA_DIR.resolve("domino").resolve("html").resolve(REPOSITORY_BASE); //$NON-NLS-1$ //$NON-NLS-2$
 		} catch(NotesException e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
+	private static volatile ApplicationEx application;
+	/** Filesystems shared within a background task, in lieu of the request scope */
+	private static final ThreadLocal<List<VFS>> TASK_FILESYSTEMS = new ThreadLocal<>();
+	
+	/**
+	 * Retrieves the active application, either from the current request or, on background
+	 * threads, as captured when the application was created.
+	 * 
+	 * @return the current {@link ApplicationEx}, or {@code null} if it is not available
+	 * @since 2.1.0
+	 */
+	public static ApplicationEx getApplication() {
+		FacesContext facesContext = FacesContext.getCurrentInstance();
+		if(facesContext != null) {
+			return (ApplicationEx)facesContext.getApplication();
+		}
+		return application;
+	}
+	
+	static void setApplication(ApplicationEx application) {
+		Constants.application = application;
+	}
+	
+	/**
+	 * Reads an application property, such as one set in xsp.properties.
+	 * 
+	 * @param name the name of the property
+	 * @param defaultValue the value to return when the property is not set
+	 * @return the property value, or {@code defaultValue} if it is not set
+	 * @since 2.1.0
+	 */
+	public static String getProperty(String name, String defaultValue) {
+		ApplicationEx app = getApplication();
+		if(app == null) {
+			return defaultValue;
+		}
+		String value = app.getApplicationProperty(name, defaultValue);
+		return StringUtil.isEmpty(value) ? defaultValue : value.trim();
+	}
+	
+	/**
+	 * Reads an integer-valued application property.
+	 * 
+	 * @param name the name of the property
+	 * @param defaultValue the value to return when the property is not set or is invalid
+	 * @return the property value, or {@code defaultValue} if it is not set
+	 * @since 2.1.0
+	 */
+	public static int getIntProperty(String name, int defaultValue) {
+		String value = getProperty(name, null);
+		if(StringUtil.isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value, 10);
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Retrieves the filesystems provided by all registered {@link FilesystemFactory} services,
+	 * cached for the duration of the current request when there is one.
+	 * 
+	 * @return a {@link Stream} of all available {@link VFS} objects
+	 */
 	@SuppressWarnings("unchecked")
 	public static Stream<VFS> getFilesystems() {
+		if(FacesContext.getCurrentInstance() == null) {
+			// Background tasks have no request to cache in, unless they have asked to share
+			List<VFS> shared = TASK_FILESYSTEMS.get();
+			return (shared == null ? createFilesystems() : shared).stream();
+		}
 		Map<String, Object> requestScope = ExtLibUtil.getRequestScope();
 		String cacheKey = Constants.class.getName() + "_filesystems";
-		return ((List<VFS>)requestScope.computeIfAbsent(cacheKey, (key) -> {
-			ApplicationEx app = ApplicationEx.getInstance();
-			List<FilesystemFactory> factories = (List<FilesystemFactory>)app.findServices(FilesystemFactory.EXTENSION_POINT);
-			return factories.stream()
-				.map(FilesystemFactory::getFilesystems)
-				.flatMap(Function.identity())
-				.collect(Collectors.toList());
-		})).stream();
+		return ((List<VFS>)requestScope.computeIfAbsent(cacheKey, (key) -> createFilesystems())).stream();
+	}
+	
+	/**
+	 * Runs a background task with a single set of filesystems shared by every call to
+	 * {@link #getFilesystems()} within it, as they would be within a request.
+	 * 
+	 * @param task the task to run
+	 * @return the result of {@code task}
+	 * @since 2.1.0
+	 */
+	public static <T> T withSharedFilesystems(Callable<T> task) throws Exception {
+		List<VFS> previous = TASK_FILESYSTEMS.get();
+		TASK_FILESYSTEMS.set(createFilesystems());
+		try {
+			return task.call();
+		} finally {
+			if(previous == null) {
+				TASK_FILESYSTEMS.remove();
+			} else {
+				TASK_FILESYSTEMS.set(previous);
+			}
+		}
+	}
+	
+	/**
+	 * @return the {@link FilesystemFactory} services registered for the application
+	 * @since 2.1.0
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<FilesystemFactory> getFilesystemFactories() {
+		return (List<FilesystemFactory>)getApplication().findServices(FilesystemFactory.EXTENSION_POINT);
+	}
+	
+	private static List<VFS> createFilesystems() {
+		return getFilesystemFactories().stream()
+			.map(FilesystemFactory::getFilesystems)
+			.flatMap(Function.identity())
+			.collect(Collectors.toList());
 	}
 }
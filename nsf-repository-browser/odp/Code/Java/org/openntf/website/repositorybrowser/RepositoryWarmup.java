@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.openntf.website.repositorybrowser.fs.FilesystemFactory;
+import org.openntf.website.repositorybrowser.fs.usnsf.ScratchSpace;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.domino.xsp.module.nsf.NotesContext;
+import com.ibm.xsp.application.ApplicationEx;
+import com.ibm.xsp.application.events.ApplicationListener2;
+
+import util.NotesThreads;
+
+/**
+ * Builds all repository metadata in the background when the application starts, so
+ * that the first client request does not pay for opening and indexing every source.
+ *
+ * <p>Progress and an overall ready state are exposed for use by status checks.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class RepositoryWarmup implements ApplicationListener2 {
+	private static final Logger log = Logger.getLogger(RepositoryWarmup.class.getPackage().getName());
+
+	public enum State {
+		NOT_STARTED, RUNNING, READY, FAILED
+	}
+
+	private static volatile State state = State.NOT_STARTED;
+	private static volatile String currentStep = StringUtil.EMPTY_STRING;
+	private static volatile String error;
+	private static volatile long started;
+	private static volatile long finished;
+	private static final AtomicInteger totalSteps = new AtomicInteger();
+	private static final AtomicInteger completedSteps = new AtomicInteger();
+	private static final AtomicInteger filesystemCount = new AtomicInteger();
+
+	private static ExecutorService executor;
+
+	@Override
+	public void applicationCreated(ApplicationEx application) {
+		Constants.setApplication(application);
+		start();
+	}
+
+	@Override
+	public void applicationRefreshed(ApplicationEx application) {
+		Constants.setApplication(application);
+		start();
+	}
+
+	@Override
+	public void applicationDestroyed(ApplicationEx application) {
+		synchronized(RepositoryWarmup.class) {
+			if(executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+		StaticExport.shutdown();
+		ScratchSpace.INSTANCE.shutdown();
+	}
+
+	/**
+	 * Starts a warm-up in the background if one is not already running.
+	 *
+	 * <p>This must be called on a thread with an XPages context, such as during
+	 * application creation or a request.</p>
+	 *
+	 * @return {@code true} if a new warm-up was started; {@code false} otherwise
+	 */
+	public static synchronized boolean start() {
+		if(state == State.RUNNING) {
+			return false;
+		}
+		if(NotesContext.getCurrentUnchecked() == null) {
+			// Then there's no context to clone for the background task - a status check will try again
+			return false;
+		}
+
+		state = State.RUNNING;
+		started = System.currentTimeMillis();
+		finished = 0;
+		error = null;
+		totalSteps.set(0);
+		completedSteps.set(0);
+		filesystemCount.set(0);
+
+		if(executor == null) {
+			executor = NotesThreads.newFixedPool(RepositoryWarmup.class.getSimpleName(), 1);
+		}
+		executor.submit(NotesThreads.withSession(session -> {
+			try {
+				warm();
+				state = State.READY;
+				// Publish the freshly-warmed tree if a static export is configured
+				StaticExport.start();
+			} catch(Throwable t) {
+				if(log.isLoggable(Level.SEVERE)) {
+					log.log(Level.SEVERE, "Encountered exception warming repository metadata", t);
+				}
+				error = t.toString();
+				state = State.FAILED;
+			} finally {
+				finished = System.currentTimeMillis();
+				currentStep = StringUtil.EMPTY_STRING;
+			}
+			return null;
+		}));
+		return true;
+	}
+
+	public static State getState() {
+		return state;
+	}
+
+	public static boolean isReady() {
+		return state == State.READY;
+	}
+
+	public static String getCurrentStep() {
+		return currentStep;
+	}
+
+	public static String getError() {
+		return error;
+	}
+
+	public static long getStarted() {
+		return started;
+	}
+
+	public static long getFinished() {
+		return finished;
+	}
+
+	public static int getTotalSteps() {
+		return totalSteps.get();
+	}
+
+	public static int getCompletedSteps() {
+		return completedSteps.get();
+	}
+
+	public static int getFilesystemCount() {
+		return filesystemCount.get();
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static void warm() throws Exception {
+		List<FilesystemFactory> factories = Constants.getFilesystemFactories();
+		// One step per factory, plus a final step to read each filesystem's root
+		totalSteps.set(factories.size() + 1);
+
+		// Creating the filesystems opens and indexes each source
+		List<VFS> filesystems = factories.stream()
+			.flatMap(factory -> {
+				currentStep = factory.getClass().getName();
+				try {
+					return factory.getFilesystems().collect(Collectors.toList()).stream();
+				} finally {
+					completedSteps.incrementAndGet();
+				}
+			})
+			.collect(Collectors.toList());
+		filesystemCount.set(filesystems.size());
+
+		// Listing each root triggers generation of any virtual metadata files, such as
+		//   the composite repository
+		currentStep = "Reading filesystem roots"; //$NON-NLS-1$
+		for(VFS vfs : filesystems) {
+			vfs.getRoot().findResources();
+		}
+		completedSteps.incrementAndGet();
+
+		if(log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Warmed {0} repository filesystems in {1}ms", filesystems.size(), System.currentTimeMillis() - started));
+		}
+	}
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.openntf.website.repositorybrowser.fs.composite.RepositorySnapshots;
+import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+import com.ibm.commons.vfs.VFSFolder;
+import com.ibm.commons.vfs.VFSResource;
+import com.ibm.domino.xsp.module.nsf.NotesContext;
+
+import util.BufferPool;
+import util.NotesThreads;
+
+/**
+ * Exports the combined repository tree, as served by the application, to a directory
+ * so that it can be served by a plain web server or CDN origin.
+ *
+ * <p>Each export is written to a new directory under "snapshots". Files whose size and
+ * modification time match the previous export are hard-linked from it rather than
+ * written again, falling back to a copy where links are not supported. Once complete,
+ * the "current" symbolic link is atomically replaced to point at the new export. Where
+ * symbolic links cannot be created, "current" is instead a directory that is swapped
+ * by two renames.</p>
+ *
+ * <p>An export runs after each warm-up and, when an interval is configured, periodically
+ * after that.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class StaticExport {
+	private static final Logger log = Logger.getLogger(StaticExport.class.getPackage().getName());
+
+	/** The directory to export to; exports are disabled when this is not set */
+	public static final String PROP_DIR = "repositorybrowser.export.dir"; //$NON-NLS-1$
+	/** The time, in milliseconds, between periodic exports, or 0 to only export after warm-up */
+	public static final String PROP_INTERVAL = "repositorybrowser.export.interval"; //$NON-NLS-1$
+	/** The number of completed exports to keep, including the current one */
+	public static final String PROP_KEEP = "repositorybrowser.export.keep"; //$NON-NLS-1$
+
+	private static final int DEFAULT_INTERVAL = 0;
+	private static final int DEFAULT_KEEP = 2;
+
+	private static final String DIR_SNAPSHOTS = "snapshots"; //$NON-NLS-1$
+	private static final String CURRENT = "current"; //$NON-NLS-1$
+
+	public enum State {
+		NOT_STARTED, RUNNING, COMPLETE, FAILED
+	}
+
+	private static volatile State state = State.NOT_STARTED;
+	private static volatile String error;
+	private static volatile long started;
+	private static volatile long finished;
+	private static volatile Map<String, Object> lastResult;
+
+	private static ExecutorService executor;
+	private static boolean scheduled;
+
+	private StaticExport() {
+	}
+
+	/**
+	 * @return whether an export directory has been configured
+	 */
+	public static boolean isEnabled() {
+		return StringUtil.isNotEmpty(Constants.getProperty(PROP_DIR, null));
+	}
+
+	/**
+	 * Starts an export in the background if one is configured and not already running,
+	 * and schedules periodic exports if an interval is configured.
+	 *
+	 * <p>This must be called on a thread with an XPages context, such as during a request,
+	 * or from within a task created by {@link NotesThreads#withSession}.</p>
+	 *
+	 * @return {@code true} if a new export was started; {@code false} otherwise
+	 */
+	public static synchronized boolean start() {
+		if(!isEnabled() || NotesContext.getCurrentUnchecked() == null) {
+			return false;
+		}
+		if(executor == null) {
+			// One thread for on-demand exports and one for the periodic schedule
+			executor = NotesThreads.newFixedPool(StaticExport.class.getSimpleName(), 2);
+		}
+
+		long interval = Constants.getIntProperty(PROP_INTERVAL, DEFAULT_INTERVAL);
+		if(interval > 0 && !scheduled) {
+			scheduled = true;
+			executor.submit(NotesThreads.withSession(session -> {
+				try {
+					while(!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(interval);
+						if(begin()) {
+							run();
+						}
+					}
+				} catch(InterruptedException e) {
+					// Then the application is shutting down
+				} finally {
+					synchronized(StaticExport.class) {
+						scheduled = false;
+					}
+				}
+				return null;
+			}));
+		}
+
+		if(!begin()) {
+			return false;
+		}
+		executor.submit(NotesThreads.withSession(session -> {
+			run();
+			return null;
+		}));
+		return true;
+	}
+
+	/**
+	 * Stops any running or scheduled export.
+	 */
+	public static synchronized void shutdown() {
+		if(executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	public static State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the export status as a map, suitable for JSON serialization
+	 */
+	public static Map<String, Object> toMap() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("enabled", isEnabled()); //$NON-NLS-1$
+		result.put("state", state.name()); //$NON-NLS-1$
+		result.put("started", started); //$NON-NLS-1$
+		result.put("finished", finished); //$NON-NLS-1$
+		result.put("error", error); //$NON-NLS-1$
+		result.put("last", lastResult); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static synchronized boolean begin() {
+		if(state == State.RUNNING) {
+			return false;
+		}
+		state = State.RUNNING;
+		started = System.currentTimeMillis();
+		finished = 0;
+		error = null;
+		return true;
+	}
+
+	private static void run() {
+		try {
+			Path base = Paths.get(Constants.getProperty(PROP_DIR, null));
+			// The export is swapped in as a whole, so it lists the children directly
+			lastResult = Constants.withSharedFilesystems(() -> RepositorySnapshots.withoutPinning(() -> new Export(base).export()));
+			state = State.COMPLETE;
+		} catch(Throwable t) {
+			if(log.isLoggable(Level.SEVERE)) {
+				log.log(Level.SEVERE, "Encountered exception exporting the repository", t);
+			}
+			error = t.toString();
+			state = State.FAILED;
+		} finally {
+			finished = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A single run of the export.
+	 */
+	private static class Export {
+		private final Path base;
+		private final Path snapshots;
+		private final Path current;
+		private Path previous;
+		private Path target;
+		private int written;
+		private int linked;
+		private int copied;
+		private long bytesWritten;
+		private long bytesReused;
+
+		public Export(Path base) {
+			this.base = base;
+			this.snapshots = base.resolve(DIR_SNAPSHOTS);
+			this.current = base.resolve(CURRENT);
+		}
+
+		public Map<String, Object> export() throws IOException, VFSException {
+			long start = System.currentTimeMillis();
+			Files.createDirectories(snapshots);
+			previous = Files.isDirectory(current) ? current.toRealPath() : null;
+			target = snapshots.resolve(Long.toString(start));
+			Files.createDirectory(target);
+
+			boolean published = false;
+			try {
+				List<VFS> filesystems = new ArrayList<>();
+				Constants.getFilesystems().forEach(filesystems::add);
+				for(VFS vfs : filesystems) {
+					exportFolder(vfs.getRoot());
+				}
+				publish();
+				published = true;
+			} finally {
+				if(!published) {
+					delete(target);
+				}
+			}
+			prune();
+
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("snapshot", target.getFileName().toString()); //$NON-NLS-1$
+			result.put("written", written); //$NON-NLS-1$
+			result.put("linked", linked); //$NON-NLS-1$
+			result.put("copied", copied); //$NON-NLS-1$
+			result.put("bytesWritten", bytesWritten); //$NON-NLS-1$
+			result.put("bytesReused", bytesReused); //$NON-NLS-1$
+			result.put("took", System.currentTimeMillis() - start); //$NON-NLS-1$
+
+			if(log.isLoggable(Level.INFO)) {
+				log.info(StringUtil.format("Exported repository to {0}: {1} files written, {2} linked, {3} copied", target, written, linked, copied));
+			}
+			return result;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void exportFolder(VFSFolder folder) throws IOException, VFSException {
+			for(VFSResource resource : (List<VFSResource>)folder.findResources()) {
+				if(resource.isDirectory()) {
+					Files.createDirectories(resolve(target, resource));
+					exportFolder((VFSFolder)resource);
+				} else if(resource.isFile()) {
+					exportFile((VFSFile)resource);
+				}
+			}
+		}
+
+		private void exportFile(VFSFile file) throws IOException, VFSException {
+			Path dest = resolve(target, file);
+			if(Files.exists(dest)) {
+				// Filesystems are layered in order, so the first to provide a path wins
+				return;
+			}
+			Files.createDirectories(dest.getParent());
+			long size = file.getSize();
+			long lastModified = file.getLastModificationDate();
+
+			Path prior = previous == null ? null : resolve(previous, file);
+			if(prior != null && lastModified > 0 && isUnchanged(prior, size, lastModified)) {
+				try {
+					Files.createLink(dest, prior);
+					linked++;
+				} catch(IOException | UnsupportedOperationException e) {
+					Files.copy(prior, dest, StandardCopyOption.COPY_ATTRIBUTES);
+					copied++;
+				}
+				bytesReused += size;
+				return;
+			}
+
+			try(OutputStream os = Files.newOutputStream(dest)) {
+				if(file instanceof XMLDocumentVFSFile) {
+					((XMLDocumentVFSFile)file).getContent().writeTo(os);
+				} else {
+					File systemFile = file.getSystemFile();
+					if(systemFile != null && systemFile.isFile()) {
+						BufferPool.copy(systemFile.toPath(), os);
+					} else {
+						try(InputStream is = file.getInputStream()) {
+							BufferPool.copy(is, os);
+						}
+					}
+				}
+			}
+			if(lastModified > 0) {
+				Files.setLastModifiedTime(dest, FileTime.fromMillis(lastModified));
+			}
+			written++;
+			bytesWritten += Files.size(dest);
+		}
+
+		/**
+		 * Points "current" at the new export.
+		 */
+		private void publish() throws IOException {
+			Path link = base.resolve(CURRENT + ".tmp"); //$NON-NLS-1$
+			Files.deleteIfExists(link);
+			boolean symlink = !Files.exists(current) || Files.isSymbolicLink(current);
+			if(symlink) {
+				try {
+					Files.createSymbolicLink(link, base.relativize(target));
+				} catch(IOException | UnsupportedOperationException e) {
+					if(log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "Unable to create a symbolic link; exporting to a directory instead", e);
+					}
+					symlink = false;
+				}
+			}
+
+			if(symlink) {
+				// Renaming over a link replaces it in one step
+				Files.move(link, current, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Path old = base.resolve(CURRENT + ".old"); //$NON-NLS-1$
+				delete(old);
+				if(Files.exists(current)) {
+					Files.move(current, old, StandardCopyOption.ATOMIC_MOVE);
+				}
+				Files.move(target, current, StandardCopyOption.ATOMIC_MOVE);
+				target = current;
+				delete(old);
+			}
+		}
+
+		/**
+		 * Deletes all but the most recent exports, always keeping the one that is current.
+		 */
+		private void prune() throws IOException {
+			int keep = Math.max(1, Constants.getIntProperty(PROP_KEEP, DEFAULT_KEEP));
+			Path live = Files.isSymbolicLink(current) ? current.toRealPath() : null;
+			List<Path> exports = new ArrayList<>();
+			try(DirectoryStream<Path> dirs = Files.newDirectoryStream(snapshots)) {
+				dirs.forEach(exports::add);
+			}
+			exports.sort(Comparator.comparing((Path p) -> p.getFileName().toString()).reversed());
+			for(int i = keep; i < exports.size(); i++) {
+				Path export = exports.get(i);
+				if(live == null || !export.toRealPath().equals(live)) {
+					delete(export);
+				}
+			}
+		}
+
+		private static boolean isUnchanged(Path prior, long size, long lastModified) throws IOException {
+			if(!Files.isRegularFile(prior) || Files.size(prior) != size) {
+				return false;
+			}
+			// Some filesystems only store times to the second
+			return Files.getLastModifiedTime(prior).toMillis() / 1000 == lastModified / 1000;
+		}
+
+		/**
+		 * Resolves the path of a resource within an export directory, refusing any that
+		 * would fall outside of it.
+		 */
+		private static Path resolve(Path dir, VFSResource resource) throws IOException {
+			String path = resource.getPath();
+			while(path.startsWith("/")) { //$NON-NLS-1$
+				path = path.substring(1);
+			}
+			Path result = dir.resolve(path).normalize();
+			if(!result.startsWith(dir)) {
+				throw new IOException("Refusing to export outside of the export directory: " + resource.getPath());
+			}
+			return result;
+		}
+
+		private static void delete(Path path) throws IOException {
+			if(!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+				return;
+			}
+			try(Stream<Path> walk = Files.walk(path)) {
+				// Children sort after their parents, so delete in reverse
+				for(Path p : (Iterable<Path>)walk.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(p);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openntf.website.repositorybrowser.fs.usnsf.CatalogMemoryReport;
+
+import com.ibm.commons.util.io.json.JsonException;
+
+/**
+ * Renders an estimate of the heap saved by the compact Update Site NSF catalogs as JSON.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class CatalogReportFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public void render() throws IOException, JsonException {
+		JsonResponses.send(FacesContext.getCurrentInstance(), HttpServletResponse.SC_OK, CatalogMemoryReport.create().toMap());
+	}
+}
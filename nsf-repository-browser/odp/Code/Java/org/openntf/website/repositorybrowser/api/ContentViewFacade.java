@@ -18,6 +18,7 @@ package org.openntf.website.repositorybrowser.api;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URLEncoder;
 import java.nio.file.Files;
@@ -41,9 +42,9 @@ import javax.servlet.http.HttpServletResponse;
 import org.openntf.website.repositorybrowser.Constants;
 import org.openntf.website.repositorybrowser.fs.MimeTypeProvider;
 import org.openntf.website.repositorybrowser.fs.VFSResourceComparator;
+import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
 
 import com.ibm.commons.util.StringUtil;
-import com.ibm.commons.util.io.StreamUtil;
 import com.ibm.commons.vfs.VFS;
 import com.ibm.commons.vfs.VFSException;
 import com.ibm.commons.vfs.VFSFile;
@@ -55,6 +56,8 @@ import com.ibm.xsp.designer.context.XSPContext;
 import com.ibm.xsp.extlib.util.ExtLibUtil;
 import com.ibm.xsp.webapp.XspHttpServletResponse;
 
+import util.BufferPool;
+
 public class ContentViewFacade implements Serializable {
 	private static final long serialVersionUID = 1L;
 
@@ -163,9 +166,7 @@ public class ContentViewFacade implements Serializable {
 				res.setContentType(mimeType);
 				
 				if(!isHead) {
-					try(InputStream is = vfsFile.getInputStream()) {
-						StreamUtil.copyStream(is, os);
-					}
+					copyFile(vfsFile, os);
 				}
 			}
 		} finally {
@@ -344,8 +345,26 @@ public class ContentViewFacade implements Serializable {
 		entry.setTime(file.getLastModificationDate());
 		os.putNextEntry(entry);
 		
-		try(InputStream is = file.getInputStream()) {
-			StreamUtil.copyStream(is, os);
+		copyFile(file, os);
+	}
+	
+	/**
+	 * Writes the file's contents to the stream, reading directly from disk when the file
+	 * is backed by one.
+	 */
+	private static void copyFile(VFSFile file, OutputStream os) throws IOException, VFSException {
+		if(file instanceof XMLDocumentVFSFile) {
+			// Already serialized, so it can be written straight from its buffer
+			((XMLDocumentVFSFile)file).getContent().writeTo(os);
+			return;
+		}
+		File systemFile = file.getSystemFile();
+		if(systemFile != null && systemFile.isFile()) {
+			BufferPool.copy(systemFile.toPath(), os);
+		} else {
+			try(InputStream is = file.getInputStream()) {
+				BufferPool.copy(is, os);
+			}
 		}
 	}
 }
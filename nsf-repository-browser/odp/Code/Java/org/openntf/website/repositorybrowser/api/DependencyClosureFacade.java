@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openntf.website.repositorybrowser.fs.VersionRange;
+import org.openntf.website.repositorybrowser.fs.usnsf.DependencyGraph;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.util.io.json.JsonException;
+
+/**
+ * Renders the install closure of a feature or bundle as JSON.
+ *
+ * <p>Supported query parameters are {@code id}, the feature or bundle ID; {@code type},
+ * {@code plugin} (the default) or {@code feature}; and {@code version}, an OSGi version
+ * range limiting the root.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class DependencyClosureFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public void render() throws IOException, JsonException {
+		FacesContext facesContext = FacesContext.getCurrentInstance();
+		@SuppressWarnings("unchecked")
+		Map<String, String> param = facesContext.getExternalContext().getRequestParameterMap();
+
+		String id = StringUtil.toString(param.get("id")).trim(); //$NON-NLS-1$
+		if(StringUtil.isEmpty(id)) {
+			sendError(facesContext, HttpServletResponse.SC_BAD_REQUEST, "The \"id\" parameter is required"); //$NON-NLS-1$
+			return;
+		}
+
+		String type = StringUtil.isEmpty(param.get("type")) ? DependencyGraph.TYPE_PLUGIN : param.get("type"); //$NON-NLS-1$ //$NON-NLS-2$
+		if(!DependencyGraph.TYPE_PLUGIN.equals(type) && !DependencyGraph.TYPE_FEATURE.equals(type)) {
+			sendError(facesContext, HttpServletResponse.SC_BAD_REQUEST, "Unknown type: " + type); //$NON-NLS-1$
+			return;
+		}
+
+		VersionRange range;
+		try {
+			range = VersionRange.parse(param.get("version")); //$NON-NLS-1$
+		} catch(IllegalArgumentException e) {
+			sendError(facesContext, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		DependencyGraph.Closure closure = DependencyGraph.INSTANCE.closure(type, id, range);
+		long took = System.currentTimeMillis() - start;
+		if(closure == null) {
+			sendError(facesContext, HttpServletResponse.SC_NOT_FOUND, StringUtil.format("No {0} {1} matches version {2}", type, id, range)); //$NON-NLS-1$
+			return;
+		}
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("took", took); //$NON-NLS-1$
+		result.putAll(closure.toMap());
+		JsonResponses.send(facesContext, HttpServletResponse.SC_OK, result);
+	}
+
+	private static void sendError(FacesContext facesContext, int status, String message) throws IOException, JsonException {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("error", message); //$NON-NLS-1$
+		JsonResponses.send(facesContext, status, result);
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openntf.website.repositorybrowser.StaticExport;
+
+import com.ibm.commons.util.io.json.JsonException;
+
+/**
+ * Starts a static export of the repository, if one is not already running, and renders
+ * its status as JSON.
+ *
+ * <p>Only editors of this database may start an export, and only with a POST. Responds
+ * with HTTP 202 when a new export was started, 200 when one was already running, 403 for
+ * other users, 405 for other methods and 404 when no export directory is configured.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class ExportFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public void render() throws IOException, JsonException {
+		FacesContext facesContext = FacesContext.getCurrentInstance();
+		HttpServletRequest req = (HttpServletRequest)facesContext.getExternalContext().getRequest();
+		if(!SourcesFacade.isEditor()) {
+			JsonResponses.send(facesContext, HttpServletResponse.SC_FORBIDDEN, Collections.singletonMap("error", "Only editors of this database may start an export")); //$NON-NLS-1$
+			return;
+		}
+		if(!"POST".equals(req.getMethod())) { //$NON-NLS-1$
+			HttpServletResponse res = (HttpServletResponse)facesContext.getExternalContext().getResponse();
+			res.setHeader("Allow", "POST"); //$NON-NLS-1$ //$NON-NLS-2$
+			JsonResponses.send(facesContext, HttpServletResponse.SC_METHOD_NOT_ALLOWED, Collections.singletonMap("error", "Exports must be started with a POST request")); //$NON-NLS-1$
+			return;
+		}
+
+		int status;
+		if(!StaticExport.isEnabled()) {
+			status = HttpServletResponse.SC_NOT_FOUND;
+		} else if(StaticExport.start()) {
+			status = HttpServletResponse.SC_ACCEPTED;
+		} else {
+			status = HttpServletResponse.SC_OK;
+		}
+		Map<String, Object> result = StaticExport.toMap();
+		JsonResponses.send(facesContext, status, result);
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import com.ibm.commons.util.io.json.JsonException;
+import com.ibm.commons.util.io.json.JsonGenerator;
+import com.ibm.commons.util.io.json.JsonJavaFactory;
+
+/**
+ * Utility methods for writing JSON responses from XPages.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+enum JsonResponses {
+	;
+
+	/**
+	 * Writes the provided object as the JSON body of the response and marks the
+	 * response as complete.
+	 *
+	 * @param facesContext the active {@link FacesContext}
+	 * @param status the HTTP status code to send
+	 * @param body the object to serialize, made up of {@link java.util.Map}s, {@link java.util.List}s
+	 *        and primitive values
+	 */
+	public static void send(FacesContext facesContext, int status, Object body) throws IOException, JsonException {
+		HttpServletResponse res = (HttpServletResponse)facesContext.getExternalContext().getResponse();
+		try {
+			byte[] json = JsonGenerator.toJson(JsonJavaFactory.instanceEx, body, false).getBytes(StandardCharsets.UTF_8);
+
+			res.setStatus(status);
+			res.setContentType("application/json"); //$NON-NLS-1$
+			res.setCharacterEncoding("UTF-8"); //$NON-NLS-1$
+			res.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+			res.setContentLength(json.length);
+			try(ServletOutputStream os = res.getOutputStream()) {
+				os.write(json);
+			}
+		} finally {
+			facesContext.responseComplete();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openntf.website.repositorybrowser.fs.VersionRange;
+import org.openntf.website.repositorybrowser.fs.usnsf.BundleSearchIndex;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.util.io.json.JsonException;
+
+/**
+ * Searches the plugins and features of all repositories and renders the matches as JSON.
+ *
+ * <p>Supported query parameters are {@code q}, the term to search for; {@code field},
+ * one of {@code id}, {@code export}, {@code import}, {@code provider} or {@code any};
+ * {@code prefix}, {@code false} to require an exact match; {@code type}, {@code plugin}
+ * or {@code feature}; {@code version}, an OSGi version range; and {@code limit}.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class SearchFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_LIMIT = 100;
+	private static final int MAX_LIMIT = 1000;
+
+	public void render() throws IOException, JsonException {
+		FacesContext facesContext = FacesContext.getCurrentInstance();
+		@SuppressWarnings("unchecked")
+		Map<String, String> param = facesContext.getExternalContext().getRequestParameterMap();
+
+		String term = StringUtil.toString(param.get("q")).trim(); //$NON-NLS-1$
+		if(StringUtil.isEmpty(term)) {
+			sendError(facesContext, "The \"q\" parameter is required"); //$NON-NLS-1$
+			return;
+		}
+
+		BundleSearchIndex.Field field = null;
+		String fieldParam = param.get("field"); //$NON-NLS-1$
+		if(StringUtil.isNotEmpty(fieldParam) && !"any".equals(fieldParam)) { //$NON-NLS-1$
+			try {
+				field = BundleSearchIndex.Field.valueOf(fieldParam.toUpperCase(Locale.ENGLISH));
+			} catch(IllegalArgumentException e) {
+				sendError(facesContext, "Unknown field: " + fieldParam); //$NON-NLS-1$
+				return;
+			}
+		}
+
+		VersionRange range;
+		try {
+			range = VersionRange.parse(param.get("version")); //$NON-NLS-1$
+		} catch(IllegalArgumentException e) {
+			sendError(facesContext, e.getMessage());
+			return;
+		}
+
+		boolean prefix = !"false".equals(param.get("prefix")); //$NON-NLS-1$ //$NON-NLS-2$
+		String type = StringUtil.isEmpty(param.get("type")) ? null : param.get("type"); //$NON-NLS-1$ //$NON-NLS-2$
+		int limit = DEFAULT_LIMIT;
+		try {
+			if(StringUtil.isNotEmpty(param.get("limit"))) { //$NON-NLS-1$
+				limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(param.get("limit")))); //$NON-NLS-1$
+			}
+		} catch(NumberFormatException e) {
+			sendError(facesContext, "Invalid limit: " + param.get("limit")); //$NON-NLS-1$ //$NON-NLS-2$
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		List<BundleSearchIndex.Hit> hits = BundleSearchIndex.INSTANCE.search(term, field, prefix, type, range);
+		long took = System.currentTimeMillis() - start;
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("q", term); //$NON-NLS-1$
+		result.put("field", field == null ? "any" : field.name().toLowerCase(Locale.ENGLISH)); //$NON-NLS-1$ //$NON-NLS-2$
+		result.put("version", range.toString()); //$NON-NLS-1$
+		result.put("took", took); //$NON-NLS-1$
+		result.put("total", hits.size()); //$NON-NLS-1$
+		result.put("results", hits.stream().limit(limit).map(BundleSearchIndex.Hit::toMap).collect(Collectors.toList())); //$NON-NLS-1$
+		JsonResponses.send(facesContext, HttpServletResponse.SC_OK, result);
+	}
+
+	private static void sendError(FacesContext facesContext, String message) throws IOException, JsonException {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("error", message); //$NON-NLS-1$
+		JsonResponses.send(facesContext, HttpServletResponse.SC_BAD_REQUEST, result);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.openntf.website.repositorybrowser.fs.usnsf.SiteCircuitBreaker;
+
+import lotus.domino.ACL;
+import lotus.domino.NotesException;
+import util.NotesThreads;
+
+/**
+ * Backs the sources.xsp admin page, which lists the circuit breaker state of each
+ * Update Site NSF and allows editors of this database to reset a breaker.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class SourcesFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @return whether the current user has at least Editor access to this database
+	 */
+	public boolean isAdmin() {
+		return isEditor();
+	}
+
+	/**
+	 * @return whether the current user has at least Editor access to this database
+	 */
+	static boolean isEditor() {
+		try {
+			String userName = NotesThreads.getCurrentSession().getEffectiveUserName();
+			return NotesThreads.getCurrentDatabase().queryAccess(userName) >= ACL.LEVEL_EDITOR;
+		} catch(NotesException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the state of each Update Site NSF's breaker, with times as {@link Date}s
+	 *         for display
+	 */
+	public List<Map<String, Object>> getEntries() {
+		List<Map<String, Object>> result = SiteCircuitBreaker.toList();
+		for(Map<String, Object> entry : result) {
+			for(String key : new String[] { "retryAt", "lastSuccess", "lastFailure" }) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				long time = (Long)entry.get(key);
+				entry.put(key, time == 0 ? null : new Date(time));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Closes the breaker for the given Update Site NSF, so that the next request tries it
+	 * again.
+	 *
+	 * @param path the database path, in "server!!path" form
+	 */
+	public void reset(String path) {
+		if(!isAdmin()) {
+			throw new IllegalStateException("Only editors of this database may reset circuit breakers");
+		}
+		SiteCircuitBreaker.reset(path);
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.faces.context.FacesContext;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openntf.website.repositorybrowser.RepositoryWarmup;
+import org.openntf.website.repositorybrowser.StaticExport;
+import org.openntf.website.repositorybrowser.fs.composite.RepositorySnapshots;
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
+import org.openntf.website.repositorybrowser.fs.usnsf.ScratchSpace;
+import org.openntf.website.repositorybrowser.fs.usnsf.SiteCircuitBreaker;
+
+import com.ibm.commons.util.io.json.JsonException;
+
+import util.BufferPool;
+
+/**
+ * Renders the application's warm-up state as JSON, responding with HTTP 200 once all
+ * repository metadata is ready and 503 before then, for use by load balancer checks.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class StatusFacade implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** The time to wait after a failed warm-up before a status check retries it */
+	private static final long RETRY_INTERVAL = 60 * 1000;
+
+	public void render() throws IOException, JsonException {
+		switch(RepositoryWarmup.getState()) {
+		case NOT_STARTED:
+			RepositoryWarmup.start();
+			break;
+		case FAILED:
+			if(System.currentTimeMillis() - RepositoryWarmup.getFinished() > RETRY_INTERVAL) {
+				RepositoryWarmup.start();
+			}
+			break;
+		default:
+			break;
+		}
+
+		boolean ready = RepositoryWarmup.isReady();
+
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("ready", ready); //$NON-NLS-1$
+		status.put("state", RepositoryWarmup.getState().name()); //$NON-NLS-1$
+		status.put("currentStep", RepositoryWarmup.getCurrentStep()); //$NON-NLS-1$
+		status.put("completedSteps", RepositoryWarmup.getCompletedSteps()); //$NON-NLS-1$
+		status.put("totalSteps", RepositoryWarmup.getTotalSteps()); //$NON-NLS-1$
+		status.put("filesystems", RepositoryWarmup.getFilesystemCount()); //$NON-NLS-1$
+		status.put("started", RepositoryWarmup.getStarted()); //$NON-NLS-1$
+		status.put("finished", RepositoryWarmup.getFinished()); //$NON-NLS-1$
+		status.put("error", RepositoryWarmup.getError()); //$NON-NLS-1$
+		status.put("scratch", ScratchSpace.INSTANCE.toMap()); //$NON-NLS-1$
+		status.put("buffers", BufferPool.INSTANCE.toMap()); //$NON-NLS-1$
+		status.put("metadataStorage", OffHeapContent.getStats()); //$NON-NLS-1$
+		status.put("export", StaticExport.toMap()); //$NON-NLS-1$
+		status.put("snapshots", RepositorySnapshots.toMap()); //$NON-NLS-1$
+		// Only counts, since this page is open to anonymous health checks - the detail is on sources.xsp
+		status.put("sources", SiteCircuitBreaker.getCounts()); //$NON-NLS-1$
+
+		JsonResponses.send(FacesContext.getCurrentInstance(), ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE, status);
+	}
+}
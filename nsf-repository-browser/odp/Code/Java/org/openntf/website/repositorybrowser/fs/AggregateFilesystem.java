@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs;
+
+/**
+ * A marker interface for VFS classes whose repositories are built from the contents of
+ * other filesystems, and so should not themselves be included in the composite root.
+ * 
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public interface AggregateFilesystem {
+}
@@ -16,29 +16,235 @@
 package org.openntf.website.repositorybrowser.fs;
 
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 import org.openntf.website.repositorybrowser.Constants;
 
+import com.ibm.commons.util.StringUtil;
 import com.ibm.commons.vfs.VFS;
 import com.ibm.commons.vfs.VFSException;
 import com.ibm.commons.vfs.filesystem.FileVFS;
 
+import util.NotesThreads;
+
 public class LocalFilesystemFactory implements FilesystemFactory {
+	private static final Logger log = Logger.getLogger(LocalFilesystemFactory.class.getPackage().getName());
+	
+	/** Additional local repository directories, as comma-separated "name=path" pairs */
+	public static final String PROP_ROOTS = "repositorybrowser.local.roots"; //$NON-NLS-1$
+	/** The number of threads used to scan local repository directories in parallel */
+	public static final String PROP_SCAN_THREADS = "repositorybrowser.local.scanThreads"; //$NON-NLS-1$
+	/** The time, in milliseconds, to wait for a scan of the local repository directories */
+	public static final String PROP_SCAN_TIMEOUT = "repositorybrowser.local.scanTimeout"; //$NON-NLS-1$
+	
+	private static final int DEFAULT_SCAN_THREADS = 4;
+	private static final int DEFAULT_SCAN_TIMEOUT = 60000;
+	
+	private static ExecutorService scanPool;
+	/** The state of each root's scan, by kind of scan and then by description */
+	private static final Map<String, Map<String, RootScan>> SCANS = new ConcurrentHashMap<>();
+	
+	/**
+	 * Tracks the scan of a single root, so that a scan still running from an earlier call
+	 * is waited on again rather than duplicated, and so that the last successful result can
+	 * stand in when a scan times out or fails.
+	 */
+	private static class RootScan {
+		private Future<?> running;
+		private Object last;
+		private boolean hasLast;
+	}
 
 	@Override
 	public Stream<VFS> getFilesystems() {
 		try {
-			if(Files.isDirectory(Constants.REPOSITORY_BASE_DIR)) {
-				return Stream.of(
-					new FileVFS(Constants.REPOSITORY_BASE_DIR.toString())
-				);
-			} else {
-				return Stream.empty();
+			List<VFS> result = new ArrayList<>();
+			for(Map.Entry<String, Path> root : getRoots().entrySet()) {
+				if(Files.isDirectory(root.getValue())) {
+					if(root.getKey().isEmpty()) {
+						result.add(new FileVFS(root.getValue().toString()));
+					} else {
+						result.add(new LocalRepositoryVFS(root.getKey(), root.getValue()));
+					}
+				}
 			}
+			return result.stream();
 		} catch (VFSException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/**
+	 * Reads the local repository directories: {@link Constants#REPOSITORY_BASE_DIR}, which
+	 * is served at the root, followed by each directory listed in {@value #PROP_ROOTS},
+	 * which is served beneath its name.
+	 * 
+	 * @return a {@link Map} of names to directories, with an empty name for the default
+	 * @since 2.1.0
+	 */
+	public static Map<String, Path> getRoots() {
+		Map<String, Path> result = new LinkedHashMap<>();
+		result.put(StringUtil.EMPTY_STRING, Constants.REPOSITORY_BASE_DIR);
+		String roots = Constants.getProperty(PROP_ROOTS, null);
+		if(StringUtil.isNotEmpty(roots)) {
+			for(String root : roots.split(",")) { //$NON-NLS-1$
+				int eq = root.indexOf('=');
+				String name = eq < 0 ? null : root.substring(0, eq).trim();
+				if(StringUtil.isEmpty(name) || name.indexOf(VFS.SEPARATOR) > -1 || result.containsKey(name)) {
+					if(log.isLoggable(Level.WARNING)) {
+						log.warning(StringUtil.format("Ignoring invalid local repository entry \"{0}\"", root.trim()));
+					}
+					continue;
+				}
+				try {
+					result.put(name, Paths.get(root.substring(eq + 1).trim()));
+				} catch(InvalidPathException e) {
+					if(log.isLoggable(Level.WARNING)) {
+						log.warning(StringUtil.format("Ignoring invalid local repository path \"{0}\"", root.trim()));
+					}
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @param vfs the filesystem to check
+	 * @return whether {@code vfs} is a local repository directory, and so may be read from
+	 *         threads without a Notes session
+	 * @since 2.1.0
+	 */
+	public static boolean isLocal(VFS vfs) {
+		return vfs instanceof FileVFS || vfs instanceof LocalRepositoryVFS;
+	}
+	
+	/**
+	 * @param vfs a local repository filesystem, as determined by {@link #isLocal(VFS)}
+	 * @return the directory served by {@code vfs}, for use in log messages
+	 * @since 2.1.0
+	 */
+	public static String describe(VFS vfs) {
+		if(vfs instanceof LocalRepositoryVFS) {
+			return ((LocalRepositoryVFS)vfs).getDir().toString();
+		}
+		return Constants.REPOSITORY_BASE_DIR.toString();
+	}
+	
+	/**
+	 * Runs a scan of each local repository directory in parallel, so that a large or slow
+	 * volume doesn't hold up the others.
+	 * 
+	 * @param kind identifies the scanner, so that results are only re-used for the same scan
+	 * @param scanner the scan to run, given the name and directory of each root
+	 * @return the result for each root that has ever been scanned successfully, in
+	 *         configuration order
+	 * @see #scan(String, Map)
+	 * @since 2.1.0
+	 */
+	public static <T> List<T> scanRoots(String kind, BiFunction<String, Path, T> scanner) {
+		Map<String, Callable<T>> tasks = new LinkedHashMap<>();
+		for(Map.Entry<String, Path> root : getRoots().entrySet()) {
+			if(Files.isDirectory(root.getValue())) {
+				tasks.put(root.getValue().toString(), () -> scanner.apply(root.getKey(), root.getValue()));
+			}
+		}
+		return new ArrayList<>(scan(kind, tasks).values());
+	}
+	
+	/**
+	 * Runs the given tasks on the shared scan pool and waits for them to finish.
+	 * 
+	 * <p>Tasks that fail, or that are still running when the scan timeout elapses, are
+	 * logged and the last successful result for the same description is used in their
+	 * place. A task that is still running is not cancelled, since a blocked directory walk
+	 * doesn't respond to interruption; instead, it is waited on again by the next scan of
+	 * the same kind rather than being submitted a second time.</p>
+	 * 
+	 * @param kind identifies the caller, so that results are only re-used for the same scan
+	 * @param tasks the tasks to run, keyed by a description used in log messages
+	 * @return the results of the tasks, by description in the original order, omitting
+	 *         those that have never completed successfully
+	 * @since 2.1.0
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Map<String, T> scan(String kind, Map<String, Callable<T>> tasks) {
+		Map<String, RootScan> scans = SCANS.computeIfAbsent(kind, key -> new ConcurrentHashMap<>());
+		// Forget roots that are no longer configured
+		scans.keySet().retainAll(tasks.keySet());
+		
+		Map<String, RootScan> running = new LinkedHashMap<>();
+		for(Map.Entry<String, Callable<T>> task : tasks.entrySet()) {
+			RootScan scan = scans.computeIfAbsent(task.getKey(), key -> new RootScan());
+			synchronized(scan) {
+				if(scan.running == null || scan.running.isDone()) {
+					scan.running = getScanPool().submit(task.getValue());
+				}
+			}
+			running.put(task.getKey(), scan);
+		}
+		
+		Map<String, T> result = new LinkedHashMap<>();
+		long deadline = System.currentTimeMillis() + Constants.getIntProperty(PROP_SCAN_TIMEOUT, DEFAULT_SCAN_TIMEOUT);
+		for(Map.Entry<String, RootScan> task : running.entrySet()) {
+			RootScan scan = task.getValue();
+			Future<?> future;
+			synchronized(scan) {
+				future = scan.running;
+			}
+			try {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				Object value = future.get(remaining, TimeUnit.MILLISECONDS);
+				synchronized(scan) {
+					scan.last = value;
+					scan.hasLast = true;
+				}
+			} catch(TimeoutException e) {
+				if(log.isLoggable(Level.WARNING)) {
+					log.warning(StringUtil.format("Timed out scanning local repository {0}; using its previous contents for now", task.getKey()));
+				}
+			} catch(ExecutionException e) {
+				if(log.isLoggable(Level.SEVERE)) {
+					log.log(Level.SEVERE, StringUtil.format("Encountered exception scanning local repository {0}; using its previous contents", task.getKey()), e.getCause());
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			synchronized(scan) {
+				if(scan.hasLast) {
+					result.put(task.getKey(), (T)scan.last);
+				}
+			}
+		}
+		return result;
+	}
 
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+	
+	private static synchronized ExecutorService getScanPool() {
+		if(scanPool == null) {
+			int threads = Math.max(1, Constants.getIntProperty(PROP_SCAN_THREADS, DEFAULT_SCAN_THREADS));
+			scanPool = NotesThreads.newFixedPool(LocalFilesystemFactory.class.getSimpleName(), threads);
+		}
+		return scanPool;
+	}
 }
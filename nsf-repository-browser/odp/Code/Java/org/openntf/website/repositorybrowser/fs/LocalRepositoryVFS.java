@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openntf.website.repositorybrowser.fs.mem.DelegatingVFSFile;
+import org.openntf.website.repositorybrowser.fs.mem.MemoryVFSFolder;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+import com.ibm.commons.vfs.VFSFilter.IFilter;
+import com.ibm.commons.vfs.VFSFolder;
+import com.ibm.commons.vfs.VFSResource;
+import com.ibm.commons.vfs.filesystem.FileVFS;
+
+/**
+ * Virtual filesystem exposing an additional local repository directory beneath a single
+ * top-level folder, so that several directories can be served side by side.
+ * 
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class LocalRepositoryVFS extends VFS {
+	private final String name;
+	private final Path dir;
+	private final FileVFS delegate;
+	
+	public LocalRepositoryVFS(String name, Path dir) throws VFSException {
+		this.name = name;
+		this.dir = dir;
+		this.delegate = new FileVFS(dir.toString());
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Path getDir() {
+		return dir;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadEntries(VFS vfs, String path, List result) {
+		for(VFSResource res : getResources(path)) {
+			if(res instanceof VFSFile) {
+				result.add(doCreateFileEntry((VFSFile)res));
+			} else if(res instanceof VFSFolder) {
+				result.add(doCreateFolderEntry((VFSFolder)res));
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadResources(String path, List result, IFilter filter) {
+		for(VFSResource res : getResources(path)) {
+			if(filter == null || filter.accept(res)) {
+				result.add(res);
+			}
+		}
+	}
+
+	@Override
+	protected FileEntry doCreateFileEntry(VFSFile file) {
+		try {
+			return new LocalRepositoryFileEntry(this, file, file.getLastModificationDate());
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected FolderEntry doCreateFolderEntry(VFSFolder folder) {
+		try {
+			return new LocalRepositoryFolderEntry(this, folder, folder.getLastModificationDate());
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected VFSFile doCreateVFSFile(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected VFSFolder doCreateVFSFolder(String folderName) {
+		return new MemoryVFSFolder(this, folderName);
+	}
+
+	@Override
+	protected boolean doIsReadonly() throws VFSException {
+		return true;
+	}
+
+	@Override
+	protected void doClose() {
+		delegate.close();
+	}
+
+	@Override
+	public boolean hasEntryCache() {
+		return false;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static class LocalRepositoryFolderEntry extends VFS.FolderEntry {
+		public LocalRepositoryFolderEntry(VFS vfs, VFSFolder folder, long lastModified) {
+			super(vfs, folder, lastModified);
+		}
+	}
+
+	private static class LocalRepositoryFileEntry extends VFS.FileEntry {
+		public LocalRepositoryFileEntry(VFS vfs, VFSFile file, long lastModified) {
+			super(vfs, file, lastModified);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<VFSResource> getResources(String path) {
+		if(StringUtil.isEmpty(path)) {
+			return Collections.singletonList(new MemoryVFSFolder(this, name));
+		}
+		String rest;
+		if(StringUtil.equals(path, name)) {
+			rest = StringUtil.EMPTY_STRING;
+		} else if(path.startsWith(name + VFS.SEPARATOR)) {
+			rest = path.substring(name.length() + 1);
+		} else {
+			return Collections.emptyList();
+		}
+		
+		VFSFolder folder = rest.isEmpty() ? delegate.getRoot() : delegate.getFolder(rest);
+		List<VFSResource> result = new ArrayList<>();
+		try {
+			for(VFSResource res : (List<VFSResource>)folder.findResources()) {
+				String childPath = path + VFS.SEPARATOR + res.getName();
+				if(res.isFolder()) {
+					result.add(new MemoryVFSFolder(this, childPath));
+				} else if(res.isFile()) {
+					result.add(new DelegatingVFSFile(this, childPath, (VFSFile)res));
+				}
+			}
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+		return result;
+	}
+}
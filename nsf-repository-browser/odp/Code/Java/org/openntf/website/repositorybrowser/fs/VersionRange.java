@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs;
+
+import java.util.Arrays;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * An OSGi version range, such as {@code [5.0.0,6.0.0)}, along with comparison of OSGi
+ * version strings.
+ *
+ * <p>As in OSGi, a bare version such as {@code 5.0} is treated as a minimum, with no
+ * upper bound. Malformed version segments compare as {@code 0}, so that the odd version
+ * found in the wild does not fail a whole query.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class VersionRange {
+	/** A range that includes every version */
+	public static final VersionRange ANY = new VersionRange("0.0.0", true, null, false); //$NON-NLS-1$
+
+	private final String minimum;
+	private final boolean minimumInclusive;
+	private final String maximum;
+	private final boolean maximumInclusive;
+
+	/**
+	 * @param range a range in OSGi syntax or a bare minimum version; may be empty
+	 * @return the parsed {@link VersionRange}
+	 * @throws IllegalArgumentException if {@code range} is not a valid range
+	 */
+	public static VersionRange parse(String range) {
+		if(StringUtil.isEmpty(range)) {
+			return ANY;
+		}
+		String value = range.trim();
+		char first = value.charAt(0);
+		if(first == '[' || first == '(') {
+			char last = value.charAt(value.length() - 1);
+			int comma = value.indexOf(',');
+			if(comma < 0 || (last != ']' && last != ')')) {
+				throw new IllegalArgumentException("Invalid version range: " + range);
+			}
+			return new VersionRange(
+				value.substring(1, comma).trim(),
+				first == '[',
+				value.substring(comma + 1, value.length() - 1).trim(),
+				last == ']'
+			);
+		}
+		return new VersionRange(value, true, null, false);
+	}
+
+	private VersionRange(String minimum, boolean minimumInclusive, String maximum, boolean maximumInclusive) {
+		this.minimum = minimum;
+		this.minimumInclusive = minimumInclusive;
+		this.maximum = maximum;
+		this.maximumInclusive = maximumInclusive;
+	}
+
+	public boolean includes(String version) {
+		int min = compare(version, minimum);
+		if(min < 0 || (min == 0 && !minimumInclusive)) {
+			return false;
+		}
+		if(maximum != null) {
+			int max = compare(version, maximum);
+			if(max > 0 || (max == 0 && !maximumInclusive)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares two OSGi versions by their major, minor and micro numbers and then their
+	 * qualifiers.
+	 *
+	 * @return a negative number, zero or a positive number as {@code a} is lower than,
+	 *         equal to or higher than {@code b}
+	 */
+	public static int compare(String a, String b) {
+		String[] aParts = StringUtil.splitString(StringUtil.toString(a), '.');
+		String[] bParts = StringUtil.splitString(StringUtil.toString(b), '.');
+		for(int i = 0; i < 3; i++) {
+			int result = Integer.compare(number(aParts, i), number(bParts, i));
+			if(result != 0) {
+				return result;
+			}
+		}
+		return qualifier(aParts).compareTo(qualifier(bParts));
+	}
+
+	@Override
+	public String toString() {
+		if(maximum == null) {
+			return minimum;
+		}
+		return (minimumInclusive ? '[' : '(') + minimum + ',' + maximum + (maximumInclusive ? ']' : ')');
+	}
+
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+
+	private static int number(String[] parts, int index) {
+		if(index >= parts.length) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(parts[index].trim());
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static String qualifier(String[] parts) {
+		if(parts.length < 4) {
+			return StringUtil.EMPTY_STRING;
+		}
+		// Qualifiers may themselves contain dots
+		return String.join(".", Arrays.copyOfRange(parts, 3, parts.length)); //$NON-NLS-1$
+	}
+}
@@ -32,7 +32,7 @@ public class CompositeSiteFilesystemFactory implements FilesystemFactory {
 
 	@Override
 	public Stream<VFS> getFilesystems() {
-		return Stream.of(CompositeSiteVFS.INSTANCE);
+		return Stream.of(CompositeSiteVFS.INSTANCE, SnapshotVFS.INSTANCE);
 	}
 
 }
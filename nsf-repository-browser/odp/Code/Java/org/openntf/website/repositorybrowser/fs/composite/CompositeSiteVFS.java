@@ -15,16 +15,17 @@
  */
 package org.openntf.website.repositorybrowser.fs.composite;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import org.openntf.website.repositorybrowser.Constants;
+import org.openntf.website.repositorybrowser.fs.AggregateFilesystem;
+import org.openntf.website.repositorybrowser.fs.composite.RepositorySnapshot.FrozenContent;
 import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
 import org.openntf.website.repositorybrowser.fs.mem.MemoryVFSFolder;
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.ProcessingInstruction;
@@ -37,21 +38,31 @@ import com.ibm.commons.vfs.VFSFilter.IFilter;
 import com.ibm.commons.vfs.VFSFolder;
 import com.ibm.commons.vfs.VFSResource;
 import com.ibm.commons.xml.DOMUtil;
+import com.ibm.commons.xml.Format;
 import com.ibm.commons.xml.XMLException;
-import com.ibm.xsp.extlib.util.ExtLibUtil;
-
-import beans.Translation;
 
 /**
  * Virtual filesystem to represent the "compositeContent" and "compositeArtifacts"
  * files at the root of the repository.
  * 
+ * <p>The files are taken from the current {@link RepositorySnapshot}, which is captured
+ * by {@link RepositorySnapshots}.</p>
+ * 
  * @author Jesse Gallagher
  * @since 2.0.0
  */
-class CompositeSiteVFS extends VFS {
+class CompositeSiteVFS extends VFS implements AggregateFilesystem {
 	public static final CompositeSiteVFS INSTANCE = new CompositeSiteVFS();
 	
+	/** The time, in milliseconds, for which generated composite files are re-used */
+	public static final String PROP_REFRESH_INTERVAL = "repositorybrowser.composite.refreshInterval"; //$NON-NLS-1$
+	static final int DEFAULT_REFRESH_INTERVAL = 60000;
+	/**
+	 * The number of levels of folders to group child repositories by into nested composites,
+	 * or {@code 0} to list every child in the root composite
+	 */
+	public static final String PROP_SHARD_DEPTH = "repositorybrowser.composite.shardDepth"; //$NON-NLS-1$
+	
 	@Override
 	protected boolean doIsReadonly() throws VFSException {
 		return true;
@@ -60,15 +71,13 @@ class CompositeSiteVFS extends VFS {
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void doReadEntries(VFS vfs, String path, List result) {
-		if(StringUtil.isEmpty(path) || "/".equals(path)) {
-			for(VFSFile file : getFiles()) {
-				if(this.isAccepted(file)) {
-					try {
-						result.add(new CompositeSiteFileEntry(this, file, file.getLastModificationDate()));
-					} catch (VFSException e) {
-						throw new RuntimeException(e);
-					}
+		for(VFSResource res : getResources(path)) {
+			if(res instanceof VFSFile) {
+				if(this.isAccepted((VFSFile)res)) {
+					result.add(doCreateFileEntry((VFSFile)res));
 				}
+			} else if(res instanceof VFSFolder) {
+				result.add(doCreateFolderEntry((VFSFolder)res));
 			}
 		}
 	}
@@ -76,11 +85,12 @@ class CompositeSiteVFS extends VFS {
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void doReadResources(String path, List result, IFilter filter) {
-		if(StringUtil.isEmpty(path) || "/".equals(path)) {
-			for(VFSFile file : getFiles()) {
-				if(this.isAccepted(file) && (filter == null || filter.accept(file))) {
-					result.add(file);
-				}
+		for(VFSResource res : getResources(path)) {
+			if(res instanceof VFSFile && !this.isAccepted((VFSFile)res)) {
+				continue;
+			}
+			if(filter == null || filter.accept(res)) {
+				result.add(res);
 			}
 		}
 	}
@@ -139,151 +149,83 @@ class CompositeSiteVFS extends VFS {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
-	private Collection<XMLDocumentVFSFile> getFiles() {
-		Map<String, Object> requestScope = ExtLibUtil.getRequestScope();
-		String cacheKey = getClass().getName() + "_files"; //$NON-NLS-1$
-		return (Collection<XMLDocumentVFSFile>)requestScope.computeIfAbsent(cacheKey, (key) -> {
-			List<XMLDocumentVFSFile> result = new ArrayList<>();
-			try {
-				result.add(createCompositeContent());
-				result.add(createCompositeArtifacts());
-			} catch (XMLException | IOException e) {
-				throw new RuntimeException(e);
+	/**
+	 * Retrieves the composite files from the current snapshot. When snapshots are published,
+	 * these list each child within the snapshot's folder, which also holds any nested
+	 * composites; otherwise, the nested composites are served from here.
+	 */
+	private List<VFSResource> getResources(String path) {
+		RepositorySnapshot snapshot = RepositorySnapshots.getCurrent();
+		boolean pinned = snapshot.isPublished() && RepositorySnapshots.isPinning();
+		List<VFSResource> result = new ArrayList<>();
+		if(StringUtil.isEmpty(path) || "/".equals(path)) {
+			result.add(new XMLDocumentVFSFile(this, RepositorySnapshot.COMPOSITE_CONTENT, snapshot.getCompositeContent(pinned), snapshot.getLastModified()));
+			result.add(new XMLDocumentVFSFile(this, RepositorySnapshot.COMPOSITE_ARTIFACTS, snapshot.getCompositeArtifacts(pinned), snapshot.getLastModified()));
+			if(!pinned && !snapshot.getFolderNames(RepositorySnapshot.SHARDS_FOLDER).isEmpty()) {
+				result.add(new MemoryVFSFolder(this, RepositorySnapshot.SHARDS_FOLDER));
 			}
-			return result;
-		});
+		} else if(!pinned && (path.equals(RepositorySnapshot.SHARDS_FOLDER) || path.startsWith(RepositorySnapshot.SHARDS_FOLDER + VFS.SEPARATOR))) {
+			for(String name : snapshot.getFolderNames(path)) {
+				result.add(new MemoryVFSFolder(this, path + VFS.SEPARATOR + name));
+			}
+			for(String name : snapshot.getFileNames(path)) {
+				FrozenContent file = snapshot.getFile(path + VFS.SEPARATOR + name);
+				result.add(new XMLDocumentVFSFile(this, path + VFS.SEPARATOR + name, file.getContent(), file.getLastModified()));
+			}
+		}
+		return result;
 	}
 	
-	@SuppressWarnings("unchecked")
-	private XMLDocumentVFSFile createCompositeContent() throws XMLException, IOException {
+	/**
+	 * Generates a compositeContent.xml or compositeArtifacts.xml file.
+	 * 
+	 * @param metadata {@code true} for compositeContent.xml; {@code false} for compositeArtifacts.xml
+	 * @param name the name of the composite repository
+	 * @param children the paths of the child repositories
+	 * @param prefix a path to prepend to each child location
+	 * @return the serialized composite file
+	 */
+	static OffHeapContent createComposite(boolean metadata, String name, Collection<String> children, String prefix) throws XMLException, IOException {
 		Document doc = DOMUtil.createDocument();
-		final long[] lastMod = new long[] { 0 };
 
 		{
-			ProcessingInstruction proc = doc.createProcessingInstruction("compositeMetadataRepository", "version='1.0.0'"); //$NON-NLS-1$ //$NON-NLS-2$
+			String target = metadata ? "compositeMetadataRepository" : "compositeArtifactRepository"; //$NON-NLS-1$ //$NON-NLS-2$
+			ProcessingInstruction proc = doc.createProcessingInstruction(target, "version='1.0.0'"); //$NON-NLS-1$
 			doc.appendChild(proc);
 		}
 
 		{
 			Element repository = doc.createElement("repository"); //$NON-NLS-1$
 			doc.appendChild(repository);
-			repository.setAttribute("name", Translation.translate("appName")); //$NON-NLS-1$ //$NON-NLS-2$
-			repository.setAttribute("type", "org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepository"); //$NON-NLS-1$ //$NON-NLS-2$
+			repository.setAttribute("name", name); //$NON-NLS-1$
+			if(metadata) {
+				repository.setAttribute("type", "org.eclipse.equinox.internal.p2.metadata.repository.CompositeMetadataRepository"); //$NON-NLS-1$ //$NON-NLS-2$
+			} else {
+				repository.setAttribute("type", "org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
 			repository.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
 
 			Element properties = DOMUtil.createElement(doc, repository, "properties"); //$NON-NLS-1$
-			properties.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-			{
+			if(metadata) {
+				properties.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
 				Element property = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
 				property.setAttribute("name", "p2.atomic.composite.loading"); //$NON-NLS-1$ //$NON-NLS-2$
 				property.setAttribute("value", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			} else {
+				properties.setAttribute("size", "0"); //$NON-NLS-1$ //$NON-NLS-2$
 			}
 
-			Element children = DOMUtil.createElement(doc, repository, "children"); //$NON-NLS-1$
-			AtomicInteger count = new AtomicInteger(0);
-			
-			Constants.getFilesystems()
-				.filter(vfs -> !(vfs instanceof CompositeSiteVFS))
-				.forEach(vfs -> {
-					try {
-						((List<VFSFile>)vfs.getRoot().findFiles("content.jar", true)).stream() //$NON-NLS-1$
-							.map(VFSResource::getParent)
-							.forEach(folder -> {
-								try {
-									lastMod[0] = Math.max(lastMod[0], folder.getLastModificationDate());
-								} catch (VFSException e) {
-									throw new RuntimeException(e);
-								}
-								
-								Element child = DOMUtil.createElement(doc, children, "child"); //$NON-NLS-1$
-								child.setAttribute("location", vfs.getFolder(folder).getPath()); //$NON-NLS-1$
-								count.incrementAndGet();
-							});
-						((List<VFSFile>)vfs.getRoot().findFiles("content.xml", true)).stream() //$NON-NLS-1$
-							.map(VFSResource::getParent)
-							.forEach(folder -> {
-								try {
-									lastMod[0] = Math.max(lastMod[0], folder.getLastModificationDate());
-								} catch (VFSException e) {
-									throw new RuntimeException(e);
-								}
-								
-								Element child = DOMUtil.createElement(doc, children, "child"); //$NON-NLS-1$
-								child.setAttribute("location", vfs.getFolder(folder).getPath()); //$NON-NLS-1$
-								count.incrementAndGet();
-							});
-					} catch (VFSException e) {
-						throw new RuntimeException(e);
-					}
-				});
-
-			children.setAttribute("size", count.toString()); //$NON-NLS-1$
+			Element childrenElement = DOMUtil.createElement(doc, repository, "children"); //$NON-NLS-1$
+			for(String child : children) {
+				Element childElement = DOMUtil.createElement(doc, childrenElement, "child"); //$NON-NLS-1$
+				childElement.setAttribute("location", prefix + child); //$NON-NLS-1$
+			}
+			childrenElement.setAttribute("size", Integer.toString(children.size())); //$NON-NLS-1$
 		}
 		
-		
-		return new XMLDocumentVFSFile(this, "compositeContent.xml", doc, lastMod[0]); //$NON-NLS-1$
-	}
-	
-	@SuppressWarnings("unchecked")
-	private XMLDocumentVFSFile createCompositeArtifacts() throws XMLException, IOException {
-		Document doc = DOMUtil.createDocument();
-		final long[] lastMod = new long[] { 0 };
-
-		{
-			ProcessingInstruction proc = doc.createProcessingInstruction("compositeArtifactRepository", "version='1.0.0'"); //$NON-NLS-1$ //$NON-NLS-2$
-			doc.appendChild(proc);
-		}
-
-		{
-			Element repository = doc.createElement("repository"); //$NON-NLS-1$
-			doc.appendChild(repository);
-			repository.setAttribute("name", Translation.translate("appName")); //$NON-NLS-1$ //$NON-NLS-2$
-			repository.setAttribute("type", "org.eclipse.equinox.internal.p2.artifact.repository.CompositeArtifactRepository"); //$NON-NLS-1$ //$NON-NLS-2$
-			repository.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-
-			Element properties = DOMUtil.createElement(doc, repository, "properties"); //$NON-NLS-1$
-			properties.setAttribute("size", "0"); //$NON-NLS-1$ //$NON-NLS-2$
-
-			Element children = DOMUtil.createElement(doc, repository, "children"); //$NON-NLS-1$
-			AtomicInteger count = new AtomicInteger(0);
-			Constants.getFilesystems()
-			.filter(vfs -> !(vfs instanceof CompositeSiteVFS))
-			.forEach(vfs -> {
-				try {
-					((List<VFSFile>)vfs.getRoot().findFiles("artifacts.jar", true)).stream() //$NON-NLS-1$
-						.map(VFSResource::getParent)
-						.forEach(folder -> {
-							try {
-								lastMod[0] = Math.max(lastMod[0], folder.getLastModificationDate());
-							} catch (VFSException e) {
-								throw new RuntimeException(e);
-							}
-							
-							Element child = DOMUtil.createElement(doc, children, "child"); //$NON-NLS-1$
-							child.setAttribute("location", vfs.getFolder(folder).getPath()); //$NON-NLS-1$
-							count.incrementAndGet();
-						});
-					((List<VFSFile>)vfs.getRoot().findFiles("artifacts.xml", true)).stream() //$NON-NLS-1$
-						.map(VFSResource::getParent)
-						.forEach(folder -> {
-							try {
-								lastMod[0] = Math.max(lastMod[0], folder.getLastModificationDate());
-							} catch (VFSException e) {
-								throw new RuntimeException(e);
-							}
-							
-							Element child = DOMUtil.createElement(doc, children, "child"); //$NON-NLS-1$
-							child.setAttribute("location", vfs.getFolder(folder).getPath()); //$NON-NLS-1$
-							count.incrementAndGet();
-						});
-				} catch (VFSException e) {
-					throw new RuntimeException(e);
-				}
-			});
-			children.setAttribute("size", count.toString()); //$NON-NLS-1$
+		try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+			DOMUtil.serialize(baos, doc, Format.defaultFormat);
+			return OffHeapContent.store(baos.toByteArray());
 		}
-		
-		return new XMLDocumentVFSFile(this, "compositeArtifacts.xml", doc, lastMod[0]); //$NON-NLS-1$
 	}
 }
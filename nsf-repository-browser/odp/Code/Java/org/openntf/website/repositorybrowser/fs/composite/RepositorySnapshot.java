@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.composite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.xml.XMLException;
+
+import beans.Translation;
+
+/**
+ * An immutable capture of the composite repository files and the p2 metadata of every
+ * child repository they list, taken at a single point in time.
+ *
+ * <p>Published snapshots are numbered and served from their own folder, so a client that
+ * reads the composite from one snapshot also reads each child's metadata from it.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class RepositorySnapshot {
+	public static final String COMPOSITE_CONTENT = "compositeContent.xml"; //$NON-NLS-1$
+	public static final String COMPOSITE_ARTIFACTS = "compositeArtifacts.xml"; //$NON-NLS-1$
+	/** The folder holding nested composites when children are sharded */
+	public static final String SHARDS_FOLDER = "shards"; //$NON-NLS-1$
+
+	private final long number;
+	private final boolean published;
+	private final long created;
+	private final long lastModified;
+	private final int shardDepth;
+	private final List<String> contentChildren;
+	private final List<String> artifactChildren;
+	/** Captured metadata files by path relative to the snapshot root */
+	private final Map<String, FrozenContent> files;
+	private final int capturedCount;
+	private final Map<String, Set<String>> fileNames = new LinkedHashMap<>();
+	private final Map<String, Set<String>> folderNames = new LinkedHashMap<>();
+	private final OffHeapContent pinnedContent;
+	private final OffHeapContent pinnedArtifacts;
+	private final List<VFS> filesystems;
+
+	/**
+	 * @param number the snapshot number, used as its folder name when published
+	 * @param published whether the snapshot is served from its own folder
+	 * @param lastModified the latest modification time of the captured children
+	 * @param shardDepth the number of levels of folders to group children into nested
+	 *        composites by, or {@code 0} to list them all in the root composite
+	 * @param contentChildren the paths of the child metadata repositories
+	 * @param artifactChildren the paths of the child artifact repositories
+	 * @param files the captured metadata files, by path relative to the repository root
+	 * @param filesystems the filesystems the children were found in
+	 */
+	public RepositorySnapshot(long number, boolean published, long lastModified, int shardDepth, List<String> contentChildren, List<String> artifactChildren, Map<String, FrozenContent> files, List<VFS> filesystems) throws XMLException, IOException {
+		this.number = number;
+		this.filesystems = Collections.unmodifiableList(filesystems);
+		this.published = published;
+		this.created = System.currentTimeMillis();
+		this.lastModified = lastModified;
+		this.shardDepth = shardDepth;
+		this.contentChildren = Collections.unmodifiableList(contentChildren);
+		this.artifactChildren = Collections.unmodifiableList(artifactChildren);
+
+		Map<String, FrozenContent> allFiles = new LinkedHashMap<>(files);
+		this.capturedCount = files.size();
+		List<String> contentEntries = shard(true, contentChildren, "", shardDepth, allFiles); //$NON-NLS-1$
+		List<String> artifactEntries = shard(false, artifactChildren, "", shardDepth, allFiles); //$NON-NLS-1$
+		// Within the snapshot, the composite lists its children relative to itself
+		String appName = Translation.translate("appName"); //$NON-NLS-1$
+		allFiles.put(COMPOSITE_CONTENT, new FrozenContent(CompositeSiteVFS.createComposite(true, appName, contentEntries, ""), -1, lastModified)); //$NON-NLS-1$
+		allFiles.put(COMPOSITE_ARTIFACTS, new FrozenContent(CompositeSiteVFS.createComposite(false, appName, artifactEntries, ""), -1, lastModified)); //$NON-NLS-1$
+		this.files = Collections.unmodifiableMap(allFiles);
+		for(String path : allFiles.keySet()) {
+			index(path);
+		}
+
+		if(published) {
+			// At the repository root, it points into the snapshot's folder instead
+			String prefix = RepositorySnapshots.FOLDER + VFS.SEPARATOR + number + VFS.SEPARATOR;
+			this.pinnedContent = CompositeSiteVFS.createComposite(true, appName, contentEntries, prefix);
+			this.pinnedArtifacts = CompositeSiteVFS.createComposite(false, appName, artifactEntries, prefix);
+		} else {
+			this.pinnedContent = allFiles.get(COMPOSITE_CONTENT).getContent();
+			this.pinnedArtifacts = allFiles.get(COMPOSITE_ARTIFACTS).getContent();
+		}
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	public boolean isPublished() {
+		return published;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public int getShardDepth() {
+		return shardDepth;
+	}
+
+	public List<String> getContentChildren() {
+		return contentChildren;
+	}
+
+	public List<String> getArtifactChildren() {
+		return artifactChildren;
+	}
+
+	/**
+	 * @return the filesystems the children were found in, which serve the rest of each
+	 *         child's content
+	 */
+	public List<VFS> getFilesystems() {
+		return filesystems;
+	}
+
+	/**
+	 * @param pinned whether the children should be listed within this snapshot's folder
+	 * @return the serialized compositeContent.xml
+	 */
+	public OffHeapContent getCompositeContent(boolean pinned) {
+		return pinned ? pinnedContent : files.get(COMPOSITE_CONTENT).getContent();
+	}
+
+	/**
+	 * @param pinned whether the children should be listed within this snapshot's folder
+	 * @return the serialized compositeArtifacts.xml
+	 */
+	public OffHeapContent getCompositeArtifacts(boolean pinned) {
+		return pinned ? pinnedArtifacts : files.get(COMPOSITE_ARTIFACTS).getContent();
+	}
+
+	/**
+	 * @param path the path of the file relative to the snapshot root
+	 * @return the captured file, or {@code null} if the path was not captured
+	 */
+	public FrozenContent getFile(String path) {
+		return files.get(path);
+	}
+
+	/**
+	 * @return all captured files, by path relative to the snapshot root
+	 */
+	public Map<String, FrozenContent> getFiles() {
+		return files;
+	}
+
+	/**
+	 * @param folder a folder path relative to the snapshot root
+	 * @return the names of the captured files directly within the folder
+	 */
+	public Collection<String> getFileNames(String folder) {
+		return fileNames.getOrDefault(folder, Collections.emptySet());
+	}
+
+	/**
+	 * @param folder a folder path relative to the snapshot root
+	 * @return the names of the folders within the folder that lead to captured files
+	 */
+	public Collection<String> getFolderNames(String folder) {
+		return folderNames.getOrDefault(folder, Collections.emptySet());
+	}
+
+	/**
+	 * @param folder a folder path relative to the snapshot root
+	 * @return whether the folder is a child repository whose metadata was captured
+	 */
+	public boolean isChild(String folder) {
+		return contentChildren.contains(folder) || artifactChildren.contains(folder);
+	}
+
+	/**
+	 * Determines whether this snapshot would serve the same content as a new capture, which
+	 * is the case when it lists the same children and shares every captured file.
+	 *
+	 * @param contentChildren the paths of the child metadata repositories
+	 * @param artifactChildren the paths of the child artifact repositories
+	 * @param files the captured metadata files, by path relative to the repository root
+	 * @return whether the snapshots are equivalent
+	 */
+	public boolean isEquivalent(List<String> contentChildren, List<String> artifactChildren, Map<String, FrozenContent> files) {
+		if(!this.contentChildren.equals(contentChildren) || !this.artifactChildren.equals(artifactChildren)) {
+			return false;
+		}
+		if(this.capturedCount != files.size()) {
+			return false;
+		}
+		for(Map.Entry<String, FrozenContent> file : files.entrySet()) {
+			if(this.files.get(file.getKey()) != file.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	/**
+	 * Groups the given children by their next folder below {@code base}, writing a nested
+	 * composite for each group of more than one child into the shards folder.
+	 *
+	 * @return the locations to list in the composite for {@code base}, relative to the
+	 *         repository root
+	 */
+	private List<String> shard(boolean metadata, List<String> children, String base, int depth, Map<String, FrozenContent> files) throws XMLException, IOException {
+		if(depth < 1) {
+			return children;
+		}
+		List<String> result = new ArrayList<>();
+		Map<String, List<String>> groups = new LinkedHashMap<>();
+		for(String child : children) {
+			String rest = base.isEmpty() ? child : child.substring(base.length() + 1);
+			int slash = rest.indexOf(VFS.SEPARATOR);
+			if(rest.isEmpty() || slash < 0) {
+				// The group's own folder is a repository, so it can't hold a composite
+				result.add(child);
+			} else {
+				String group = (base.isEmpty() ? "" : base + VFS.SEPARATOR) + rest.substring(0, slash); //$NON-NLS-1$
+				groups.computeIfAbsent(group, key -> new ArrayList<>()).add(child);
+			}
+		}
+		for(Map.Entry<String, List<String>> group : groups.entrySet()) {
+			if(group.getValue().size() == 1) {
+				result.add(group.getValue().get(0));
+				continue;
+			}
+			String folder = SHARDS_FOLDER + VFS.SEPARATOR + group.getKey();
+			List<String> entries = shard(metadata, group.getValue(), group.getKey(), depth - 1, files);
+
+			// Child locations are relative to the shard, so climb back out to the root first
+			StringBuilder up = new StringBuilder();
+			for(int i = StringUtil.splitString(folder, VFS.SEPARATOR).length; i > 0; i--) {
+				up.append(".."); //$NON-NLS-1$
+				up.append(VFS.SEPARATOR);
+			}
+			String name = StringUtil.format("{0} ({1})", Translation.translate("appName"), group.getKey()); //$NON-NLS-1$ //$NON-NLS-2$
+			OffHeapContent content = CompositeSiteVFS.createComposite(metadata, name, entries, up.toString());
+			files.put(folder + VFS.SEPARATOR + (metadata ? COMPOSITE_CONTENT : COMPOSITE_ARTIFACTS), new FrozenContent(content, -1, lastModified));
+			result.add(folder);
+		}
+		return result;
+	}
+
+	private void index(String path) {
+		int slash = path.lastIndexOf(VFS.SEPARATOR);
+		String folder = slash < 0 ? "" : path.substring(0, slash); //$NON-NLS-1$
+		fileNames.computeIfAbsent(folder, key -> new LinkedHashSet<>()).add(path.substring(slash + 1));
+		while(!folder.isEmpty()) {
+			slash = folder.lastIndexOf(VFS.SEPARATOR);
+			String parent = slash < 0 ? "" : folder.substring(0, slash); //$NON-NLS-1$
+			folderNames.computeIfAbsent(parent, key -> new LinkedHashSet<>()).add(folder.substring(slash + 1));
+			folder = parent;
+		}
+	}
+
+	/**
+	 * The captured content of a single metadata file, along with the size and modification
+	 * time of the file it was read from so that it can be re-used while that is unchanged.
+	 */
+	static class FrozenContent {
+		private final OffHeapContent content;
+		private final long sourceSize;
+		private final long lastModified;
+
+		public FrozenContent(OffHeapContent content, long sourceSize, long lastModified) {
+			this.content = content;
+			this.sourceSize = sourceSize;
+			this.lastModified = lastModified;
+		}
+
+		public OffHeapContent getContent() {
+			return content;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public boolean isFrom(long size, long lastModified) {
+			return this.sourceSize == size && this.lastModified == lastModified;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.composite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.openntf.website.repositorybrowser.Constants;
+import org.openntf.website.repositorybrowser.fs.AggregateFilesystem;
+import org.openntf.website.repositorybrowser.fs.LocalFilesystemFactory;
+import org.openntf.website.repositorybrowser.fs.composite.RepositorySnapshot.FrozenContent;
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
+import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
+import org.openntf.website.repositorybrowser.fs.usnsf.SiteCircuitBreaker;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+import com.ibm.commons.vfs.VFSFolder;
+import com.ibm.commons.vfs.VFSResource;
+import com.ibm.commons.xml.XMLException;
+
+import util.BufferPool;
+
+/**
+ * Captures and publishes numbered {@link RepositorySnapshot}s of the composite repository.
+ *
+ * <p>Whenever the composite refresh interval elapses, the child repositories are found
+ * again and their p2 metadata files are captured, re-using the previous capture of any
+ * file that is unchanged. If anything differs from the current snapshot, a new one is
+ * published under the next number and swapped in as a single reference, while the
+ * configured number of older snapshots remain available to clients that are part way
+ * through reading them.</p>
+ *
+ * <p>Numbers start from the time of the first snapshot in seconds, so they are not re-used
+ * when the server restarts.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class RepositorySnapshots {
+	private static final Logger log = Logger.getLogger(RepositorySnapshots.class.getPackage().getName());
+
+	/** The number of snapshots kept available, or {@code 0} to list the children directly */
+	public static final String PROP_KEEP = "repositorybrowser.composite.snapshots"; //$NON-NLS-1$
+	private static final int DEFAULT_KEEP = 3;
+
+	/** The folder that snapshots are served from */
+	public static final String FOLDER = "snapshots"; //$NON-NLS-1$
+
+	/** The files that mark a folder as a child metadata repository */
+	private static final List<String> CONTENT_FILES = Arrays.asList("content.jar", "content.xml"); //$NON-NLS-1$ //$NON-NLS-2$
+	/** The files that mark a folder as a child metadata or artifact repository */
+	private static final List<String> MARKER_FILES = Arrays.asList("content.jar", "content.xml", "artifacts.jar", "artifacts.xml"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	/** The p2 metadata files captured from each child repository */
+	static final List<String> METADATA_FILES = Arrays.asList(
+		"p2.index", //$NON-NLS-1$
+		"content.jar", "content.xml", "content.xml.xz", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		"artifacts.jar", "artifacts.xml", "artifacts.xml.xz" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	);
+
+	/** Identifies the marker file scans to {@link LocalFilesystemFactory#scan(String, Map)} */
+	private static final String MARKER_SCAN = "markers"; //$NON-NLS-1$
+	private static final Lock buildLock = new ReentrantLock();
+	private static final ThreadLocal<Boolean> UNPINNED = new ThreadLocal<>();
+	private static volatile RepositorySnapshot current;
+	private static volatile long checked;
+	/** Published snapshots, newest first */
+	private static volatile List<RepositorySnapshot> published = Collections.emptyList();
+
+	private RepositorySnapshots() {
+	}
+
+	/**
+	 * @return whether snapshots are published, as opposed to the composite listing each
+	 *         child directly
+	 */
+	public static boolean isEnabled() {
+		return getKeep() > 0;
+	}
+
+	/**
+	 * Runs a task that sees the composite files listing each child directly and no
+	 * snapshot folders, as is appropriate for a copy of the tree that is itself replaced
+	 * atomically.
+	 *
+	 * @param task the task to run
+	 * @return the result of {@code task}
+	 */
+	public static <T> T withoutPinning(Callable<T> task) throws Exception {
+		Boolean previous = UNPINNED.get();
+		UNPINNED.set(Boolean.TRUE);
+		try {
+			return task.call();
+		} finally {
+			if(previous == null) {
+				UNPINNED.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return a {@link Map} describing the published snapshots, for status reporting
+	 */
+	public static Map<String, Object> toMap() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("enabled", isEnabled()); //$NON-NLS-1$
+		RepositorySnapshot snapshot = current;
+		List<RepositorySnapshot> snapshots = published;
+		result.put("current", snapshot == null || !snapshot.isPublished() ? null : snapshot.getNumber()); //$NON-NLS-1$
+		result.put("published", snapshots.stream().map(RepositorySnapshot::getNumber).collect(Collectors.toList())); //$NON-NLS-1$
+		result.put("created", snapshot == null ? 0 : snapshot.getCreated()); //$NON-NLS-1$
+		result.put("checked", checked); //$NON-NLS-1$
+		result.put("children", snapshot == null ? 0 : snapshot.getContentChildren().size()); //$NON-NLS-1$
+
+		// Unchanged files are shared between snapshots, so count each once
+		Map<OffHeapContent, Boolean> contents = new IdentityHashMap<>();
+		for(RepositorySnapshot s : snapshots) {
+			for(FrozenContent file : s.getFiles().values()) {
+				contents.put(file.getContent(), Boolean.TRUE);
+			}
+		}
+		result.put("files", contents.size()); //$NON-NLS-1$
+		result.put("bytes", contents.keySet().stream().mapToLong(OffHeapContent::size).sum()); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Package-internal methods
+	// *******************************************************************************
+
+	/**
+	 * @return whether the current thread should be directed into snapshot folders
+	 */
+	static boolean isPinning() {
+		return isEnabled() && UNPINNED.get() == null;
+	}
+
+	/**
+	 * Retrieves the current snapshot, capturing a new one when the composite refresh interval
+	 * has elapsed. While a capture is underway, other threads continue to see the previous
+	 * snapshot, and if a capture fails, the previous snapshot is kept until the next
+	 * interval.
+	 *
+	 * @return the current snapshot
+	 */
+	static RepositorySnapshot getCurrent() {
+		RepositorySnapshot result = current;
+		long refreshInterval = Constants.getIntProperty(CompositeSiteVFS.PROP_REFRESH_INTERVAL, CompositeSiteVFS.DEFAULT_REFRESH_INTERVAL);
+		boolean stale = result == null || result.isPublished() != isEnabled() || result.getShardDepth() != getShardDepth()
+			|| System.currentTimeMillis() - checked > refreshInterval;
+		if(stale) {
+			// Only wait for the lock when there is nothing to serve in the mean time
+			if(result == null) {
+				buildLock.lock();
+			} else if(!buildLock.tryLock()) {
+				return result;
+			}
+			try {
+				if(current == result) {
+					try {
+						current = capture(result);
+					} catch(XMLException | IOException | VFSException | RuntimeException e) {
+						if(result == null) {
+							throw e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+						}
+						if(log.isLoggable(Level.SEVERE)) {
+							log.log(Level.SEVERE, StringUtil.format("Encountered exception capturing a repository snapshot; continuing to serve snapshot {0}", result.getNumber()), e);
+						}
+					}
+					checked = System.currentTimeMillis();
+				}
+				result = current;
+			} finally {
+				buildLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param number the number of a published snapshot
+	 * @return the snapshot, or {@code null} if it is not (or is no longer) available
+	 */
+	static RepositorySnapshot get(long number) {
+		if(current == null) {
+			getCurrent();
+		}
+		for(RepositorySnapshot snapshot : published) {
+			if(snapshot.getNumber() == number) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the published snapshots, newest first
+	 */
+	static List<RepositorySnapshot> getPublished() {
+		if(current == null) {
+			getCurrent();
+		}
+		return published;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static int getKeep() {
+		return Constants.getIntProperty(PROP_KEEP, DEFAULT_KEEP);
+	}
+
+	private static int getShardDepth() {
+		return Math.max(0, Constants.getIntProperty(CompositeSiteVFS.PROP_SHARD_DEPTH, 0));
+	}
+
+	private static RepositorySnapshot capture(RepositorySnapshot previous) throws XMLException, IOException, VFSException {
+		int keep = getKeep();
+		boolean publish = keep > 0;
+		int shardDepth = getShardDepth();
+
+		Set<String> contentChildren = new LinkedHashSet<>();
+		Set<String> artifactChildren = new LinkedHashSet<>();
+		Map<String, VFSFolder> folders = new LinkedHashMap<>();
+		long lastMod = 0;
+		List<VFS> filesystems = Constants.getFilesystems()
+			.filter(vfs -> !(vfs instanceof AggregateFilesystem))
+			.collect(Collectors.toList());
+		// Local directories are walked in parallel, so that a large volume doesn't hold up the rest
+		Map<String, Callable<Map<String, List<VFSFile>>>> localScans = new LinkedHashMap<>();
+		for(int i = 0; i < filesystems.size(); i++) {
+			VFS vfs = filesystems.get(i);
+			if(LocalFilesystemFactory.isLocal(vfs)) {
+				localScans.put(getScanName(vfs, i), () -> findMarkers(vfs));
+			}
+		}
+		Map<String, Map<String, List<VFSFile>>> localMarkers = LocalFilesystemFactory.scan(MARKER_SCAN, localScans);
+		for(int i = 0; i < filesystems.size(); i++) {
+			VFS vfs = filesystems.get(i);
+			Map<String, List<VFSFile>> markers;
+			if(LocalFilesystemFactory.isLocal(vfs)) {
+				// Scans that timed out or failed fall back to their last result, if there was one
+				markers = localMarkers.getOrDefault(getScanName(vfs, i), Collections.emptyMap());
+			} else {
+				markers = findMarkers(vfs);
+			}
+			for(Map.Entry<String, List<VFSFile>> marker : markers.entrySet()) {
+				boolean content = CONTENT_FILES.contains(marker.getKey());
+				for(VFSFile file : marker.getValue()) {
+					VFSFolder folder = file.getParent();
+					String path = vfs.getFolder(folder).getPath();
+					(content ? contentChildren : artifactChildren).add(path);
+					folders.putIfAbsent(path, folder);
+					lastMod = Math.max(lastMod, folder.getLastModificationDate());
+				}
+			}
+		}
+
+		// Capture each child's metadata, so that it stays consistent with the composite
+		Map<String, FrozenContent> files = new LinkedHashMap<>();
+		if(publish) {
+			for(Map.Entry<String, VFSFolder> folder : folders.entrySet()) {
+				for(String name : METADATA_FILES) {
+					VFSResource res = folder.getValue().findResource(name, false);
+					if(res == null || !res.isFile()) {
+						continue;
+					}
+					String path = folder.getKey().isEmpty() ? name : folder.getKey() + VFS.SEPARATOR + name;
+					FrozenContent file = freeze((VFSFile)res, previous == null ? null : previous.getFile(path));
+					files.put(path, file);
+					lastMod = Math.max(lastMod, file.getLastModified());
+				}
+			}
+			if(previous != null && previous.isPublished()) {
+				lastMod = Math.max(lastMod, carryOver(previous, contentChildren, artifactChildren, files));
+			}
+		}
+
+		List<String> contentList = new ArrayList<>(contentChildren);
+		List<String> artifactList = new ArrayList<>(artifactChildren);
+		if(!publish) {
+			published = Collections.emptyList();
+			return new RepositorySnapshot(0, false, lastMod, shardDepth, contentList, artifactList, files, filesystems);
+		}
+		if(previous != null && previous.isPublished() && previous.getShardDepth() == shardDepth && previous.isEquivalent(contentList, artifactList, files)) {
+			return previous;
+		}
+
+		long number = System.currentTimeMillis() / 1000;
+		if(previous != null && previous.isPublished()) {
+			number = Math.max(number, previous.getNumber() + 1);
+		}
+		RepositorySnapshot result = new RepositorySnapshot(number, true, lastMod, shardDepth, contentList, artifactList, files, filesystems);
+
+		List<RepositorySnapshot> snapshots = new ArrayList<>(keep);
+		snapshots.add(result);
+		for(RepositorySnapshot snapshot : published) {
+			if(snapshots.size() >= keep) {
+				break;
+			}
+			snapshots.add(snapshot);
+		}
+		published = Collections.unmodifiableList(snapshots);
+
+		if(log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Published repository snapshot {0} with {1} child repositories", number, folders.size()));
+		}
+		return result;
+	}
+
+	/**
+	 * Keeps the children of Update Site NSFs that are currently failing, along with their
+	 * captured metadata, so that clients can still resolve them while the source is skipped.
+	 *
+	 * @return the latest modification time of the kept metadata
+	 */
+	private static long carryOver(RepositorySnapshot previous, Set<String> contentChildren, Set<String> artifactChildren, Map<String, FrozenContent> files) {
+		Set<String> unavailable = SiteCircuitBreaker.getUnavailableNames();
+		if(unavailable.isEmpty()) {
+			return 0;
+		}
+		// Sites that served anything this time around are not carried over
+		Set<String> live = new LinkedHashSet<>();
+		for(String child : contentChildren) {
+			live.add(getTopFolder(child));
+		}
+		for(String child : artifactChildren) {
+			live.add(getTopFolder(child));
+		}
+
+		long lastMod = 0;
+		Set<String> kept = new LinkedHashSet<>();
+		for(String child : previous.getContentChildren()) {
+			String top = getTopFolder(child);
+			if(unavailable.contains(top) && !live.contains(top)) {
+				contentChildren.add(child);
+				kept.add(child);
+			}
+		}
+		for(String child : previous.getArtifactChildren()) {
+			String top = getTopFolder(child);
+			if(unavailable.contains(top) && !live.contains(top)) {
+				artifactChildren.add(child);
+				kept.add(child);
+			}
+		}
+		for(String child : kept) {
+			for(String name : METADATA_FILES) {
+				FrozenContent file = previous.getFile(child + VFS.SEPARATOR + name);
+				if(file != null) {
+					files.put(child + VFS.SEPARATOR + name, file);
+					lastMod = Math.max(lastMod, file.getLastModified());
+				}
+			}
+		}
+		if(!kept.isEmpty() && log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Keeping the captured metadata of {0} unavailable child repositories", kept.size()));
+		}
+		return lastMod;
+	}
+
+	private static String getTopFolder(String path) {
+		int slash = path.indexOf(VFS.SEPARATOR);
+		return slash < 0 ? path : path.substring(0, slash);
+	}
+
+	/**
+	 * @return the files within {@code vfs} that mark a p2 repository, by marker name
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, List<VFSFile>> findMarkers(VFS vfs) throws VFSException {
+		Map<String, List<VFSFile>> result = new LinkedHashMap<>();
+		for(String marker : MARKER_FILES) {
+			result.put(marker, (List<VFSFile>)vfs.getRoot().findFiles(marker, true));
+		}
+		return result;
+	}
+
+	private static String getScanName(VFS vfs, int index) {
+		// Include the position, since the same directory may be served by more than one filesystem
+		return StringUtil.format("{0} ({1})", LocalFilesystemFactory.describe(vfs), index); //$NON-NLS-1$
+	}
+
+	/**
+	 * Captures the content of a metadata file, re-using the previous capture when the file
+	 * is unchanged.
+	 */
+	private static FrozenContent freeze(VFSFile file, FrozenContent previous) throws IOException, VFSException {
+		long size = file.getSize();
+		long lastModified = file.getLastModificationDate();
+		if(file instanceof XMLDocumentVFSFile) {
+			// Generated metadata is already immutable, so it can be shared as-is
+			OffHeapContent content = ((XMLDocumentVFSFile)file).getContent();
+			if(previous != null && previous.getContent() == content) {
+				return previous;
+			}
+			return new FrozenContent(content, size, lastModified);
+		}
+		if(previous != null && previous.isFrom(size, lastModified)) {
+			return previous;
+		}
+		try(InputStream is = file.getInputStream(); ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+			BufferPool.copy(is, baos);
+			return new FrozenContent(OffHeapContent.store(baos.toByteArray()), size, lastModified);
+		}
+	}
+}
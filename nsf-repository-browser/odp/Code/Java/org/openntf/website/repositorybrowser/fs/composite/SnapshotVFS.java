@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.composite;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.openntf.website.repositorybrowser.fs.AggregateFilesystem;
+import org.openntf.website.repositorybrowser.fs.MimeTypeProvider;
+import org.openntf.website.repositorybrowser.fs.composite.RepositorySnapshot.FrozenContent;
+import org.openntf.website.repositorybrowser.fs.mem.DelegatingVFSFile;
+import org.openntf.website.repositorybrowser.fs.mem.MemoryVFSFolder;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+import com.ibm.commons.vfs.VFSFilter.IFilter;
+import com.ibm.commons.vfs.VFSFolder;
+import com.ibm.commons.vfs.VFSResource;
+
+/**
+ * Virtual filesystem serving each published {@link RepositorySnapshot} from the
+ * "snapshots/<i>number</i>" folder.
+ *
+ * <p>Within a snapshot, the composite files and every child's p2 metadata are served
+ * as captured. Everything else, such as the artifacts themselves, is served from the
+ * underlying filesystems at the same path.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class SnapshotVFS extends VFS implements AggregateFilesystem {
+	public static final SnapshotVFS INSTANCE = new SnapshotVFS();
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadEntries(VFS vfs, String path, List result) {
+		for(VFSResource res : getResources(path)) {
+			if(res instanceof VFSFile) {
+				result.add(doCreateFileEntry((VFSFile)res));
+			} else if(res instanceof VFSFolder) {
+				result.add(doCreateFolderEntry((VFSFolder)res));
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadResources(String path, List result, IFilter filter) {
+		for(VFSResource res : getResources(path)) {
+			if(filter == null || filter.accept(res)) {
+				result.add(res);
+			}
+		}
+	}
+
+	@Override
+	protected FileEntry doCreateFileEntry(VFSFile file) {
+		try {
+			return new SnapshotFileEntry(this, file, file.getLastModificationDate());
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected FolderEntry doCreateFolderEntry(VFSFolder folder) {
+		try {
+			return new SnapshotFolderEntry(this, folder, folder.getLastModificationDate());
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected VFSFile doCreateVFSFile(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected VFSFolder doCreateVFSFolder(String folderName) {
+		return new MemoryVFSFolder(this, folderName);
+	}
+
+	@Override
+	protected boolean doIsReadonly() throws VFSException {
+		return true;
+	}
+
+	@Override
+	protected void doClose() {
+		// NOP
+	}
+
+	@Override
+	public boolean hasEntryCache() {
+		return false;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static class SnapshotFolderEntry extends VFS.FolderEntry {
+		public SnapshotFolderEntry(VFS vfs, VFSFolder folder, long lastModified) {
+			super(vfs, folder, lastModified);
+		}
+	}
+
+	private static class SnapshotFileEntry extends VFS.FileEntry {
+		public SnapshotFileEntry(VFS vfs, VFSFile file, long lastModified) {
+			super(vfs, file, lastModified);
+		}
+	}
+
+	private List<? extends VFSResource> getResources(String path) {
+		if(!RepositorySnapshots.isPinning()) {
+			return Collections.emptyList();
+		}
+		if(StringUtil.isEmpty(path)) {
+			return Collections.singletonList(new MemoryVFSFolder(this, RepositorySnapshots.FOLDER));
+		}
+		if(StringUtil.equals(path, RepositorySnapshots.FOLDER)) {
+			return RepositorySnapshots.getPublished().stream()
+				.map(snapshot -> new MemoryVFSFolder(this, RepositorySnapshots.FOLDER + VFS.SEPARATOR + snapshot.getNumber()))
+				.collect(Collectors.toList());
+		}
+		if(!path.startsWith(RepositorySnapshots.FOLDER + VFS.SEPARATOR)) {
+			return Collections.emptyList();
+		}
+
+		String rest = path.substring(RepositorySnapshots.FOLDER.length() + 1);
+		int slash = rest.indexOf(VFS.SEPARATOR);
+		String folder = slash < 0 ? "" : rest.substring(slash + 1); //$NON-NLS-1$
+		RepositorySnapshot snapshot;
+		try {
+			snapshot = RepositorySnapshots.get(Long.parseLong(slash < 0 ? rest : rest.substring(0, slash)));
+		} catch(NumberFormatException e) {
+			return Collections.emptyList();
+		}
+		if(snapshot == null) {
+			return Collections.emptyList();
+		}
+
+		// Captured files take precedence, followed by the first filesystem to provide a name
+		Map<String, VFSResource> result = new LinkedHashMap<>();
+		for(String name : snapshot.getFolderNames(folder)) {
+			result.put(name, new MemoryVFSFolder(this, path + VFS.SEPARATOR + name));
+		}
+		for(String name : snapshot.getFileNames(folder)) {
+			FrozenContent content = snapshot.getFile(folder.isEmpty() ? name : folder + VFS.SEPARATOR + name);
+			result.put(name, new FrozenFile(this, path + VFS.SEPARATOR + name, content));
+		}
+		boolean child = snapshot.isChild(folder);
+		// The rest of each child comes from the filesystems it was captured from
+		for(VFS vfs : snapshot.getFilesystems()) {
+			VFSFolder source = folder.isEmpty() ? vfs.getRoot() : vfs.getFolder(folder);
+			for(VFSResource res : findResources(source)) {
+				String name = res.getName();
+				// Metadata that appeared in a child after the capture belongs to a later snapshot
+				if(result.containsKey(name) || (child && RepositorySnapshots.METADATA_FILES.contains(name))) {
+					continue;
+				}
+				if(res.isFolder()) {
+					result.put(name, new MemoryVFSFolder(this, path + VFS.SEPARATOR + name));
+				} else if(res.isFile()) {
+					result.put(name, new DelegatingVFSFile(this, path + VFS.SEPARATOR + name, (VFSFile)res));
+				}
+			}
+		}
+		return new ArrayList<>(result.values());
+	}
+
+	/**
+	 * A type-checked and exception-squashed wrapper for {@link VFSFolder#findResources()}
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<VFSResource> findResources(VFSFolder folder) {
+		try {
+			return (List<VFSResource>)folder.findResources();
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String getMimeType(String name) {
+		if(name.endsWith(".xml")) { //$NON-NLS-1$
+			return "text/xml"; //$NON-NLS-1$
+		} else if(name.endsWith(".jar")) { //$NON-NLS-1$
+			return "application/java-archive"; //$NON-NLS-1$
+		} else if(name.endsWith(".xz")) { //$NON-NLS-1$
+			return "application/x-xz"; //$NON-NLS-1$
+		} else if(name.endsWith(".index")) { //$NON-NLS-1$
+			return "text/plain"; //$NON-NLS-1$
+		} else {
+			return "application/octet-stream"; //$NON-NLS-1$
+		}
+	}
+
+	/**
+	 * A metadata file served as it was captured for the snapshot.
+	 */
+	private static class FrozenFile extends VFSFile implements MimeTypeProvider {
+		private final FrozenContent content;
+		private long lastModificationDate;
+
+		public FrozenFile(VFS vfs, String name, FrozenContent content) {
+			super(vfs, name);
+			this.content = content;
+			this.lastModificationDate = content.getLastModified();
+		}
+
+		@Override
+		protected InputStream doGetInputStream() throws VFSException {
+			return content.getContent().openStream();
+		}
+
+		@Override
+		protected OutputStream doGetOutputStream(boolean arg0) throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected long doGetSize() throws VFSException {
+			return content.getContent().size();
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected List doDelete() throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected boolean doExists() throws VFSException {
+			return true;
+		}
+
+		@Override
+		protected long doGetLastModificationDate() throws VFSException {
+			return lastModificationDate;
+		}
+
+		@Override
+		protected File doGetSystemFile() {
+			// Not applicable
+			return null;
+		}
+
+		@Override
+		protected boolean doIsReadOnly() throws VFSException {
+			return true;
+		}
+
+		@Override
+		protected String doRename(String newName) throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void doSetLastModificationDate(long lastModificationDate) throws VFSException {
+			this.lastModificationDate = lastModificationDate;
+		}
+
+		@Override
+		public Object getPeer() {
+			return null;
+		}
+
+		@Override
+		public String getMimeType() {
+			return SnapshotVFS.getMimeType(getName());
+		}
+	}
+}
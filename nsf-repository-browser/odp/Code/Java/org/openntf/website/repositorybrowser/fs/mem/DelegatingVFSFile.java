@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.mem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.openntf.website.repositorybrowser.fs.MimeTypeProvider;
+
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+
+/**
+ * A read-only {@link VFSFile} that presents a file from another VFS at a different path.
+ * 
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class DelegatingVFSFile extends VFSFile implements MimeTypeProvider {
+	private final VFSFile source;
+
+	public DelegatingVFSFile(VFS vfs, String name, VFSFile source) {
+		super(vfs, name);
+		this.source = source;
+	}
+
+	/**
+	 * @return the file this one presents
+	 */
+	public VFSFile getSource() {
+		return source;
+	}
+
+	@Override
+	protected InputStream doGetInputStream() throws VFSException {
+		return source.getInputStream();
+	}
+
+	@Override
+	protected OutputStream doGetOutputStream(boolean arg0) throws VFSException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected long doGetSize() throws VFSException {
+		return source.getSize();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	protected List doDelete() throws VFSException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected boolean doExists() throws VFSException {
+		return source.exists();
+	}
+
+	@Override
+	protected long doGetLastModificationDate() throws VFSException {
+		return source.getLastModificationDate();
+	}
+
+	@Override
+	protected File doGetSystemFile() {
+		return source.getSystemFile();
+	}
+
+	@Override
+	protected boolean doIsReadOnly() throws VFSException {
+		return true;
+	}
+
+	@Override
+	protected String doRename(String newName) throws VFSException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void doSetLastModificationDate(long lastModificationDate) throws VFSException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Object getPeer() {
+		return source.getPeer();
+	}
+
+	@Override
+	public String getMimeType() {
+		if(source instanceof MimeTypeProvider) {
+			return ((MimeTypeProvider)source).getMimeType();
+		}
+		File systemFile = source.getSystemFile();
+		if(systemFile != null) {
+			try {
+				String mimeType = Files.probeContentType(systemFile.toPath());
+				if(mimeType != null) {
+					return mimeType;
+				}
+			} catch(IOException e) {
+				// Fall through to the default
+			}
+		}
+		return "application/octet-stream"; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.mem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+import util.BufferPool;
+import util.Utils;
+
+/**
+ * Immutable generated content, such as a serialized content.xml, held outside of the
+ * Java heap so that large, long-lived metadata does not lengthen full collections.
+ *
+ * <p>Content is copied into a direct buffer while the total stays within the configured
+ * limit. Beyond that, it is spilled to a file and memory-mapped, leaving it to the OS to
+ * page it in and out under memory pressure. Either way, readers are served from
+ * independent slices of the shared buffer.</p>
+ *
+ * <p>Off-heap space and spill files are reclaimed once the content is no longer
+ * reachable.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class OffHeapContent {
+	private static final Logger log = Logger.getLogger(OffHeapContent.class.getPackage().getName());
+
+	/** The xsp.properties property for the total size of direct buffers, in megabytes */
+	public static final String PROP_OFF_HEAP_LIMIT = "repositorybrowser.metadata.offHeapLimit"; //$NON-NLS-1$
+	/** The xsp.properties property used to override the directory for spilled content */
+	public static final String PROP_SPILL_DIR = "repositorybrowser.metadata.spillDir"; //$NON-NLS-1$
+
+	public static final int DEFAULT_OFF_HEAP_LIMIT = 256;
+
+	private static final AtomicLong directBytes = new AtomicLong();
+	private static final AtomicLong spilledBytes = new AtomicLong();
+	private static final ReferenceQueue<OffHeapContent> QUEUE = new ReferenceQueue<>();
+	/** Holds the tracking references until their content is collected */
+	private static final Set<Tracker> TRACKERS = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Copies the given bytes into off-heap storage.
+	 *
+	 * @param content the bytes to store
+	 * @return a new {@link OffHeapContent}
+	 */
+	public static OffHeapContent store(byte[] content) {
+		reclaim();
+
+		long limit = Constants.getIntProperty(PROP_OFF_HEAP_LIMIT, DEFAULT_OFF_HEAP_LIMIT) * 1024L * 1024L;
+		if(directBytes.addAndGet(content.length) <= limit) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+			buffer.put(content);
+			buffer.flip();
+			OffHeapContent result = new OffHeapContent(buffer);
+			TRACKERS.add(new Tracker(result, content.length, false, null));
+			return result;
+		}
+		directBytes.addAndGet(-content.length);
+
+		try {
+			return spill(content);
+		} catch(IOException e) {
+			// Keeping it on the heap is better than failing the build
+			if(log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, "Unable to spill generated content to disk", e);
+			}
+			return new OffHeapContent(ByteBuffer.wrap(content));
+		}
+	}
+
+	private OffHeapContent(ByteBuffer buffer) {
+		this.buffer = buffer.asReadOnlyBuffer();
+	}
+
+	public int size() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * @return a new stream reading from an independent slice of the content
+	 */
+	public InputStream openStream() {
+		ByteBuffer slice = buffer.duplicate();
+		return new InputStream() {
+			@Override
+			public int read() {
+				return slice.hasRemaining() ? slice.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if(len == 0) {
+					return 0;
+				}
+				if(!slice.hasRemaining()) {
+					return -1;
+				}
+				int count = Math.min(len, slice.remaining());
+				slice.get(b, off, count);
+				return count;
+			}
+
+			@Override
+			public long skip(long n) {
+				int count = (int)Math.max(0, Math.min(n, slice.remaining()));
+				slice.position(slice.position() + count);
+				return count;
+			}
+
+			@Override
+			public int available() {
+				return slice.remaining();
+			}
+		};
+	}
+
+	/**
+	 * Writes the full content to the stream through a pooled buffer. The stream is not
+	 * closed.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		writeTo(os, 0, size());
+	}
+
+	/**
+	 * Writes part of the content to the stream through a pooled buffer. The stream is not
+	 * closed.
+	 *
+	 * @param os the stream to write to
+	 * @param offset the position of the first byte to write
+	 * @param length the number of bytes to write
+	 */
+	public void writeTo(OutputStream os, int offset, int length) throws IOException {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		byte[] chunk = BufferPool.INSTANCE.acquire();
+		try {
+			while(slice.hasRemaining()) {
+				int count = Math.min(chunk.length, slice.remaining());
+				slice.get(chunk, 0, count);
+				os.write(chunk, 0, count);
+			}
+		} finally {
+			BufferPool.INSTANCE.release(chunk);
+		}
+	}
+
+	/**
+	 * @return the storage counters as a map, suitable for JSON serialization
+	 */
+	public static Map<String, Object> getStats() {
+		reclaim();
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("directBytes", directBytes.get()); //$NON-NLS-1$
+		result.put("spilledBytes", spilledBytes.get()); //$NON-NLS-1$
+		result.put("entries", TRACKERS.size()); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static OffHeapContent spill(byte[] content) throws IOException {
+		Path file = Files.createTempFile(Files.createDirectories(getSpillDirectory()), "metadata", ".dat"); //$NON-NLS-1$ //$NON-NLS-2$
+		ByteBuffer mapped;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer source = ByteBuffer.wrap(content);
+			while(source.hasRemaining()) {
+				channel.write(source);
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, content.length);
+		}
+
+		// The mapping stays valid after deletion on most platforms; Windows refuses, so the
+		//   file is deleted when the content is collected instead
+		Path remaining = null;
+		try {
+			Files.delete(file);
+		} catch(IOException e) {
+			remaining = file;
+		}
+
+		spilledBytes.addAndGet(content.length);
+		OffHeapContent result = new OffHeapContent(mapped);
+		TRACKERS.add(new Tracker(result, content.length, true, remaining));
+		if(log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Spilled {0} bytes of generated content to disk", content.length));
+		}
+		return result;
+	}
+
+	private static Path getSpillDirectory() {
+		String dir = Constants.getProperty(PROP_SPILL_DIR, null);
+		return StringUtil.isEmpty(dir) ? Utils.getTempDirectory().resolve("repositorybrowser-metadata") : Paths.get(dir); //$NON-NLS-1$
+	}
+
+	/**
+	 * Credits back the space used by content that has been collected.
+	 */
+	private static void reclaim() {
+		Reference<? extends OffHeapContent> ref;
+		while((ref = QUEUE.poll()) != null) {
+			Tracker tracker = (Tracker)ref;
+			TRACKERS.remove(tracker);
+			if(!tracker.spilled) {
+				directBytes.addAndGet(-tracker.size);
+			} else {
+				spilledBytes.addAndGet(-tracker.size);
+				if(tracker.file != null) {
+					try {
+						Files.deleteIfExists(tracker.file);
+					} catch(IOException e) {
+						// The mapping may not be released yet - the OS temp cleanup will get it
+					}
+				}
+			}
+		}
+	}
+
+	private static class Tracker extends PhantomReference<OffHeapContent> {
+		private final long size;
+		private final boolean spilled;
+		private final Path file;
+
+		public Tracker(OffHeapContent content, long size, boolean spilled, Path file) {
+			super(content, QUEUE);
+			this.size = size;
+			this.spilled = spilled;
+			this.file = file;
+		}
+	}
+}
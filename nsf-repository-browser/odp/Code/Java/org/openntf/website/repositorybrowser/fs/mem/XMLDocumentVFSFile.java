@@ -15,7 +15,6 @@
  */
 package org.openntf.website.repositorybrowser.fs.mem;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -40,7 +39,7 @@ import com.ibm.commons.xml.XMLException;
  * @since 2.0.0
  */
 public class XMLDocumentVFSFile extends VFSFile implements MimeTypeProvider {
-	private final byte[] content;
+	private final OffHeapContent content;
 	private long lastModificationDate;
 	
 	public XMLDocumentVFSFile(VFS vfs, String name, Document xmlDoc, long lastModificationDate) throws XMLException, IOException {
@@ -49,13 +48,50 @@ public class XMLDocumentVFSFile extends VFSFile implements MimeTypeProvider {
 		
 		try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
 			DOMUtil.serialize(baos, xmlDoc, Format.defaultFormat);
-			this.content = baos.toByteArray();
+			this.content = OffHeapContent.store(baos.toByteArray());
 		}
 	}
+	
+	/**
+	 * Creates a new file around already-serialized XML content.
+	 * 
+	 * @param vfs the owning VFS
+	 * @param name the path of the file within the VFS
+	 * @param content the serialized XML document
+	 * @param lastModificationDate the last modification time of the content
+	 * @since 2.1.0
+	 */
+	public XMLDocumentVFSFile(VFS vfs, String name, byte[] content, long lastModificationDate) {
+		this(vfs, name, OffHeapContent.store(content), lastModificationDate);
+	}
+	
+	/**
+	 * Creates a new file around stored XML content, such as content shared from another
+	 * VFS instance.
+	 * 
+	 * @param vfs the owning VFS
+	 * @param name the path of the file within the VFS
+	 * @param content the serialized XML document
+	 * @param lastModificationDate the last modification time of the content
+	 * @since 2.1.0
+	 */
+	public XMLDocumentVFSFile(VFS vfs, String name, OffHeapContent content, long lastModificationDate) {
+		super(vfs, name);
+		this.lastModificationDate = lastModificationDate;
+		this.content = content;
+	}
+	
+	/**
+	 * @return the serialized XML content of this file
+	 * @since 2.1.0
+	 */
+	public OffHeapContent getContent() {
+		return content;
+	}
 
 	@Override
 	protected InputStream doGetInputStream() throws VFSException {
-		return new ByteArrayInputStream(content);
+		return content.openStream();
 	}
 
 	@Override
@@ -65,7 +101,7 @@ public class XMLDocumentVFSFile extends VFSFile implements MimeTypeProvider {
 
 	@Override
 	protected long doGetSize() throws VFSException {
-		return content.length;
+		return content.size();
 	}
 
 	@SuppressWarnings("rawtypes")
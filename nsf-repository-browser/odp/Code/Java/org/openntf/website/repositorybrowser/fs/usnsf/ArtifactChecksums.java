@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+import lotus.domino.Database;
+import lotus.domino.Document;
+import lotus.domino.EmbeddedObject;
+import lotus.domino.NotesException;
+import lotus.domino.RichTextItem;
+import util.BufferPool;
+import util.NotesThreads;
+
+/**
+ * Computes SHA-256 checksums of Update Site NSF attachments on a background pool and
+ * stores them in the catalog, so that artifacts.xml can publish them once available
+ * without delaying startup or indexing.
+ *
+ * <p>Each attachment is hashed once per modification time. When a pass adds checksums,
+ * the generated metadata for the database is invalidated so that the next request picks
+ * them up. Attachments that cannot be read are remembered until their document changes,
+ * so that they do not cause a new pass on every catalog load.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+enum ArtifactChecksums {
+	;
+	private static final Logger log = Logger.getLogger(ArtifactChecksums.class.getPackage().getName());
+
+	/** The number of threads used to compute artifact checksums */
+	public static final String PROP_CHECKSUM_THREADS = "repositorybrowser.usnsf.checksumThreads"; //$NON-NLS-1$
+	/** The artifact property used to publish the checksum, as read by p2 */
+	public static final String PROPERTY_SHA256 = "download.checksum.sha-256"; //$NON-NLS-1$
+
+	private static final int DEFAULT_CHECKSUM_THREADS = 2;
+
+	private static ExecutorService pool;
+	/** Replica IDs with a pass queued or running, so that each database has at most one */
+	private static final Set<String> RUNNING = ConcurrentHashMap.newKeySet();
+	/** The modification time at which each unreadable attachment failed, by replica ID and then UNID */
+	private static final Map<String, Map<String, Long>> FAILED = new ConcurrentHashMap<>();
+
+	/**
+	 * Queues a pass over the catalog's attachments if any lack a checksum.
+	 *
+	 * <p>This must be called on a thread with an XPages context or from within a task
+	 * created by {@link NotesThreads#withSession}.</p>
+	 *
+	 * @param database the Update Site NSF the catalog was built from
+	 * @param catalog the catalog to fill in
+	 */
+	public static void schedule(Database database, UpdateSiteCatalog catalog) throws NotesException {
+		String replicaId = catalog.getReplicaId();
+		Map<String, Long> failed = FAILED.getOrDefault(replicaId, Collections.emptyMap());
+		if(!catalog.isMissingChecksums((unid, lastModified) -> lastModified.equals(failed.get(unid)))) {
+			return;
+		}
+		if(!RUNNING.add(replicaId)) {
+			return;
+		}
+		String server = database.getServer();
+		String filePath = database.getFilePath();
+		try {
+			getPool().submit(NotesThreads.withSession(session -> {
+				try {
+					Database updateSiteNsf = session.getDatabase(server, filePath);
+					try {
+						compute(updateSiteNsf, catalog);
+					} finally {
+						updateSiteNsf.recycle();
+					}
+				} catch(Throwable t) {
+					if(log.isLoggable(Level.WARNING)) {
+						log.log(Level.WARNING, StringUtil.format("Encountered exception computing checksums for {0}", filePath), t);
+					}
+				} finally {
+					RUNNING.remove(replicaId);
+				}
+				return null;
+			}));
+		} catch(RuntimeException e) {
+			RUNNING.remove(replicaId);
+			throw e;
+		}
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static void compute(Database database, UpdateSiteCatalog catalog) throws NotesException {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		Map<String, Long> previousFailures = FAILED.getOrDefault(catalog.getReplicaId(), Collections.emptyMap());
+		Map<String, Long> failed = new HashMap<>();
+		for(PluginEntry plugin : catalog.getPlugins()) {
+			if(computeChecksum(database, catalog, plugin.getUnid(), plugin.getLastModified(), UpdateSiteNSFVFSPlugin.ITEM_FILE, previousFailures, failed)) {
+				count++;
+			}
+		}
+		for(FeatureEntry feature : catalog.getFeatures()) {
+			if(computeChecksum(database, catalog, feature.getUnid(), feature.getLastModified(), UpdateSiteNSFVFSFeature.ITEM_FILE, previousFailures, failed)) {
+				count++;
+			}
+		}
+		// Replacing the map drops failures for documents that have since been removed
+		FAILED.put(catalog.getReplicaId(), failed);
+		if(count == 0) {
+			return;
+		}
+
+		// A newer catalog may have replaced this one while the pass was running
+		UpdateSiteCatalog current = UpdateSiteNSFVFS.getCatalog(catalog.getReplicaId());
+		if(current != null && current != catalog) {
+			current.adoptChecksums(catalog);
+		}
+		UpdateSiteCatalogSnapshots.save(current == null ? catalog : current);
+		UpdateSiteNSFMetadata.invalidate(catalog.getReplicaId());
+
+		if(log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Computed {0} artifact checksums for {1} in {2}ms", count, database.getFilePath(), System.currentTimeMillis() - start));
+		}
+	}
+
+	/**
+	 * @param previousFailures the modification times at which attachments failed in earlier passes
+	 * @param failed collects the modification times at which attachments fail in this pass
+	 * @return whether a new checksum was stored
+	 */
+	private static boolean computeChecksum(Database database, UpdateSiteCatalog catalog, String unid, long lastModified, String itemName, Map<String, Long> previousFailures, Map<String, Long> failed) {
+		if(catalog.getChecksum(unid, lastModified) != null) {
+			return false;
+		}
+		Long previousFailure = previousFailures.get(unid);
+		if(previousFailure != null && previousFailure == lastModified) {
+			failed.put(unid, lastModified);
+			return false;
+		}
+		try {
+			Document doc = database.getDocumentByUNID(unid);
+			try {
+				RichTextItem body = (RichTextItem)doc.getFirstItem(itemName);
+				if(body == null) {
+					failed.put(unid, lastModified);
+					return false;
+				}
+				List<?> objects = body.getEmbeddedObjects();
+				if(objects.isEmpty()) {
+					failed.put(unid, lastModified);
+					return false;
+				}
+				EmbeddedObject obj = (EmbeddedObject)objects.get(0);
+				try(InputStream is = obj.getInputStream()) {
+					catalog.putChecksum(unid, lastModified, digest(is));
+					return true;
+				} finally {
+					obj.recycle();
+				}
+			} finally {
+				doc.recycle();
+			}
+		} catch(NotesException | IOException e) {
+			// Most likely deleted since the catalog was built - the next catalog won't include it
+			if(log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, StringUtil.format("Unable to compute checksum for document {0}", unid), e);
+			}
+			failed.put(unid, lastModified);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the hex-encoded SHA-256 digest of the remaining content of the stream
+	 */
+	static String digest(InputStream is) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] buffer = BufferPool.INSTANCE.acquire();
+		try {
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			BufferPool.INSTANCE.release(buffer);
+		}
+
+		StringBuilder result = new StringBuilder();
+		for(byte b : digest.digest()) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16));
+			result.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if(pool == null) {
+			int threads = Math.max(1, Constants.getIntProperty(PROP_CHECKSUM_THREADS, DEFAULT_CHECKSUM_THREADS));
+			pool = NotesThreads.newFixedPool(ArtifactChecksums.class.getSimpleName(), threads);
+		}
+		return pool;
+	}
+}
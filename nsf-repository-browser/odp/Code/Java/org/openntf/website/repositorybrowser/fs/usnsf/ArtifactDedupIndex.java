@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+
+import com.ibm.commons.util.StringUtil;
+
+import util.NotesThreads;
+
+/**
+ * A content-addressed index of the plugins and features served from every Update Site
+ * NSF and the local repository directories, keyed by ID, version and SHA-256 checksum.
+ *
+ * <p>Identical artifacts share a single scratch extraction via their key, and the
+ * index reports how much space is taken up by duplicate copies. Artifacts whose checksum
+ * has not yet been computed are counted but cannot be matched.</p>
+ *
+ * <p>Local files are hashed on a background thread, and each index uses the results of
+ * the last completed pass; the report notes when a pass is still underway.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class ArtifactDedupIndex {
+	private static final Logger log = Logger.getLogger(ArtifactDedupIndex.class.getPackage().getName());
+
+	/** The maximum number of duplicate groups listed in the report */
+	private static final int REPORT_LIMIT = 100;
+
+	/** The minimum time, in milliseconds, between passes over the local repository directories */
+	private static final long LOCAL_REFRESH_INTERVAL = 60 * 1000;
+
+	/** Checksums of local files, re-used while their size and modification time match */
+	private static final Map<Path, LocalChecksum> LOCAL_CHECKSUMS = new ConcurrentHashMap<>();
+	/** Whether a pass over the local files is queued or running */
+	private static final AtomicBoolean LOCAL_HASHING = new AtomicBoolean();
+	/** The local artifacts with their checksums as of the last completed pass, or {@code null} before the first */
+	private static volatile Map<LocalArtifact, LocalChecksum> localHashes;
+	private static volatile long localHashed;
+	private static ExecutorService hashPool;
+
+	private final Map<String, List<Location>> artifacts = new LinkedHashMap<>();
+	private int total;
+	private int unhashed;
+	private boolean localPending;
+
+	/**
+	 * Builds an index of every loaded Update Site NSF catalog and the local repository
+	 * directories, as of the last completed pass over the local files. This must be called
+	 * on a thread with an XPages context, so that a new pass can be queued.
+	 *
+	 * @return a new {@link ArtifactDedupIndex}
+	 */
+	public static ArtifactDedupIndex create() {
+		ArtifactDedupIndex index = new ArtifactDedupIndex();
+		for(UpdateSiteCatalog catalog : UpdateSiteNSFVFS.getCatalogs()) {
+			String repository = catalog.getTitle();
+			for(PluginEntry plugin : catalog.getPlugins()) {
+				index.add(plugin.getId(), plugin.getVersion(), catalog.getChecksum(plugin.getUnid(), plugin.getLastModified()),
+					plugin.getSize(), repository + "/plugins"); //$NON-NLS-1$
+			}
+			for(FeatureEntry feature : catalog.getFeatures()) {
+				index.add(feature.getId(), feature.getVersion(), catalog.getChecksum(feature.getUnid(), feature.getLastModified()),
+					feature.getSize(), repository + "/features"); //$NON-NLS-1$
+			}
+		}
+		index.addLocal();
+		return index;
+	}
+
+	/**
+	 * Builds the key shared by identical artifacts.
+	 *
+	 * @return the key, or {@code null} if the checksum is not known
+	 */
+	public static String key(String id, String version, String checksum) {
+		if(StringUtil.isEmpty(checksum)) {
+			return null;
+		}
+		return id + '_' + version + '#' + checksum;
+	}
+
+	private ArtifactDedupIndex() {
+	}
+
+	/**
+	 * @return the report as a map, suitable for JSON serialization
+	 */
+	public Map<String, Object> toMap() {
+		List<Map.Entry<String, List<Location>>> duplicates = artifacts.entrySet().stream()
+			.filter(e -> e.getValue().size() > 1)
+			.sorted(Comparator.comparingLong((Map.Entry<String, List<Location>> e) -> getDuplicatedBytes(e.getValue())).reversed())
+			.collect(Collectors.toList());
+
+		long duplicatedBytes = duplicates.stream().mapToLong(e -> getDuplicatedBytes(e.getValue())).sum();
+
+		List<Map<String, Object>> groups = new ArrayList<>();
+		for(Map.Entry<String, List<Location>> entry : duplicates.subList(0, Math.min(REPORT_LIMIT, duplicates.size()))) {
+			Location first = entry.getValue().get(0);
+			Map<String, Object> group = new LinkedHashMap<>();
+			group.put("id", first.id); //$NON-NLS-1$
+			group.put("version", first.version); //$NON-NLS-1$
+			group.put("checksum", first.checksum); //$NON-NLS-1$
+			group.put("size", first.size); //$NON-NLS-1$
+			group.put("copies", entry.getValue().size()); //$NON-NLS-1$
+			group.put("duplicatedBytes", getDuplicatedBytes(entry.getValue())); //$NON-NLS-1$
+			group.put("locations", entry.getValue().stream().map(l -> l.location).collect(Collectors.toList())); //$NON-NLS-1$
+			groups.add(group);
+		}
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("artifacts", total); //$NON-NLS-1$
+		result.put("unhashed", unhashed); //$NON-NLS-1$
+		result.put("localPending", localPending); //$NON-NLS-1$
+		result.put("distinct", artifacts.size()); //$NON-NLS-1$
+		result.put("duplicateGroups", duplicates.size()); //$NON-NLS-1$
+		result.put("duplicatedBytes", duplicatedBytes); //$NON-NLS-1$
+		result.put("groups", groups); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private void add(String id, String version, String checksum, long size, String location) {
+		total++;
+		String key = key(id, version, checksum);
+		if(key == null) {
+			unhashed++;
+			return;
+		}
+		artifacts.computeIfAbsent(key, k -> new ArrayList<>()).add(new Location(id, version, checksum, size, location));
+	}
+
+	/**
+	 * Adds the JARs found in any "plugins" or "features" directory beneath the local
+	 * repository directories, as hashed by the last completed pass, and queues a new pass
+	 * if the last one is out of date.
+	 */
+	private void addLocal() {
+		if(System.currentTimeMillis() - localHashed > LOCAL_REFRESH_INTERVAL) {
+			scheduleLocalHashing();
+		}
+		Map<LocalArtifact, LocalChecksum> hashed = localHashes;
+		localPending = LOCAL_HASHING.get();
+		if(hashed == null) {
+			return;
+		}
+		for(Map.Entry<LocalArtifact, LocalChecksum> entry : hashed.entrySet()) {
+			LocalArtifact artifact = entry.getKey();
+			LocalChecksum checksum = entry.getValue();
+			add(artifact.getId(), artifact.getVersion(), checksum.checksum, checksum.size, artifact.getLocation());
+		}
+	}
+
+	private static void scheduleLocalHashing() {
+		if(!LOCAL_HASHING.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			getHashPool().submit(NotesThreads.withSession(session -> {
+				try {
+					hashLocal();
+				} catch(Throwable t) {
+					if(log.isLoggable(Level.WARNING)) {
+						log.log(Level.WARNING, "Encountered exception hashing local repository files", t);
+					}
+				} finally {
+					localHashed = System.currentTimeMillis();
+					LOCAL_HASHING.set(false);
+				}
+				return null;
+			}));
+		} catch(RuntimeException e) {
+			LOCAL_HASHING.set(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Scans the local repository directories in parallel, then hashes any new or changed
+	 * files on the calling thread and publishes the result.
+	 */
+	private static void hashLocal() {
+		Map<LocalArtifact, LocalChecksum> hashed = new LinkedHashMap<>();
+		for(LocalArtifact artifact : LocalArtifact.scanAll()) {
+			LocalChecksum checksum = getLocalChecksum(artifact.getFile());
+			if(checksum != null) {
+				hashed.put(artifact, checksum);
+			}
+		}
+		// Forget files that have been deleted, rather than any that a timed-out scan missed
+		LOCAL_CHECKSUMS.keySet().removeIf(file -> !Files.isRegularFile(file));
+		localHashes = hashed;
+	}
+
+	private static LocalChecksum getLocalChecksum(Path file) {
+		try {
+			long size = Files.size(file);
+			long lastModified = Files.getLastModifiedTime(file).toMillis();
+			LocalChecksum cached = LOCAL_CHECKSUMS.get(file);
+			if(cached != null && cached.size == size && cached.lastModified == lastModified) {
+				return cached;
+			}
+			try(InputStream is = Files.newInputStream(file)) {
+				LocalChecksum result = new LocalChecksum(size, lastModified, ArtifactChecksums.digest(is));
+				LOCAL_CHECKSUMS.put(file, result);
+				return result;
+			}
+		} catch(IOException e) {
+			if(log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, StringUtil.format("Unable to hash local file {0}", file), e);
+			}
+			return null;
+		}
+	}
+
+	private static synchronized ExecutorService getHashPool() {
+		if(hashPool == null) {
+			hashPool = NotesThreads.newFixedPool(ArtifactDedupIndex.class.getSimpleName(), 1);
+		}
+		return hashPool;
+	}
+
+	private static long getDuplicatedBytes(List<Location> locations) {
+		return locations.get(0).size * (locations.size() - 1);
+	}
+
+	private static class Location {
+		private final String id;
+		private final String version;
+		private final String checksum;
+		private final long size;
+		private final String location;
+
+		public Location(String id, String version, String checksum, long size, String location) {
+			this.id = id;
+			this.version = version;
+			this.checksum = checksum;
+			this.size = size;
+			this.location = location;
+		}
+	}
+
+	private static class LocalChecksum {
+		private final long size;
+		private final long lastModified;
+		private final String checksum;
+
+		public LocalChecksum(long size, long lastModified, String checksum) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+	}
+}
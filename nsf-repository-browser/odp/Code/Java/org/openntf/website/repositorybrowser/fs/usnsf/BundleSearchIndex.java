@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.website.repositorybrowser.fs.VersionRange;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+
+import util.NotesThreads;
+
+/**
+ * An in-memory inverted index of the plugins and features in every loaded Update Site
+ * NSF catalog and the local repository directories, supporting exact and prefix searches
+ * filtered by version range.
+ *
+ * <p>Searches queue a background refresh when the index is out of date and are answered
+ * from the index as last published, so only the very first search waits for it to be
+ * built. Catalogs are compared entry by entry, and since incremental catalog updates keep
+ * the entries of unchanged documents, only added and removed documents are re-indexed.
+ * Catalogs that are no longer loaded are dropped. The local directories are rescanned at
+ * most once a minute.</p>
+ *
+ * <p>Local artifacts are indexed by ID and version only, as their manifests are not
+ * read.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class BundleSearchIndex extends CatalogIndex<BundleSearchIndex.Hit> {
+	private static final Logger log = Logger.getLogger(BundleSearchIndex.class.getPackage().getName());
+
+	/** The searchable fields */
+	public enum Field {
+		/** Bundle and feature IDs */
+		ID,
+		/** Packages exported by plugins */
+		EXPORT,
+		/** Packages imported by plugins */
+		IMPORT,
+		/** Plugin provider names */
+		PROVIDER
+	}
+
+	public static final BundleSearchIndex INSTANCE = new BundleSearchIndex();
+
+	private static final String LOCAL_SOURCE = "local"; //$NON-NLS-1$
+	private static final long LOCAL_REFRESH_INTERVAL = 60 * 1000;
+
+	private final Map<Field, NavigableMap<String, Set<Hit>>> postings = new EnumMap<>(Field.class);
+	private volatile long localScanned;
+	private volatile boolean refreshed;
+	private Future<?> refreshTask;
+	private ExecutorService refreshPool;
+
+	private BundleSearchIndex() {
+		for(Field field : Field.values()) {
+			postings.put(field, new TreeMap<>());
+		}
+	}
+
+	/**
+	 * Finds the plugins and features matching the given term.
+	 *
+	 * @param term the term to search for, matched case-insensitively
+	 * @param field the field to search, or {@code null} to search all fields
+	 * @param prefix whether {@code term} should match as a prefix rather than exactly
+	 * @param type {@code "plugin"} or {@code "feature"} to limit the results, or {@code null}
+	 * @param range the versions to include
+	 * @return the matching hits, ordered by ID and then by descending version
+	 */
+	public List<Hit> search(String term, Field field, boolean prefix, String type, VersionRange range) {
+		Future<?> refresh = scheduleRefresh();
+		if(refresh != null && !refreshed) {
+			try {
+				refresh.get();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch(ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		String key = term.toLowerCase(Locale.ENGLISH);
+		Set<Hit> matches = new HashSet<>();
+		lock.readLock().lock();
+		try {
+			for(Field f : field == null ? Arrays.asList(Field.values()) : Collections.singletonList(field)) {
+				NavigableMap<String, Set<Hit>> index = postings.get(f);
+				if(prefix) {
+					for(Set<Hit> hits : index.subMap(key, true, key + Character.MAX_VALUE, true).values()) {
+						matches.addAll(hits);
+					}
+				} else {
+					matches.addAll(index.getOrDefault(key, Collections.emptySet()));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		List<Hit> result = new ArrayList<>();
+		for(Hit hit : matches) {
+			if(type != null && !type.equals(hit.type)) {
+				continue;
+			}
+			if(!range.includes(hit.version)) {
+				continue;
+			}
+			result.add(hit);
+		}
+		result.sort(Comparator.comparing((Hit h) -> h.id)
+			.thenComparing((a, b) -> VersionRange.compare(b.version, a.version))
+			.thenComparing(h -> h.path));
+		return result;
+	}
+
+	/**
+	 * A plugin or feature found by a search.
+	 */
+	public static class Hit {
+		private final String type;
+		private final String id;
+		private final String version;
+		private final String repository;
+		private final String path;
+		private final String provider;
+		private final Map<Field, Set<String>> terms = new EnumMap<>(Field.class);
+
+		private Hit(String type, String id, String version, String repository, String path, String provider) {
+			this.type = type;
+			this.id = id;
+			this.version = version;
+			this.repository = repository;
+			this.path = path;
+			this.provider = provider;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the path to the artifact within the browser's combined filesystems
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return the hit as a map, suitable for JSON serialization
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("type", type); //$NON-NLS-1$
+			result.put("id", id); //$NON-NLS-1$
+			result.put("version", version); //$NON-NLS-1$
+			result.put("repository", repository); //$NON-NLS-1$
+			result.put("path", path); //$NON-NLS-1$
+			if(provider != null) {
+				result.put("provider", provider); //$NON-NLS-1$
+			}
+			return result;
+		}
+
+		private void addTerm(Field field, String term) {
+			if(StringUtil.isNotEmpty(term)) {
+				terms.computeIfAbsent(field, f -> new HashSet<>()).add(term.toLowerCase(Locale.ENGLISH));
+			}
+		}
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	/**
+	 * Queues a refresh of the index if it is out of date and one is not already running.
+	 * This must be called on a thread with an XPages context.
+	 *
+	 * @return the queued or running refresh, or {@code null} if the index is up to date
+	 */
+	private synchronized Future<?> scheduleRefresh() {
+		if(refreshTask != null && !refreshTask.isDone()) {
+			return refreshTask;
+		}
+		if(!isStale()) {
+			return null;
+		}
+		refreshTask = getRefreshPool().submit(NotesThreads.withSession(session -> {
+			try {
+				refresh();
+			} catch(Throwable t) {
+				if(log.isLoggable(Level.WARNING)) {
+					log.log(Level.WARNING, "Encountered exception refreshing the bundle search index", t);
+				}
+			} finally {
+				refreshed = true;
+			}
+			return null;
+		}));
+		return refreshTask;
+	}
+
+	private boolean isStale() {
+		return System.currentTimeMillis() - localScanned > LOCAL_REFRESH_INTERVAL || isCatalogsStale();
+	}
+
+	/**
+	 * Re-indexes any catalogs that have changed since they were last indexed, drops those
+	 * that are no longer loaded and, when due, rescans the local repository directories.
+	 */
+	private void refresh() {
+		refreshCatalogs();
+		if(System.currentTimeMillis() - localScanned > LOCAL_REFRESH_INTERVAL) {
+			indexLocal();
+			localScanned = System.currentTimeMillis();
+		}
+	}
+
+	private void indexLocal() {
+		Map<Object, Hit> previous = getSource(LOCAL_SOURCE);
+		Map<Object, Hit> current = new HashMap<>();
+		List<Hit> added = new ArrayList<>();
+		for(LocalArtifact artifact : LocalArtifact.scanAll()) {
+			String path = artifact.getLocation() + VFS.SEPARATOR + artifact.getFile().getFileName();
+			Hit hit = previous.get(path);
+			if(hit == null) {
+				hit = new Hit(artifact.isFeature() ? "feature" : "plugin", artifact.getId(), artifact.getVersion(), LOCAL_SOURCE, path, null); //$NON-NLS-1$ //$NON-NLS-2$
+				hit.addTerm(Field.ID, artifact.getId());
+				added.add(hit);
+			}
+			current.put(path, hit);
+		}
+		List<Hit> removed = new ArrayList<>();
+		for(Map.Entry<Object, Hit> entry : previous.entrySet()) {
+			if(!current.containsKey(entry.getKey())) {
+				removed.add(entry.getValue());
+			}
+		}
+		if(!added.isEmpty() || !removed.isEmpty()) {
+			apply(LOCAL_SOURCE, current, added, removed);
+		}
+	}
+
+	@Override
+	protected Hit create(PluginEntry plugin, String replicaId, String repository) {
+		String path = repository + VFS.SEPARATOR + "plugins" + VFS.SEPARATOR + plugin.getId() + '_' + plugin.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+		Hit hit = new Hit("plugin", plugin.getId(), plugin.getVersion(), repository, path, plugin.getProviderName()); //$NON-NLS-1$
+		hit.addTerm(Field.ID, plugin.getId());
+		hit.addTerm(Field.PROVIDER, plugin.getProviderName());
+		for(PackageInfo pkg : plugin.getImportedPackages()) {
+			hit.addTerm(Field.IMPORT, pkg.getName());
+		}
+		for(PackageInfo pkg : plugin.getExportedPackages()) {
+			hit.addTerm(Field.EXPORT, pkg.getName());
+		}
+		return hit;
+	}
+
+	@Override
+	protected Hit create(FeatureEntry feature, String replicaId, String repository) {
+		String path = repository + VFS.SEPARATOR + "features" + VFS.SEPARATOR + feature.getId() + '_' + feature.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+		Hit hit = new Hit("feature", feature.getId(), feature.getVersion(), repository, path, null); //$NON-NLS-1$
+		hit.addTerm(Field.ID, feature.getId());
+		return hit;
+	}
+
+	@Override
+	protected void add(Hit hit) {
+		for(Map.Entry<Field, Set<String>> terms : hit.terms.entrySet()) {
+			NavigableMap<String, Set<Hit>> index = postings.get(terms.getKey());
+			for(String term : terms.getValue()) {
+				index.computeIfAbsent(term, t -> new HashSet<>()).add(hit);
+			}
+		}
+	}
+
+	@Override
+	protected void remove(Hit hit) {
+		for(Map.Entry<Field, Set<String>> terms : hit.terms.entrySet()) {
+			NavigableMap<String, Set<Hit>> index = postings.get(terms.getKey());
+			for(String term : terms.getValue()) {
+				Set<Hit> posting = index.get(term);
+				if(posting != null) {
+					posting.remove(hit);
+					if(posting.isEmpty()) {
+						index.remove(term);
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized ExecutorService getRefreshPool() {
+		if(refreshPool == null) {
+			refreshPool = NotesThreads.newFixedPool(BundleSearchIndex.class.getSimpleName(), 1);
+		}
+		return refreshPool;
+	}
+}
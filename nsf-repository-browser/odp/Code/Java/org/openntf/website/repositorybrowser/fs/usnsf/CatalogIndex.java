@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * The shared basis of the in-memory structures derived from the loaded Update Site NSF
+ * catalogs, which keeps them up to date by diffing each catalog entry by entry.
+ *
+ * <p>Incremental catalog updates keep the entries of unchanged documents, so comparing
+ * entries by identity finds exactly the documents that were added or removed; only those
+ * are passed to {@link #add} and {@link #remove}. Catalogs that are no longer loaded are
+ * removed entirely.</p>
+ *
+ * @param <T> the type of value derived from each catalog entry
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+abstract class CatalogIndex<T> {
+	private static final Logger log = Logger.getLogger(CatalogIndex.class.getPackage().getName());
+
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** The values for each source, by the catalog entry or other key they came from */
+	private final Map<String, Map<Object, T>> sources = new HashMap<>();
+	/** The catalog last applied for each replica ID */
+	private final Map<String, UpdateSiteCatalog> indexedCatalogs = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the number of values across all sources
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return sources.values().stream().mapToInt(Map::size).sum();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return whether any catalog has been loaded, replaced or unloaded since it was last
+	 *         applied
+	 */
+	protected boolean isCatalogsStale() {
+		Collection<UpdateSiteCatalog> catalogs = UpdateSiteNSFVFS.getCatalogs();
+		if(catalogs.size() != indexedCatalogs.size()) {
+			return true;
+		}
+		for(UpdateSiteCatalog catalog : catalogs) {
+			if(indexedCatalogs.get(catalog.getReplicaId()) != catalog) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Applies any catalogs that have changed since they were last applied and removes those
+	 * that are no longer loaded. Callers must not run this concurrently.
+	 */
+	protected void refreshCatalogs() {
+		Set<String> loaded = new HashSet<>();
+		for(UpdateSiteCatalog catalog : UpdateSiteNSFVFS.getCatalogs()) {
+			loaded.add(catalog.getReplicaId());
+			if(indexedCatalogs.get(catalog.getReplicaId()) != catalog) {
+				applyCatalog(catalog);
+			}
+		}
+		for(String replicaId : new ArrayList<>(indexedCatalogs.keySet())) {
+			if(!loaded.contains(replicaId)) {
+				apply(replicaId, null, Collections.emptyList(), getSource(replicaId).values());
+				indexedCatalogs.remove(replicaId);
+			}
+		}
+	}
+
+	/**
+	 * @param source the source name
+	 * @return the values last applied for the source, by the key they came from
+	 */
+	protected Map<Object, T> getSource(String source) {
+		lock.readLock().lock();
+		try {
+			return sources.getOrDefault(source, Collections.emptyMap());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the values for a source, adding and removing the given values under the
+	 * write lock.
+	 *
+	 * @param source the source name
+	 * @param values the new values for the source, or {@code null} to remove the source
+	 * @param added the values not present in the previous version of the source
+	 * @param removed the values no longer present in the source
+	 */
+	protected void apply(String source, Map<Object, T> values, Collection<T> added, Collection<T> removed) {
+		lock.writeLock().lock();
+		try {
+			for(T value : removed) {
+				remove(value);
+			}
+			for(T value : added) {
+				add(value);
+			}
+			if(values == null) {
+				sources.remove(source);
+			} else {
+				sources.put(source, values);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Creates the value for a plugin in a catalog.
+	 */
+	protected abstract T create(PluginEntry plugin, String replicaId, String repository);
+
+	/**
+	 * Creates the value for a feature in a catalog.
+	 */
+	protected abstract T create(FeatureEntry feature, String replicaId, String repository);
+
+	/**
+	 * Adds a value to the derived structures. Called with the write lock held.
+	 */
+	protected abstract void add(T value);
+
+	/**
+	 * Removes a value from the derived structures. Called with the write lock held.
+	 */
+	protected abstract void remove(T value);
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private void applyCatalog(UpdateSiteCatalog catalog) {
+		String replicaId = catalog.getReplicaId();
+		String siteName = UpdateSiteNSFVFS.getSiteName(replicaId);
+		String repository = StringUtil.isEmpty(siteName) ? catalog.getTitle() : siteName;
+
+		Map<Object, T> current = new IdentityHashMap<>();
+		for(PluginEntry plugin : catalog.getPlugins()) {
+			current.put(plugin, null);
+		}
+		for(FeatureEntry feature : catalog.getFeatures()) {
+			current.put(feature, null);
+		}
+
+		Map<Object, T> previous = getSource(replicaId);
+		List<T> added = new ArrayList<>();
+		for(Map.Entry<Object, T> entry : current.entrySet()) {
+			T value = previous.get(entry.getKey());
+			if(value == null) {
+				value = entry.getKey() instanceof PluginEntry
+					? create((PluginEntry)entry.getKey(), replicaId, repository)
+					: create((FeatureEntry)entry.getKey(), replicaId, repository);
+				added.add(value);
+			}
+			entry.setValue(value);
+		}
+		List<T> removed = new ArrayList<>();
+		for(Map.Entry<Object, T> entry : previous.entrySet()) {
+			if(!current.containsKey(entry.getKey())) {
+				removed.add(entry.getValue());
+			}
+		}
+
+		apply(replicaId, current, added, removed);
+		indexedCatalogs.put(replicaId, catalog);
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Applied catalog {0} to {1}: {2} added, {3} removed", replicaId, getClass().getSimpleName(), added.size(), removed.size()));
+		}
+	}
+}
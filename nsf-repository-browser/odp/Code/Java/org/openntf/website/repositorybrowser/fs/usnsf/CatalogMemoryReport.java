@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates how much heap the compact representation of the loaded Update Site NSF
+ * catalogs saves compared to holding a separate copy of every string and an object per
+ * requirement, as documents are read from Notes.
+ *
+ * <p>Sizes assume a 64-bit JVM with compressed object pointers and {@code char}-based
+ * strings, as used by Domino's Java 8 runtime. They are estimates meant for comparison,
+ * not exact measurements.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class CatalogMemoryReport {
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	/** A String object, not including its char[] */
+	private static final int STRING_OBJECT = 24;
+	/** A PluginInfo or PackageInfo holding two references */
+	private static final int INFO_OBJECT = 24;
+	/** An ArrayList object, not including its Object[] */
+	private static final int LIST_OBJECT = 24;
+	/** A ConcurrentHashMap node, its boxed Integer value and the pool's array slot */
+	private static final int POOL_ENTRY = 32 + 16 + REFERENCE;
+
+	private int catalogs;
+	private int plugins;
+	private int features;
+	private long stringReferences;
+	private final Set<String> distinctStrings = new HashSet<>();
+	private long distinctStringBytes;
+	private long unpooledBytes;
+	private long compactBytes;
+
+	/**
+	 * Builds a report covering every catalog currently held in memory.
+	 *
+	 * @return a new {@link CatalogMemoryReport}
+	 */
+	public static CatalogMemoryReport create() {
+		CatalogMemoryReport report = new CatalogMemoryReport();
+		for(UpdateSiteCatalog catalog : UpdateSiteNSFVFS.getCatalogs()) {
+			report.catalogs++;
+			for(PluginEntry plugin : catalog.getPlugins()) {
+				report.addPlugin(plugin);
+			}
+			for(FeatureEntry feature : catalog.getFeatures()) {
+				report.addFeature(feature);
+			}
+		}
+		return report;
+	}
+
+	private CatalogMemoryReport() {
+	}
+
+	public int getCatalogs() {
+		return catalogs;
+	}
+
+	public int getPlugins() {
+		return plugins;
+	}
+
+	public int getFeatures() {
+		return features;
+	}
+
+	public long getStringReferences() {
+		return stringReferences;
+	}
+
+	public int getDistinctStrings() {
+		return distinctStrings.size();
+	}
+
+	/**
+	 * @return the estimated size of the catalog data if every string and requirement were
+	 *         held separately
+	 */
+	public long getUnpooledBytes() {
+		return unpooledBytes;
+	}
+
+	/**
+	 * @return the estimated size of the catalog data as actually held, including the pool
+	 */
+	public long getCompactBytes() {
+		return compactBytes + distinctStringBytes + (long)distinctStrings.size() * POOL_ENTRY;
+	}
+
+	public long getSavedBytes() {
+		return getUnpooledBytes() - getCompactBytes();
+	}
+
+	/**
+	 * @return the report as a map, suitable for JSON serialization
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("catalogs", getCatalogs()); //$NON-NLS-1$
+		result.put("plugins", getPlugins()); //$NON-NLS-1$
+		result.put("features", getFeatures()); //$NON-NLS-1$
+		result.put("stringReferences", getStringReferences()); //$NON-NLS-1$
+		result.put("distinctStrings", getDistinctStrings()); //$NON-NLS-1$
+		result.put("poolSize", StringPool.INSTANCE.size()); //$NON-NLS-1$
+		result.put("unpooledBytes", getUnpooledBytes()); //$NON-NLS-1$
+		result.put("compactBytes", getCompactBytes()); //$NON-NLS-1$
+		result.put("savedBytes", getSavedBytes()); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private void addPlugin(PluginEntry plugin) {
+		plugins++;
+		addString(plugin.getId());
+		addString(plugin.getVersion());
+		addUnpooledString(plugin.getName());
+		addUnpooledString(plugin.getProviderName());
+		addString(plugin.getFragmentHost());
+		addPairs(plugin.getRequiredPluginIndexes());
+		addPairs(plugin.getImportedPackageIndexes());
+	}
+
+	private void addFeature(FeatureEntry feature) {
+		features++;
+		addString(feature.getId());
+		addString(feature.getVersion());
+		addUnpooledString(feature.getName());
+		addUnpooledString(feature.getDescription());
+		addUnpooledString(feature.getDescriptionUrl());
+		addUnpooledString(feature.getLicense());
+		addUnpooledString(feature.getLicenseUrl());
+		addUnpooledString(feature.getCopyright());
+		addUnpooledString(feature.getCopyrightUrl());
+		addUnpooledString(feature.getCategory());
+		int[][] indexes = feature.getIndexes();
+		addList(indexes[0]);
+		addList(indexes[1]);
+		addPairs(indexes[2]);
+	}
+
+	/**
+	 * Accounts for a pooled string field, which would otherwise be its own copy.
+	 */
+	private void addString(String value) {
+		if(value == null) {
+			return;
+		}
+		stringReferences++;
+		long size = stringSize(value);
+		unpooledBytes += size;
+		if(distinctStrings.add(value)) {
+			distinctStringBytes += size;
+		}
+	}
+
+	/**
+	 * Accounts for a string field held directly on the entry, which costs the same either way.
+	 */
+	private void addUnpooledString(String value) {
+		if(value == null) {
+			return;
+		}
+		long size = stringSize(value);
+		unpooledBytes += size;
+		compactBytes += size;
+	}
+
+	/**
+	 * Accounts for a list of strings stored as pool indexes instead of an
+	 * {@link java.util.ArrayList}.
+	 */
+	private void addList(int[] indexes) {
+		unpooledBytes += LIST_OBJECT + align(ARRAY_HEADER + (long)REFERENCE * indexes.length);
+		compactBytes += intArraySize(indexes.length);
+		for(int index : indexes) {
+			addString(StringPool.INSTANCE.get(index));
+		}
+	}
+
+	/**
+	 * Accounts for a list of two-string objects stored as pairs of pool indexes.
+	 */
+	private void addPairs(int[] indexes) {
+		int count = indexes.length / 2;
+		unpooledBytes += LIST_OBJECT + align(ARRAY_HEADER + (long)REFERENCE * count) + (long)INFO_OBJECT * count;
+		compactBytes += intArraySize(indexes.length);
+		for(int index : indexes) {
+			addString(StringPool.INSTANCE.get(index));
+		}
+	}
+
+	private static long stringSize(String value) {
+		return STRING_OBJECT + align(ARRAY_HEADER + 2L * value.length());
+	}
+
+	private static long intArraySize(int length) {
+		return align(ARRAY_HEADER + 4L * length);
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.eclipse.osgi.util.ManifestElement;
+import org.openntf.website.repositorybrowser.fs.VersionRange;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+
+/**
+ * An in-memory dependency graph of the plugins and features in every loaded Update Site
+ * NSF catalog, used to compute everything needed to install a given feature or bundle.
+ *
+ * <p>Each node holds its outgoing requirements: the Require-Bundle, Import-Package and
+ * Fragment-Host headers of plugins and the included plugins and imported features of
+ * features. Requirements are resolved against the whole graph while walking it, so a
+ * change to one repository never leaves stale edges behind in another. The graph is
+ * brought up to date before each query, and as with {@link BundleSearchIndex}, only the
+ * added and removed entries of a changed catalog are processed.</p>
+ *
+ * <p>Local artifacts are not included, as their manifests are not read.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class DependencyGraph extends CatalogIndex<DependencyGraph.Node> {
+	private static final Logger log = Logger.getLogger(DependencyGraph.class.getPackage().getName());
+
+	public static final DependencyGraph INSTANCE = new DependencyGraph();
+
+	public static final String TYPE_PLUGIN = "plugin"; //$NON-NLS-1$
+	public static final String TYPE_FEATURE = "feature"; //$NON-NLS-1$
+
+	/** The kinds of requirement, as reported in closures */
+	private static final String REQ_BUNDLE = "bundle"; //$NON-NLS-1$
+	private static final String REQ_PACKAGE = "package"; //$NON-NLS-1$
+	private static final String REQ_HOST = "host"; //$NON-NLS-1$
+	private static final String REQ_PLUGIN = "plugin"; //$NON-NLS-1$
+	private static final String REQ_FEATURE = "feature"; //$NON-NLS-1$
+	/** The version used in feature.xml for an included plugin that may be any version */
+	private static final String ANY_VERSION = "0.0.0"; //$NON-NLS-1$
+
+	private final Map<String, List<Node>> plugins = new HashMap<>();
+	private final Map<String, List<Node>> features = new HashMap<>();
+	private final Map<String, List<Export>> exports = new HashMap<>();
+
+	private DependencyGraph() {
+	}
+
+	/**
+	 * Computes the transitive closure of the highest version of the given feature or
+	 * bundle within {@code range}.
+	 *
+	 * @param type {@link #TYPE_PLUGIN} or {@link #TYPE_FEATURE}
+	 * @param id the ID of the feature or bundle
+	 * @param range the versions to consider for the root
+	 * @return the closure, or {@code null} if no matching feature or bundle exists
+	 */
+	public Closure closure(String type, String id, VersionRange range) {
+		refresh();
+
+		lock.readLock().lock();
+		try {
+			Node root = highest(TYPE_FEATURE.equals(type) ? features : plugins, id, range);
+			if(root == null) {
+				return null;
+			}
+
+			Closure closure = new Closure(root);
+			closure.edges = walk(Collections.singletonList(root), closure.nodes, closure.unresolved);
+			return closure;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes the combined closure of the highest version of every plugin and feature.
+	 *
+	 * @return the catalog entries in the closure, mapped to the replica ID of the catalog
+	 *         they came from
+	 */
+	Map<Object, String> latestClosure() {
+		refresh();
+
+		lock.readLock().lock();
+		try {
+			List<Node> roots = new ArrayList<>();
+			for(Map<String, List<Node>> byId : Arrays.asList(features, plugins)) {
+				for(String id : byId.keySet()) {
+					roots.add(highest(byId, id, VersionRange.ANY));
+				}
+			}
+			Set<Node> nodes = new LinkedHashSet<>();
+			walk(roots, nodes, null);
+
+			Map<Object, String> result = new IdentityHashMap<>();
+			for(Node node : nodes) {
+				result.put(node.entry, node.replicaId);
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The set of nodes reachable from a feature or bundle.
+	 */
+	public static class Closure {
+		private final Node root;
+		private final Set<Node> nodes = new LinkedHashSet<>();
+		private final List<Unresolved> unresolved = new ArrayList<>();
+		private int edges;
+
+		private Closure(Node root) {
+			this.root = root;
+		}
+
+		/**
+		 * @return the closure as a map, suitable for JSON serialization
+		 */
+		public Map<String, Object> toMap() {
+			List<Map<String, Object>> nodeMaps = new ArrayList<>(nodes.size());
+			long size = 0;
+			for(Node node : nodes) {
+				nodeMaps.add(node.toMap());
+				size += node.size;
+			}
+			List<Map<String, Object>> unresolvedMaps = new ArrayList<>(unresolved.size());
+			for(Unresolved u : unresolved) {
+				unresolvedMaps.add(u.toMap());
+			}
+
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("root", root.toMap()); //$NON-NLS-1$
+			result.put("count", nodes.size()); //$NON-NLS-1$
+			result.put("edges", edges); //$NON-NLS-1$
+			result.put("size", size); //$NON-NLS-1$
+			result.put("nodes", nodeMaps); //$NON-NLS-1$
+			result.put("unresolved", unresolvedMaps); //$NON-NLS-1$
+			return result;
+		}
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	/**
+	 * Re-reads any catalogs that have changed since they were last added to the graph and
+	 * drops those that are no longer loaded.
+	 */
+	private synchronized void refresh() {
+		refreshCatalogs();
+	}
+
+	@Override
+	protected void add(Node node) {
+		Map<String, List<Node>> byId = TYPE_FEATURE.equals(node.type) ? features : plugins;
+		byId.computeIfAbsent(node.id, i -> new ArrayList<>()).add(node);
+		for(PackageInfo pkg : node.exports) {
+			exports.computeIfAbsent(pkg.getName(), n -> new ArrayList<>()).add(new Export(node, pkg.getVersion()));
+		}
+	}
+
+	@Override
+	protected void remove(Node node) {
+		Map<String, List<Node>> byId = TYPE_FEATURE.equals(node.type) ? features : plugins;
+		removeFrom(byId, node.id, node);
+		for(PackageInfo pkg : node.exports) {
+			List<Export> exporters = exports.get(pkg.getName());
+			if(exporters != null) {
+				exporters.removeIf(e -> e.node == node);
+				if(exporters.isEmpty()) {
+					exports.remove(pkg.getName());
+				}
+			}
+		}
+	}
+
+	private static void removeFrom(Map<String, List<Node>> byId, String id, Node node) {
+		List<Node> nodes = byId.get(id);
+		if(nodes != null) {
+			nodes.remove(node);
+			if(nodes.isEmpty()) {
+				byId.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Adds every node reachable from {@code roots} to {@code nodes}. Must be called with
+	 * the read lock held.
+	 *
+	 * @param unresolved a list to receive unsatisfied requirements, or {@code null}
+	 * @return the number of requirements followed
+	 */
+	private int walk(Collection<Node> roots, Set<Node> nodes, List<Unresolved> unresolved) {
+		int edges = 0;
+		Deque<Node> queue = new ArrayDeque<>();
+		for(Node root : roots) {
+			if(nodes.add(root)) {
+				queue.add(root);
+			}
+		}
+		while(!queue.isEmpty()) {
+			Node node = queue.poll();
+			for(Requirement req : node.requirements) {
+				edges++;
+				Node target = resolve(req);
+				if(target == null) {
+					if(unresolved != null) {
+						unresolved.add(new Unresolved(node, req));
+					}
+				} else if(nodes.add(target)) {
+					queue.add(target);
+				}
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Finds the node satisfying a requirement, preferring the highest matching version.
+	 * Must be called with the read lock held.
+	 */
+	private Node resolve(Requirement req) {
+		switch(req.kind) {
+		case REQ_FEATURE:
+			return highest(features, req.name, req.range);
+		case REQ_PACKAGE: {
+			Export best = null;
+			for(Export export : exports.getOrDefault(req.name, Collections.emptyList())) {
+				if(req.range.includes(export.version) && (best == null || VersionRange.compare(export.version, best.version) > 0)) {
+					best = export;
+				}
+			}
+			return best == null ? null : best.node;
+		}
+		default:
+			return highest(plugins, req.name, req.range);
+		}
+	}
+
+	private static Node highest(Map<String, List<Node>> byId, String id, VersionRange range) {
+		Node best = null;
+		for(Node node : byId.getOrDefault(id, Collections.emptyList())) {
+			if(range.includes(node.version) && (best == null || VersionRange.compare(node.version, best.version) > 0)) {
+				best = node;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	protected Node create(PluginEntry plugin, String replicaId, String repository) {
+		String path = repository + VFS.SEPARATOR + "plugins" + VFS.SEPARATOR + plugin.getId() + '_' + plugin.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+		List<Requirement> requirements = new ArrayList<>();
+		for(PluginInfo info : plugin.getRequiredPlugins()) {
+			addRequirement(requirements, REQ_BUNDLE, info.getId(), info.getVersion(), plugin.getId());
+		}
+		for(PackageInfo info : plugin.getImportedPackages()) {
+			// java.* packages always come from the runtime
+			if(!info.getName().startsWith("java.")) { //$NON-NLS-1$
+				addRequirement(requirements, REQ_PACKAGE, info.getName(), info.getVersion(), plugin.getId());
+			}
+		}
+		if(plugin.isFragment() && StringUtil.isNotEmpty(plugin.getFragmentHost())) {
+			String host = plugin.getFragmentHost();
+			String hostId;
+			String hostRange;
+			try {
+				ManifestElement element = ManifestElement.parseHeader("Fragment-Host", host)[0]; //$NON-NLS-1$
+				hostId = element.getValue();
+				hostRange = element.getAttribute("bundle-version"); //$NON-NLS-1$
+			} catch(RuntimeException e) {
+				int semicolon = host.indexOf(';');
+				hostId = (semicolon < 0 ? host : host.substring(0, semicolon)).trim();
+				hostRange = null;
+			}
+			addRequirement(requirements, REQ_HOST, hostId, hostRange, plugin.getId());
+		}
+		return new Node(plugin, replicaId, TYPE_PLUGIN, plugin.getId(), plugin.getVersion(), repository, path, plugin.getSize(), requirements, plugin.getExportedPackages());
+	}
+
+	@Override
+	protected Node create(FeatureEntry feature, String replicaId, String repository) {
+		String path = repository + VFS.SEPARATOR + "features" + VFS.SEPARATOR + feature.getId() + '_' + feature.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+		List<Requirement> requirements = new ArrayList<>();
+		for(PluginInfo info : feature.getPlugins()) {
+			// Included plugins are pinned to an exact version, as in content.xml, except that
+			//   0.0.0 means that any version will do
+			String version = info.getVersion();
+			String range = StringUtil.isEmpty(version) || ANY_VERSION.equals(version) ? null : '[' + version + ',' + version + ']';
+			addRequirement(requirements, REQ_PLUGIN, info.getId(), range, feature.getId());
+		}
+		List<String> importedFeatures = feature.getImportedFeatures();
+		List<String> importedVersions = feature.getImportedFeatureVersions();
+		for(int i = 0; i < importedFeatures.size(); i++) {
+			String version = importedVersions.size() > i ? importedVersions.get(i) : null;
+			addRequirement(requirements, REQ_FEATURE, importedFeatures.get(i), version, feature.getId());
+		}
+		return new Node(feature, replicaId, TYPE_FEATURE, feature.getId(), feature.getVersion(), repository, path, feature.getSize(), requirements, Collections.emptyList());
+	}
+
+	private static void addRequirement(List<Requirement> requirements, String kind, String name, String range, String owner) {
+		if(StringUtil.isEmpty(name)) {
+			return;
+		}
+		VersionRange parsed;
+		try {
+			parsed = VersionRange.parse(range);
+		} catch(IllegalArgumentException e) {
+			if(log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, StringUtil.format("Ignoring malformed version range on {0}", owner), e);
+			}
+			parsed = VersionRange.ANY;
+		}
+		requirements.add(new Requirement(kind, name, parsed));
+	}
+
+	static class Node {
+		/** The {@link PluginEntry} or {@link FeatureEntry} the node was created from */
+		private final Object entry;
+		private final String replicaId;
+		private final String type;
+		private final String id;
+		private final String version;
+		private final String repository;
+		private final String path;
+		private final long size;
+		private final List<Requirement> requirements;
+		private final List<PackageInfo> exports;
+
+		public Node(Object entry, String replicaId, String type, String id, String version, String repository, String path, long size, List<Requirement> requirements, List<PackageInfo> exports) {
+			this.entry = entry;
+			this.replicaId = replicaId;
+			this.type = type;
+			this.id = id;
+			this.version = version;
+			this.repository = repository;
+			this.path = path;
+			this.size = size;
+			this.requirements = requirements;
+			this.exports = exports;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("type", type); //$NON-NLS-1$
+			result.put("id", id); //$NON-NLS-1$
+			result.put("version", version); //$NON-NLS-1$
+			result.put("repository", repository); //$NON-NLS-1$
+			result.put("path", path); //$NON-NLS-1$
+			return result;
+		}
+	}
+
+	private static class Requirement {
+		private final String kind;
+		private final String name;
+		private final VersionRange range;
+
+		public Requirement(String kind, String name, VersionRange range) {
+			this.kind = kind;
+			this.name = name;
+			this.range = range;
+		}
+	}
+
+	private static class Export {
+		private final Node node;
+		private final String version;
+
+		public Export(Node node, String version) {
+			this.node = node;
+			this.version = version;
+		}
+	}
+
+	private static class Unresolved {
+		private final Node from;
+		private final Requirement requirement;
+
+		public Unresolved(Node from, Requirement requirement) {
+			this.from = from;
+			this.requirement = requirement;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("from", from.id + '_' + from.version); //$NON-NLS-1$
+			result.put("kind", requirement.kind); //$NON-NLS-1$
+			result.put("name", requirement.name); //$NON-NLS-1$
+			result.put("range", requirement.range.toString()); //$NON-NLS-1$
+			return result;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+import lotus.domino.Document;
+import lotus.domino.EmbeddedObject;
+import lotus.domino.NotesException;
+
+/**
+ * Reads an attachment directly from its {@link EmbeddedObject}, keeping the object and
+ * its document alive until the stream is closed and recycling them afterwards.
+ *
+ * <p>As with all Notes objects, the stream must be read and closed on the thread that
+ * opened it.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class EmbeddedObjectInputStream extends FilterInputStream {
+	private final Document doc;
+	private final EmbeddedObject obj;
+	private boolean closed;
+
+	EmbeddedObjectInputStream(Document doc, EmbeddedObject obj) throws NotesException {
+		super(obj.getInputStream());
+		this.doc = doc;
+		this.obj = obj;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			super.close();
+		} finally {
+			try {
+				obj.recycle();
+			} catch(NotesException e) {
+				throw new IOException(e);
+			} finally {
+				try {
+					doc.recycle();
+				} catch(NotesException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+	}
+}
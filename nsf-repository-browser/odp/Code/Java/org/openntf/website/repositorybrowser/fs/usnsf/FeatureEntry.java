@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ibm.commons.util.StringUtil;
+
+import lotus.domino.Document;
+import lotus.domino.EmbeddedObject;
+import lotus.domino.NotesException;
+import lotus.domino.RichTextItem;
+
+/**
+ * The catalog information for a single feature document in an Update Site NSF, holding
+ * everything needed to generate metadata without re-reading the document.
+ *
+ * <p>IDs and versions are held in the {@link StringPool}, since they recur across
+ * features and plugins, and lists of them are stored as arrays of pool indexes.
+ * Descriptive text, URLs and license text are held directly, so that they are released
+ * when the catalog is replaced rather than kept for the life of the application.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class FeatureEntry {
+	private final String unid;
+	private final String id;
+	private final String version;
+	private final String name;
+	private final String description;
+	private final String descriptionUrl;
+	private final int[] importedFeatures;
+	private final int[] importedFeatureVersions;
+	/** Pairs of pool indexes for the ID and version of each included plugin */
+	private final int[] plugins;
+	private final String license;
+	private final String licenseUrl;
+	private final String copyright;
+	private final String copyrightUrl;
+	private final String category;
+	private final long lastModified;
+	private final long size;
+
+	FeatureEntry(String unid, String id, String version, String name, String description, String descriptionUrl,
+			List<String> importedFeatures, List<String> importedFeatureVersions, List<PluginInfo> plugins,
+			String license, String licenseUrl, String copyright, String copyrightUrl, String category,
+			long lastModified, long size) {
+		StringPool pool = StringPool.INSTANCE;
+		this.unid = unid;
+		this.id = pool.pool(id);
+		this.version = pool.pool(version);
+		// Free text is kept per-entry, so that it is released along with the catalog
+		this.name = name;
+		this.description = description;
+		this.descriptionUrl = descriptionUrl;
+		this.importedFeatures = pool.indexesOf(importedFeatures);
+		this.importedFeatureVersions = pool.indexesOf(importedFeatureVersions);
+		this.plugins = new int[plugins.size() * 2];
+		for(int i = 0; i < plugins.size(); i++) {
+			this.plugins[i * 2] = pool.indexOf(plugins.get(i).getId());
+			this.plugins[i * 2 + 1] = pool.indexOf(plugins.get(i).getVersion());
+		}
+		this.license = license;
+		this.licenseUrl = licenseUrl;
+		this.copyright = copyright;
+		this.copyrightUrl = copyrightUrl;
+		this.category = category;
+		this.lastModified = lastModified;
+		this.size = size;
+	}
+
+	/**
+	 * Reads the catalog information from a feature document.
+	 *
+	 * @param doc the feature document
+	 * @param id the feature ID, as listed in the features view
+	 * @param version the feature version, as listed in the features view
+	 * @return a new {@link FeatureEntry}
+	 */
+	public static FeatureEntry read(Document doc, String id, String version) throws NotesException {
+		long size;
+		RichTextItem fileItem = (RichTextItem)doc.getFirstItem(UpdateSiteNSFVFSFeature.ITEM_FILE);
+		EmbeddedObject obj = (EmbeddedObject)fileItem.getEmbeddedObjects().get(0);
+		try {
+			size = obj.getFileSize();
+		} finally {
+			obj.recycle();
+		}
+
+		return new FeatureEntry(
+			doc.getUniversalID(),
+			id,
+			version,
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_NAME),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_DESC),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_DESC_URL),
+			readStrings(doc, UpdateSiteNSFVFSFeature.ITEM_IMPORT_FEATURE),
+			readStrings(doc, UpdateSiteNSFVFSFeature.ITEM_IMPORT_VERSION),
+			readPlugins(doc),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_LICENSE),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_LICENSE_URL),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_COPYRIGHT),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_COPYRIGHT_URL),
+			doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_CATEGORY),
+			Long.parseLong(doc.getItemValueString(UpdateSiteNSFVFSFeature.ITEM_MOD), 10),
+			size
+		);
+	}
+
+	public String getUnid() {
+		return unid;
+	}
+	public String getId() {
+		return id;
+	}
+	public String getVersion() {
+		return version;
+	}
+	public String getName() {
+		return name;
+	}
+	public String getDescription() {
+		return description;
+	}
+	public String getDescriptionUrl() {
+		return descriptionUrl;
+	}
+	public List<String> getImportedFeatures() {
+		return toStrings(importedFeatures);
+	}
+	public List<String> getImportedFeatureVersions() {
+		return toStrings(importedFeatureVersions);
+	}
+	public List<PluginInfo> getPlugins() {
+		StringPool pool = StringPool.INSTANCE;
+		List<PluginInfo> result = new ArrayList<>(plugins.length / 2);
+		for(int i = 0; i < plugins.length; i += 2) {
+			result.add(new PluginInfo(pool.get(plugins[i]), pool.get(plugins[i + 1])));
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the pool indexes of the imported features, imported versions and included
+	 *         plugin pairs, in that order
+	 */
+	int[][] getIndexes() {
+		return new int[][] { importedFeatures, importedFeatureVersions, plugins };
+	}
+	public String getLicense() {
+		return license;
+	}
+	public String getLicenseUrl() {
+		return licenseUrl;
+	}
+	public String getCopyright() {
+		return copyright;
+	}
+	public String getCopyrightUrl() {
+		return copyrightUrl;
+	}
+	public String getCategory() {
+		return category;
+	}
+	public long getLastModified() {
+		return lastModified;
+	}
+	public long getSize() {
+		return size;
+	}
+
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+
+	private static List<String> toStrings(int[] indexes) {
+		StringPool pool = StringPool.INSTANCE;
+		List<String> result = new ArrayList<>(indexes.length);
+		for(int index : indexes) {
+			result.add(pool.get(index));
+		}
+		return result;
+	}
+
+	private static List<String> readStrings(Document doc, String itemName) throws NotesException {
+		List<?> values = doc.getItemValue(itemName);
+		List<String> result = new ArrayList<>(values.size());
+		for(Object value : values) {
+			result.add(StringUtil.toString(value));
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<PluginInfo> readPlugins(Document doc) throws NotesException {
+		List<PluginInfo> result = new ArrayList<>();
+
+		List<String> ids = doc.getItemValue(UpdateSiteNSFVFSFeature.ITEM_PLUGIN_ID);
+		List<String> versions = doc.getItemValue(UpdateSiteNSFVFSFeature.ITEM_PLUGIN_VERSION);
+		for(int i = 0; i < ids.size(); i++) {
+			String id = ids.get(i);
+			if(StringUtil.isNotEmpty(id)) {
+				String version = null;
+				if(versions.size() > i) {
+					version = versions.get(i);
+				}
+				if(StringUtil.isEmpty(version)) {
+					version = "0.0.0"; //$NON-NLS-1$
+				}
+
+				result.add(new PluginInfo(id, version));
+			}
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.stream.Stream;
+
+import org.openntf.website.repositorybrowser.fs.FilesystemFactory;
+
+import com.ibm.commons.vfs.VFS;
+
+/**
+ * This factory provides a single VFS instance to represent a repository holding only
+ * the latest version of each feature and plugin from the Update Site NSFs.
+ * 
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class LatestVersionsFilesystemFactory implements FilesystemFactory {
+
+	@Override
+	public Stream<VFS> getFilesystems() {
+		return Stream.of(LatestVersionsVFS.INSTANCE);
+	}
+
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.Transformer;
+
+import org.openntf.website.repositorybrowser.Constants;
+import org.openntf.website.repositorybrowser.fs.AggregateFilesystem;
+import org.openntf.website.repositorybrowser.fs.MimeTypeProvider;
+import org.openntf.website.repositorybrowser.fs.VersionRange;
+import org.openntf.website.repositorybrowser.fs.mem.MemoryVFSFolder;
+import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
+import org.w3c.dom.Element;
+
+import com.ibm.commons.util.StringUtil;
+import com.ibm.commons.vfs.VFS;
+import com.ibm.commons.vfs.VFSException;
+import com.ibm.commons.vfs.VFSFile;
+import com.ibm.commons.vfs.VFSFilter.IFilter;
+import com.ibm.commons.vfs.VFSFolder;
+import com.ibm.commons.vfs.VFSResource;
+import com.ibm.commons.xml.DOMUtil;
+import com.ibm.commons.xml.XMLException;
+
+/**
+ * Virtual filesystem exposing a single repository that contains only the highest version
+ * of each feature and plugin across all Update Site NSFs, along with everything they
+ * depend on.
+ *
+ * <p>Units are copied from the serialized content.xml units of each Update Site NSF,
+ * so an entry only appears once its own database's metadata has been generated. Artifact
+ * downloads are served from the originating database, located through its last indexed
+ * metadata. The repository is rebuilt whenever a catalog or its checksums change and, at
+ * most every {@value #INCOMPLETE_RETRY_INTERVAL}ms, when the last build had to skip an
+ * entry.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class LatestVersionsVFS extends VFS implements AggregateFilesystem {
+	private static final Logger log = Logger.getLogger(LatestVersionsVFS.class.getPackage().getName());
+
+	public static final LatestVersionsVFS INSTANCE = new LatestVersionsVFS();
+
+	/** The name of the folder the repository is served from */
+	public static final String PROP_NAME = "repositorybrowser.usnsf.latestName"; //$NON-NLS-1$
+	private static final String DEFAULT_NAME = "latest"; //$NON-NLS-1$
+	/** The minimum time, in milliseconds, between rebuilds of a repository that skipped entries */
+	private static final long INCOMPLETE_RETRY_INTERVAL = 10 * 1000;
+
+	private final Lock buildLock = new ReentrantLock();
+	private volatile Repository repository;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadEntries(VFS vfs, String path, List result) {
+		for(VFSResource res : getResources(path)) {
+			if(res instanceof VFSFile) {
+				result.add(doCreateFileEntry((VFSFile)res));
+			} else if(res instanceof VFSFolder) {
+				result.add(doCreateFolderEntry((VFSFolder)res));
+			}
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	protected void doReadResources(String path, List result, IFilter filter) {
+		for(VFSResource res : getResources(path)) {
+			if(filter == null || filter.accept(res)) {
+				result.add(res);
+			}
+		}
+	}
+
+	@Override
+	protected FileEntry doCreateFileEntry(VFSFile file) {
+		try {
+			return new LatestVersionsFileEntry(this, file, file.getLastModificationDate());
+		} catch (VFSException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected FolderEntry doCreateFolderEntry(VFSFolder folder) {
+		Repository repo = this.repository;
+		return new LatestVersionsFolderEntry(this, folder, repo == null ? 0 : repo.lastModified);
+	}
+
+	@Override
+	protected VFSFile doCreateVFSFile(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected VFSFolder doCreateVFSFolder(String folderName) {
+		return new MemoryVFSFolder(this, folderName);
+	}
+
+	@Override
+	protected boolean doIsReadonly() throws VFSException {
+		return true;
+	}
+
+	@Override
+	protected void doClose() {
+		// NOP
+	}
+
+	@Override
+	public boolean hasEntryCache() {
+		return false;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static class LatestVersionsFolderEntry extends VFS.FolderEntry {
+		public LatestVersionsFolderEntry(VFS vfs, VFSFolder folder, long lastModified) {
+			super(vfs, folder, lastModified);
+		}
+	}
+
+	private static class LatestVersionsFileEntry extends VFS.FileEntry {
+		public LatestVersionsFileEntry(VFS vfs, VFSFile file, long lastModified) {
+			super(vfs, file, lastModified);
+		}
+	}
+
+	private List<? extends VFSResource> getResources(String path) {
+		String name = getName();
+		if(StringUtil.isEmpty(path)) {
+			return Collections.singletonList(new MemoryVFSFolder(this, name));
+		}
+		if(StringUtil.equals(path, name)) {
+			return getRepository().rootResources;
+		} else if(StringUtil.equals(path, name + VFS.SEPARATOR + "plugins")) { //$NON-NLS-1$
+			return getRepository().plugins;
+		} else if(StringUtil.equals(path, name + VFS.SEPARATOR + "features")) { //$NON-NLS-1$
+			return getRepository().features;
+		}
+		return Collections.emptyList();
+	}
+
+	private static String getName() {
+		return Constants.getProperty(PROP_NAME, DEFAULT_NAME);
+	}
+
+	/**
+	 * Retrieves the generated repository, rebuilding it when any catalog has changed since
+	 * it was built. While a rebuild is underway, other threads continue to see the previous
+	 * repository.
+	 */
+	private Repository getRepository() {
+		Map<UpdateSiteCatalog, Long> basis = new IdentityHashMap<>();
+		for(UpdateSiteCatalog catalog : UpdateSiteNSFVFS.getCatalogs()) {
+			basis.put(catalog, catalog.getChecksumsModified());
+		}
+
+		Repository result = this.repository;
+		String name = getName();
+		boolean retry = result != null && !result.complete && System.currentTimeMillis() - result.built > INCOMPLETE_RETRY_INTERVAL;
+		if(result == null || retry || !result.basis.equals(basis) || !result.name.equals(name)) {
+			// Only wait for the lock when there is nothing to serve in the mean time
+			if(result == null) {
+				buildLock.lock();
+			} else if(!buildLock.tryLock()) {
+				return result;
+			}
+			try {
+				if(this.repository == result) {
+					try {
+						this.repository = build(name, basis);
+					} catch(XMLException | IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				result = this.repository;
+			} finally {
+				buildLock.unlock();
+			}
+		}
+		return result;
+	}
+
+	private Repository build(String name, Map<UpdateSiteCatalog, Long> basis) throws XMLException, IOException {
+		List<Selected> features = new ArrayList<>();
+		List<Selected> plugins = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		int skipped = 0;
+		for(Map.Entry<Object, String> entry : DependencyGraph.INSTANCE.latestClosure().entrySet()) {
+			Selected selected = new Selected(entry.getKey(), entry.getValue());
+			// The same artifact may be served from more than one database
+			if(!seen.add((selected.feature ? "f:" : "p:") + selected.getFileName())) { //$NON-NLS-1$ //$NON-NLS-2$
+				continue;
+			}
+			if(selected.unit == null) {
+				skipped++;
+				continue;
+			}
+			(selected.feature ? features : plugins).add(selected);
+		}
+		Comparator<Selected> order = Comparator.comparing((Selected s) -> s.id)
+			.thenComparing((a, b) -> VersionRange.compare(a.version, b.version));
+		features.sort(order);
+		plugins.sort(order);
+
+		long lastMod = 0;
+		for(Long checksumsModified : basis.values()) {
+			lastMod = Math.max(lastMod, checksumsModified);
+		}
+		for(Selected selected : features) {
+			lastMod = Math.max(lastMod, selected.lastModified);
+		}
+		for(Selected selected : plugins) {
+			lastMod = Math.max(lastMod, selected.lastModified);
+		}
+
+		Repository result = new Repository(name, basis, lastMod);
+		// Entries are skipped while their database is mid-build, so try again next time
+		result.complete = skipped == 0;
+		result.rootResources = Arrays.asList(
+			new MemoryVFSFolder(this, name + VFS.SEPARATOR + "features"), //$NON-NLS-1$
+			new MemoryVFSFolder(this, name + VFS.SEPARATOR + "plugins"), //$NON-NLS-1$
+			new XMLDocumentVFSFile(this, name + VFS.SEPARATOR + "content.xml", createContentXml(name, features, plugins, lastMod), lastMod), //$NON-NLS-1$
+			createArtifactsXml(name, features, plugins, lastMod)
+		);
+		result.features = createFiles(name, features);
+		result.plugins = createFiles(name, plugins);
+
+		if(log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Built latest-versions repository with {0} features and {1} plugins", features.size(), plugins.size()));
+		}
+		if(skipped > 0 && log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Skipped {0} entries whose metadata has not been generated yet", skipped));
+		}
+		return result;
+	}
+
+	private byte[] createContentXml(String name, List<Selected> features, List<Selected> plugins, long lastMod) throws XMLException, IOException {
+		Transformer transformer = UpdateSiteNSFVFS.createUnitTransformer();
+		ByteArrayOutputStream unitsXml = new ByteArrayOutputStream();
+		int unitsSize = 0;
+
+		Map<String, List<FeatureEntry>> categories = new LinkedHashMap<>();
+		for(Selected feature : features) {
+			feature.unit.writeTo(unitsXml);
+			unitsSize++;
+			FeatureEntry entry = (FeatureEntry)feature.entry;
+			categories.computeIfAbsent(entry.getCategory(), key -> new ArrayList<>()).add(entry);
+		}
+		for(Map.Entry<String, List<FeatureEntry>> category : categories.entrySet()) {
+			Element unit = UpdateSiteNSFVFS.createCategoryUnit(name + "-" + category.getKey(), "1.0.0", category.getKey(), category.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+			unitsXml.write(UpdateSiteNSFVFS.serializeUnit(transformer, unit));
+			unitsSize++;
+		}
+		for(Selected plugin : plugins) {
+			plugin.unit.writeTo(unitsXml);
+			unitsSize++;
+		}
+
+		return UpdateSiteNSFVFS.createMetadataRepository(name, lastMod, unitsSize, unitsXml);
+	}
+
+	private XMLDocumentVFSFile createArtifactsXml(String name, List<Selected> features, List<Selected> plugins, long lastMod) throws XMLException, IOException {
+		org.w3c.dom.Document doc = DOMUtil.createDocument();
+		Element repository = UpdateSiteNSFVFS.createArtifactRepository(doc, name + " Artifacts", lastMod); //$NON-NLS-1$
+
+		Element artifacts = DOMUtil.createElement(doc, repository, "artifacts"); //$NON-NLS-1$
+		artifacts.setAttribute("size", StringUtil.toString(features.size() + plugins.size())); //$NON-NLS-1$
+		for(Selected feature : features) {
+			UpdateSiteNSFVFS.createArtifact(doc, artifacts, "org.eclipse.update.feature", feature.id, feature.version, feature.size, "application/java-archive", feature.getChecksum()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		for(Selected plugin : plugins) {
+			UpdateSiteNSFVFS.createArtifact(doc, artifacts, "osgi.bundle", plugin.id, plugin.version, plugin.size, null, plugin.getChecksum()); //$NON-NLS-1$
+		}
+
+		return new XMLDocumentVFSFile(this, name + VFS.SEPARATOR + "artifacts.xml", doc, lastMod); //$NON-NLS-1$
+	}
+
+	private List<LatestArtifactFile> createFiles(String name, List<Selected> selected) {
+		List<LatestArtifactFile> result = new ArrayList<>(selected.size());
+		for(Selected s : selected) {
+			String folder = s.feature ? "features" : "plugins"; //$NON-NLS-1$ //$NON-NLS-2$
+			result.add(new LatestArtifactFile(this, name + VFS.SEPARATOR + folder + VFS.SEPARATOR + s.getFileName(), s));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * A generated repository, along with the catalogs it was generated from.
+	 */
+	private static class Repository {
+		private final String name;
+		private final Map<UpdateSiteCatalog, Long> basis;
+		private final long lastModified;
+		private final long built = System.currentTimeMillis();
+		private boolean complete;
+		private List<VFSResource> rootResources;
+		private List<LatestArtifactFile> features;
+		private List<LatestArtifactFile> plugins;
+
+		public Repository(String name, Map<UpdateSiteCatalog, Long> basis, long lastModified) {
+			this.name = name;
+			this.basis = basis;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * A catalog entry chosen for the repository.
+	 */
+	private static class Selected {
+		private final Object entry;
+		private final String replicaId;
+		private final boolean feature;
+		private final String unid;
+		private final String id;
+		private final String version;
+		private final long lastModified;
+		private final long size;
+		private final UpdateSiteNSFVFS.CachedUnit unit;
+
+		public Selected(Object entry, String replicaId) {
+			this.entry = entry;
+			this.replicaId = replicaId;
+			this.feature = entry instanceof FeatureEntry;
+			if(feature) {
+				FeatureEntry featureEntry = (FeatureEntry)entry;
+				this.unid = featureEntry.getUnid();
+				this.id = featureEntry.getId();
+				this.version = featureEntry.getVersion();
+				this.lastModified = featureEntry.getLastModified();
+				this.size = featureEntry.getSize();
+			} else {
+				PluginEntry pluginEntry = (PluginEntry)entry;
+				this.unid = pluginEntry.getUnid();
+				this.id = pluginEntry.getId();
+				this.version = pluginEntry.getVersion();
+				this.lastModified = pluginEntry.getLastModified();
+				this.size = pluginEntry.getSize();
+			}
+			this.unit = UpdateSiteNSFVFS.getCachedUnit(replicaId, unid, entry);
+		}
+
+		public String getFileName() {
+			return id + "_" + version + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		public String getChecksum() {
+			UpdateSiteCatalog catalog = UpdateSiteNSFVFS.getCatalog(replicaId);
+			return catalog == null ? null : catalog.getChecksum(unid, lastModified);
+		}
+	}
+
+	/**
+	 * An artifact served from the Update Site NSF it was chosen from.
+	 */
+	private static class LatestArtifactFile extends VFSFile implements MimeTypeProvider {
+		private final Selected selected;
+		private long lastModificationDate;
+
+		public LatestArtifactFile(VFS vfs, String name, Selected selected) {
+			super(vfs, name);
+			this.selected = selected;
+			this.lastModificationDate = selected.lastModified;
+		}
+
+		@Override
+		protected InputStream doGetInputStream() throws VFSException {
+			// Only the originating database is opened, rather than every request filesystem
+			UpdateSiteNSFVFS vfs = UpdateSiteNSFFilesystemFactory.getFilesystem(selected.replicaId);
+			UpdateSiteNSFVFSFile source = vfs == null ? null : vfs.findArtifact(selected.feature, selected.getFileName());
+			if(source == null) {
+				throw new VFSException(null, "Unable to find the source of {0}", getPath());
+			}
+			return source.getInputStream();
+		}
+
+		@Override
+		protected OutputStream doGetOutputStream(boolean arg0) throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected long doGetSize() throws VFSException {
+			return selected.size;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected List doDelete() throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected boolean doExists() throws VFSException {
+			return true;
+		}
+
+		@Override
+		protected long doGetLastModificationDate() throws VFSException {
+			return lastModificationDate;
+		}
+
+		@Override
+		protected File doGetSystemFile() {
+			// Not applicable
+			return null;
+		}
+
+		@Override
+		protected boolean doIsReadOnly() throws VFSException {
+			return true;
+		}
+
+		@Override
+		protected String doRename(String newName) throws VFSException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void doSetLastModificationDate(long lastModificationDate) throws VFSException {
+			this.lastModificationDate = lastModificationDate;
+		}
+
+		@Override
+		public Object getPeer() {
+			return null;
+		}
+
+		@Override
+		public String getMimeType() {
+			return "application/java-archive"; //$NON-NLS-1$
+		}
+	}
+}
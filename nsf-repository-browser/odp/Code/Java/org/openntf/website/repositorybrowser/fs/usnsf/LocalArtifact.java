@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.openntf.website.repositorybrowser.fs.LocalFilesystemFactory;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * A plugin or feature JAR found in a local repository directory, identified by its
+ * "id_version.jar" file name within a "plugins" or "features" directory.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class LocalArtifact {
+	private static final Logger log = Logger.getLogger(LocalArtifact.class.getPackage().getName());
+	/** Identifies artifact scans to {@link LocalFilesystemFactory#scanRoots} */
+	private static final String SCAN_KIND = "artifacts"; //$NON-NLS-1$
+
+	private final String id;
+	private final String version;
+	private final boolean feature;
+	private final Path file;
+	private final String location;
+
+	/**
+	 * Scans every configured local repository directory, in parallel.
+	 *
+	 * @return the artifacts found, in no particular order
+	 */
+	public static List<LocalArtifact> scanAll() {
+		List<LocalArtifact> result = new ArrayList<>();
+		LocalFilesystemFactory.scanRoots(SCAN_KIND, LocalArtifact::scan).forEach(result::addAll);
+		return result;
+	}
+
+	/**
+	 * @param prefix the name the directory is served beneath, or an empty string for the root
+	 * @param base the local repository directory to scan
+	 * @return the artifacts found beneath {@code base}, in no particular order
+	 */
+	public static List<LocalArtifact> scan(String prefix, Path base) {
+		if(!Files.isDirectory(base)) {
+			return Collections.emptyList();
+		}
+		List<LocalArtifact> result = new ArrayList<>();
+		try(Stream<Path> files = Files.walk(base)) {
+			files
+				.filter(p -> p.getFileName().toString().endsWith(".jar")) //$NON-NLS-1$
+				.filter(Files::isRegularFile)
+				.forEach(p -> {
+					String dir = p.getParent().getFileName().toString();
+					boolean feature = "features".equals(dir); //$NON-NLS-1$
+					if(!feature && !"plugins".equals(dir)) { //$NON-NLS-1$
+						return;
+					}
+					String name = p.getFileName().toString();
+					name = name.substring(0, name.length() - ".jar".length()); //$NON-NLS-1$
+					int underscore = indexOfVersion(name);
+					if(underscore < 1) {
+						return;
+					}
+					String location = base.relativize(p.getParent()).toString().replace('\\', '/');
+					if(!prefix.isEmpty()) {
+						location = location.isEmpty() ? prefix : prefix + '/' + location;
+					}
+					result.add(new LocalArtifact(name.substring(0, underscore), name.substring(underscore + 1), feature, p, location));
+				});
+		} catch(IOException e) {
+			if(log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, StringUtil.format("Unable to scan local repository {0}", base), e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the separator between the ID and version in a JAR name, which is the first
+	 * underscore followed by a digit, since version qualifiers may themselves contain
+	 * underscores.
+	 *
+	 * @return the index of the separator, or {@code -1} if there is none
+	 */
+	private static int indexOfVersion(String name) {
+		for(int i = name.indexOf('_'); i > -1 && i < name.length() - 1; i = name.indexOf('_', i + 1)) {
+			if(Character.isDigit(name.charAt(i + 1))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private LocalArtifact(String id, String version, boolean feature, Path file, String location) {
+		this.id = id;
+		this.version = version;
+		this.feature = feature;
+		this.file = file;
+		this.location = location;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public boolean isFeature() {
+		return feature;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the containing directory, relative to the repository root
+	 */
+	public String getLocation() {
+		return location;
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * Reduces bundle manifests to the headers needed by p2's OSGi touchpoint before they
+ * are embedded in a plugin unit's {@code touchpointData}.
+ *
+ * <p>The touchpoint only uses the manifest to identify the bundle being installed, so
+ * large headers such as {@code Export-Package} and {@code Bundle-ClassPath} are dead
+ * weight in content.xml. This matches what p2's own publisher writes.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+enum ManifestReducer {
+	;
+
+	/**
+	 * The xsp.properties property listing the headers to keep, separated by commas,
+	 * or {@value #ALL_HEADERS} to embed manifests unchanged
+	 */
+	public static final String PROP_MANIFEST_HEADERS = "repositorybrowser.usnsf.manifestHeaders"; //$NON-NLS-1$
+	public static final String ALL_HEADERS = "*"; //$NON-NLS-1$
+	public static final String DEFAULT_HEADERS = "Bundle-SymbolicName,Bundle-Version,Fragment-Host"; //$NON-NLS-1$
+
+	/**
+	 * Produces the manifest text to embed for a plugin.
+	 *
+	 * @param manifestContent the full text of the plugin's manifest
+	 * @param manifest the parsed main section of the manifest
+	 * @return the reduced manifest text, or {@code manifestContent} if reduction is disabled
+	 */
+	public static String reduce(String manifestContent, Map<String, String> manifest) {
+		List<String> headers = getHeaders();
+		if(headers == null) {
+			return manifestContent;
+		}
+
+		StringBuilder result = new StringBuilder();
+		for(String header : headers) {
+			// Header names are case-insensitive, but the parsed map keeps them as written
+			manifest.entrySet().stream()
+				.filter(e -> e.getKey().equalsIgnoreCase(header))
+				.findFirst()
+				.ifPresent(e -> result.append(e.getKey()).append(": ").append(e.getValue()).append('\n')); //$NON-NLS-1$
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the configured value of {@value #PROP_MANIFEST_HEADERS}, for detecting when
+	 *         previously-reduced manifests are out of date
+	 */
+	public static String getConfiguration() {
+		return Constants.getProperty(PROP_MANIFEST_HEADERS, DEFAULT_HEADERS);
+	}
+
+	/**
+	 * @return the headers to keep, or {@code null} if manifests should be kept in full
+	 */
+	private static List<String> getHeaders() {
+		String value = getConfiguration();
+		if(ALL_HEADERS.equals(value)) {
+			return null;
+		}
+		return Arrays.stream(StringUtil.splitString(value, ','))
+			.map(String::trim)
+			.filter(StringUtil::isNotEmpty)
+			.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.openntf.eclipse.osgi.util.ManifestElement;
+
+import com.ibm.commons.util.StringUtil;
+
+import lotus.domino.Document;
+import lotus.domino.EmbeddedObject;
+import lotus.domino.NotesException;
+import lotus.domino.RichTextItem;
+
+/**
+ * The catalog information for a single plugin document in an Update Site NSF, holding
+ * everything needed to generate metadata without re-reading the document.
+ *
+ * <p>IDs, versions and package names shared between bundles are held in the
+ * {@link StringPool}, and requirements are stored as pairs of pool indexes rather than
+ * as objects. Names are held directly, so that they are released with the catalog.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class PluginEntry {
+	private static final Logger log = Logger.getLogger(PluginEntry.class.getPackage().getName());
+
+	private final String unid;
+	private final String id;
+	private final String version;
+	private final String name;
+	private final String providerName;
+	private final boolean fragment;
+	private final String fragmentHost;
+	private final long lastModified;
+	private final long size;
+	private final String manifestContent;
+	/** Pairs of pool indexes for the ID and version range of each required bundle */
+	private final int[] requiredPlugins;
+	/** Pairs of pool indexes for the name and version range of each imported package */
+	private final int[] importedPackages;
+
+	PluginEntry(String unid, String id, String version, String name, String providerName, boolean fragment, String fragmentHost,
+			long lastModified, long size, String manifestContent, List<PluginInfo> requiredPlugins, List<PackageInfo> importedPackages) {
+		StringPool pool = StringPool.INSTANCE;
+		this.unid = unid;
+		this.id = pool.pool(id);
+		this.version = pool.pool(version);
+		// Free text is kept per-entry, so that it is released along with the catalog
+		this.name = name;
+		this.providerName = providerName;
+		this.fragment = fragment;
+		this.fragmentHost = pool.pool(fragmentHost);
+		this.lastModified = lastModified;
+		this.size = size;
+		this.manifestContent = manifestContent;
+		this.requiredPlugins = new int[requiredPlugins.size() * 2];
+		for(int i = 0; i < requiredPlugins.size(); i++) {
+			this.requiredPlugins[i * 2] = pool.indexOf(requiredPlugins.get(i).getId());
+			this.requiredPlugins[i * 2 + 1] = pool.indexOf(requiredPlugins.get(i).getVersion());
+		}
+		this.importedPackages = new int[importedPackages.size() * 2];
+		for(int i = 0; i < importedPackages.size(); i++) {
+			this.importedPackages[i * 2] = pool.indexOf(importedPackages.get(i).getName());
+			this.importedPackages[i * 2 + 1] = pool.indexOf(importedPackages.get(i).getVersion());
+		}
+	}
+
+	/**
+	 * Reads the catalog information from a plugin document.
+	 *
+	 * @param doc the plugin document
+	 * @param id the plugin ID, as listed in the plugins view
+	 * @param version the plugin version, as listed in the plugins view
+	 * @return a new {@link PluginEntry}
+	 */
+	public static PluginEntry read(Document doc, String id, String version) throws NotesException, IOException {
+		RichTextItem manifestItem = (RichTextItem)doc.getFirstItem(UpdateSiteNSFVFSPlugin.ITEM_MANIFESTMF);
+		String manifestContent = manifestItem.getUnformattedText();
+		Map<String, String> manifest = ManifestElement.parseBundleManifest(new ByteArrayInputStream(manifestContent.getBytes(StandardCharsets.UTF_8)), null);
+
+		long size;
+		RichTextItem fileItem = (RichTextItem)doc.getFirstItem(UpdateSiteNSFVFSPlugin.ITEM_FILE);
+		EmbeddedObject obj = (EmbeddedObject)fileItem.getEmbeddedObjects().get(0);
+		try {
+			size = obj.getFileSize();
+		} finally {
+			obj.recycle();
+		}
+
+		return new PluginEntry(
+			doc.getUniversalID(),
+			id,
+			version,
+			doc.getItemValueString(UpdateSiteNSFVFSPlugin.ITEM_NAME),
+			doc.getItemValueString(UpdateSiteNSFVFSPlugin.ITEM_PROVIDER),
+			"true".equals(doc.getItemValueString(UpdateSiteNSFVFSPlugin.ITEM_FRAGMENT)), //$NON-NLS-1$
+			manifest.get("Fragment-Host"), //$NON-NLS-1$
+			Long.parseLong(doc.getItemValueString(UpdateSiteNSFVFSPlugin.ITEM_MOD), 10),
+			size,
+			manifestContent,
+			parseRequiredPlugins(manifest.get("Require-Bundle")), //$NON-NLS-1$
+			parseImportedPackages(manifest.get("Import-Package")) //$NON-NLS-1$
+		);
+	}
+
+	public String getUnid() {
+		return unid;
+	}
+	public String getId() {
+		return id;
+	}
+	public String getVersion() {
+		return version;
+	}
+	public String getName() {
+		return name;
+	}
+	public String getProviderName() {
+		return providerName;
+	}
+	public boolean isFragment() {
+		return fragment;
+	}
+	public String getFragmentHost() {
+		return fragmentHost;
+	}
+	public long getLastModified() {
+		return lastModified;
+	}
+	public long getSize() {
+		return size;
+	}
+	public String getManifestContent() {
+		return manifestContent;
+	}
+	public List<PluginInfo> getRequiredPlugins() {
+		StringPool pool = StringPool.INSTANCE;
+		List<PluginInfo> result = new ArrayList<>(requiredPlugins.length / 2);
+		for(int i = 0; i < requiredPlugins.length; i += 2) {
+			result.add(new PluginInfo(pool.get(requiredPlugins[i]), pool.get(requiredPlugins[i + 1])));
+		}
+		return result;
+	}
+	public List<PackageInfo> getImportedPackages() {
+		StringPool pool = StringPool.INSTANCE;
+		List<PackageInfo> result = new ArrayList<>(importedPackages.length / 2);
+		for(int i = 0; i < importedPackages.length; i += 2) {
+			result.add(new PackageInfo(pool.get(importedPackages[i]), pool.get(importedPackages[i + 1])));
+		}
+		return result;
+	}
+	/**
+	 * Parses the exported packages from the stored manifest. These are not kept in the
+	 * catalog, so callers that need them repeatedly should hold on to the result.
+	 *
+	 * @return the exported packages, or an empty list if the manifest cannot be read
+	 */
+	public List<PackageInfo> getExportedPackages() {
+		if(StringUtil.isEmpty(manifestContent)) {
+			return Collections.emptyList();
+		}
+		try {
+			Map<String, String> manifest = ManifestElement.parseBundleManifest(new ByteArrayInputStream(manifestContent.getBytes(StandardCharsets.UTF_8)), null);
+			String exports = manifest.get("Export-Package"); //$NON-NLS-1$
+			if(StringUtil.isEmpty(exports)) {
+				return Collections.emptyList();
+			}
+			List<PackageInfo> result = new ArrayList<>();
+			for(ManifestElement element : ManifestElement.parseHeader("Export-Package", exports)) { //$NON-NLS-1$
+				String version = versionOrDefault(element.getAttribute("version")); //$NON-NLS-1$
+				for(String name : element.getValueComponents()) {
+					result.add(new PackageInfo(name, version));
+				}
+			}
+			return result;
+		} catch(IOException | RuntimeException e) {
+			if(log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, StringUtil.format("Unable to read exported packages for {0}", id), e);
+			}
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * @return the pool indexes of the required bundles, as ID and version pairs
+	 */
+	int[] getRequiredPluginIndexes() {
+		return requiredPlugins;
+	}
+	/**
+	 * @return the pool indexes of the imported packages, as name and version pairs
+	 */
+	int[] getImportedPackageIndexes() {
+		return importedPackages;
+	}
+
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+
+	private static List<PluginInfo> parseRequiredPlugins(String require) {
+		if(StringUtil.isEmpty(require)) {
+			return Collections.emptyList();
+		} else {
+			ManifestElement[] elements = ManifestElement.parseHeader("Require-Bundle", require); //$NON-NLS-1$
+			return Arrays.stream(elements)
+				.filter(el -> !StringUtil.equals("optional", el.getAttribute("resolution"))) //$NON-NLS-1$ //$NON-NLS-2$
+				.map(el -> new PluginInfo(el.getValue(), versionOrDefault(el.getAttribute("version")))) //$NON-NLS-1$
+				.collect(Collectors.toList());
+		}
+	}
+
+	private static List<PackageInfo> parseImportedPackages(String imports) {
+		if(StringUtil.isEmpty(imports)) {
+			return Collections.emptyList();
+		} else {
+			ManifestElement[] elements = ManifestElement.parseHeader("Import-Package", imports); //$NON-NLS-1$
+			return Arrays.stream(elements)
+				.filter(el -> !StringUtil.equals("optional", el.getAttribute("resolution"))) //$NON-NLS-1$ //$NON-NLS-2$
+				.map(el -> new PackageInfo(el.getValue(), versionOrDefault(el.getAttribute("version")))) //$NON-NLS-1$
+				.collect(Collectors.toList());
+		}
+	}
+
+	private static String versionOrDefault(String version) {
+		return StringUtil.isEmpty(version) ? "0.0.0" : version; //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+import lotus.domino.EmbeddedObject;
+import lotus.domino.NotesException;
+import util.TempFileInputStream;
+import util.Utils;
+
+/**
+ * Manages the scratch directory used when Update Site NSF attachments are extracted to
+ * disk before being served.
+ *
+ * <p>Extractions are accounted against a size quota, and a caller that would exceed it is
+ * told to stream the attachment instead. Files are deleted when their stream is closed;
+ * a periodic sweep removes any left behind by aborted requests or a previous run, so
+ * nothing relies on {@link File#deleteOnExit()}.</p>
+ *
+ * <p>Identical artifacts, as identified by {@link ArtifactDedupIndex#key}, share a
+ * single extraction while any stream for them is open, even when they are served from
+ * different databases.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class ScratchSpace {
+	private static final Logger log = Logger.getLogger(ScratchSpace.class.getPackage().getName());
+
+	/** The xsp.properties property used to override the scratch directory */
+	public static final String PROP_SCRATCH_DIR = "repositorybrowser.usnsf.scratchDir"; //$NON-NLS-1$
+	/** The xsp.properties property for the maximum size of the scratch directory, in megabytes */
+	public static final String PROP_SCRATCH_QUOTA = "repositorybrowser.usnsf.scratchQuota"; //$NON-NLS-1$
+	/** The xsp.properties property for the age, in milliseconds, after which scratch files are swept */
+	public static final String PROP_SCRATCH_MAX_AGE = "repositorybrowser.usnsf.scratchMaxAge"; //$NON-NLS-1$
+
+	public static final int DEFAULT_QUOTA = 512;
+	public static final int DEFAULT_MAX_AGE = 60 * 60 * 1000;
+
+	private static final String FILE_PREFIX = "usnsf"; //$NON-NLS-1$
+	private static final String FILE_SUFFIX = ".dat"; //$NON-NLS-1$
+
+	public static final ScratchSpace INSTANCE = new ScratchSpace();
+
+	private final Map<Path, Long> active = new ConcurrentHashMap<>();
+	/** Shared extractions by artifact key, guarded by this object */
+	private final Map<String, SharedFile> shared = new HashMap<>();
+	private final AtomicLong bytesInUse = new AtomicLong();
+	private final AtomicLong extracted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong sharedHits = new AtomicLong();
+	private final AtomicLong swept = new AtomicLong();
+
+	private Path directory;
+	private ScheduledExecutorService sweeper;
+	private boolean shutdown;
+
+	private ScratchSpace() {
+	}
+
+	/**
+	 * Extracts the attachment to a scratch file, if the quota allows it.
+	 *
+	 * @param obj the attachment to extract
+	 * @param size the expected size of the attachment, in bytes
+	 * @param key the content key of the attachment, or {@code null} if it is not known
+	 * @return a stream that deletes the file on close, or {@code null} if extracting the
+	 *         attachment would exceed the quota
+	 */
+	public InputStream extract(EmbeddedObject obj, long size, String key) throws NotesException, IOException {
+		Path dir = getDirectory();
+		if(key != null) {
+			InputStream existing = openShared(key);
+			if(existing != null) {
+				sharedHits.incrementAndGet();
+				return existing;
+			}
+		}
+		if(!reserve(size)) {
+			rejected.incrementAndGet();
+			return null;
+		}
+
+		Path file = null;
+		try {
+			file = Files.createTempFile(dir, FILE_PREFIX, FILE_SUFFIX);
+			active.put(file, size);
+			Files.delete(file);
+			obj.extractFile(file.toString());
+
+			// Correct the reservation in case the recorded size was stale
+			long actual = Files.size(file);
+			if(actual != size) {
+				active.put(file, actual);
+				bytesInUse.addAndGet(actual - size);
+			}
+			extracted.incrementAndGet();
+			return key == null ? new ScratchFileInputStream(file) : share(key, file);
+		} catch(NotesException | IOException | RuntimeException e) {
+			if(file != null) {
+				release(file);
+			} else {
+				bytesInUse.addAndGet(-size);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes abandoned scratch files, as well as any left behind by a previous run. Only
+	 * files named as this class creates them are considered, since the scratch directory
+	 * may be shared with other applications, and only once they are older than
+	 * {@link #PROP_SCRATCH_MAX_AGE}, since the directory may also be shared with other
+	 * copies of this application whose extractions are still in use.
+	 */
+	public void sweep() {
+		Path dir = getDirectory();
+		long cutoff = System.currentTimeMillis() - Constants.getIntProperty(PROP_SCRATCH_MAX_AGE, DEFAULT_MAX_AGE);
+		int count = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + FILE_SUFFIX)) { //$NON-NLS-1$
+			for(Path file : files) {
+				try {
+					// Files not known to this instance may belong to another copy of the application
+					if(Files.getLastModifiedTime(file).toMillis() > cutoff) {
+						continue;
+					}
+					if(Files.deleteIfExists(file)) {
+						count++;
+					}
+					Long size = active.remove(file);
+					if(size != null) {
+						bytesInUse.addAndGet(-size);
+					}
+				} catch(IOException e) {
+					// Most likely still open on Windows - try again next time
+				}
+			}
+		} catch(IOException e) {
+			if(log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, StringUtil.format("Unable to sweep scratch directory {0}", dir), e);
+			}
+		}
+		swept.addAndGet(count);
+		if(count > 0 && log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Swept {0} scratch files from {1}", count, dir));
+		}
+	}
+
+	/**
+	 * Stops the background sweeper, such as when the application is shutting down. The
+	 * sweeper is not restarted by later use.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		if(sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+	}
+
+	public long getBytesInUse() {
+		return bytesInUse.get();
+	}
+
+	public int getFilesInUse() {
+		return active.size();
+	}
+
+	/**
+	 * @return the quota for the scratch directory, in bytes
+	 */
+	public long getQuota() {
+		return Constants.getIntProperty(PROP_SCRATCH_QUOTA, DEFAULT_QUOTA) * 1024L * 1024L;
+	}
+
+	/**
+	 * @return the report as a map, suitable for JSON serialization
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("bytesInUse", getBytesInUse()); //$NON-NLS-1$
+		result.put("filesInUse", getFilesInUse()); //$NON-NLS-1$
+		result.put("quota", getQuota()); //$NON-NLS-1$
+		result.put("extracted", extracted.get()); //$NON-NLS-1$
+		result.put("rejected", rejected.get()); //$NON-NLS-1$
+		result.put("sharedHits", sharedHits.get()); //$NON-NLS-1$
+		result.put("swept", swept.get()); //$NON-NLS-1$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	/**
+	 * Creates the directory and starts the sweeper on first use, clearing out anything
+	 * stale left by a previous run.
+	 */
+	private synchronized Path getDirectory() {
+		if(directory == null) {
+			String dir = Constants.getProperty(PROP_SCRATCH_DIR, null);
+			Path path = StringUtil.isEmpty(dir) ? Utils.getTempDirectory().resolve("repositorybrowser-scratch") : Paths.get(dir); //$NON-NLS-1$
+			try {
+				Files.createDirectories(path);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			directory = path;
+			sweep();
+		}
+		if(sweeper == null && !shutdown) {
+			long interval = Math.max(Constants.getIntProperty(PROP_SCRATCH_MAX_AGE, DEFAULT_MAX_AGE) / 4, 1000);
+			sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, ScratchSpace.class.getSimpleName());
+				t.setDaemon(true);
+				return t;
+			});
+			sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		return directory;
+	}
+
+	private boolean reserve(long size) {
+		long quota = getQuota();
+		while(true) {
+			long current = bytesInUse.get();
+			if(current + size > quota) {
+				return false;
+			}
+			if(bytesInUse.compareAndSet(current, current + size)) {
+				return true;
+			}
+		}
+	}
+
+	private void release(Path file) {
+		Long size = active.remove(file);
+		if(size != null) {
+			bytesInUse.addAndGet(-size);
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch(IOException e) {
+			// Leave it for the sweeper
+		}
+	}
+
+	private synchronized InputStream openShared(String key) throws IOException {
+		SharedFile file = shared.get(key);
+		if(file == null || !active.containsKey(file.path)) {
+			return null;
+		}
+		file.references++;
+		try {
+			return new SharedFileInputStream(key, file);
+		} catch(IOException | RuntimeException e) {
+			file.references--;
+			throw e;
+		}
+	}
+
+	/**
+	 * Registers a new extraction for sharing, unless another thread has extracted the
+	 * same artifact in the meantime.
+	 */
+	private synchronized InputStream share(String key, Path path) throws IOException {
+		if(shared.containsKey(key)) {
+			return new ScratchFileInputStream(path);
+		}
+		SharedFile file = new SharedFile(path);
+		shared.put(key, file);
+		try {
+			return new SharedFileInputStream(key, file);
+		} catch(IOException | RuntimeException e) {
+			shared.remove(key, file);
+			throw e;
+		}
+	}
+
+	private synchronized void closeShared(String key, SharedFile file) {
+		if(--file.references == 0) {
+			shared.remove(key, file);
+			release(file.path);
+		}
+	}
+
+	private static class SharedFile {
+		private final Path path;
+		private int references = 1;
+
+		public SharedFile(Path path) {
+			this.path = path;
+		}
+	}
+
+	private class ScratchFileInputStream extends TempFileInputStream {
+		private final Path file;
+
+		public ScratchFileInputStream(Path file) throws IOException {
+			super(file.toFile());
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				release(file);
+			}
+		}
+	}
+
+	/**
+	 * Reads a shared extraction, which is only deleted once its last reader closes.
+	 */
+	private class SharedFileInputStream extends FilterInputStream {
+		private final String key;
+		private final SharedFile file;
+		private boolean closed;
+
+		public SharedFileInputStream(String key, SharedFile file) throws IOException {
+			super(Files.newInputStream(file.path));
+			this.key = key;
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				closeShared(key, file);
+			}
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * Tracks failures to open and index each Update Site NSF, so that a database on an
+ * unreachable server is skipped for a backoff period rather than holding up every
+ * request until it times out again.
+ *
+ * <p>A site's breaker opens after the number of consecutive failures set by
+ * {@link #PROP_FAILURE_THRESHOLD}, which defaults to {@value #DEFAULT_FAILURE_THRESHOLD}.
+ * Once the backoff period elapses, the next request lets a single attempt through; if
+ * that fails too, the breaker opens again for twice as long, up to the limit set by
+ * {@link #PROP_BACKOFF_MAX}.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class SiteCircuitBreaker {
+	private static final Logger log = Logger.getLogger(SiteCircuitBreaker.class.getPackage().getName());
+
+	/** The number of consecutive failures after which a site is skipped */
+	public static final String PROP_FAILURE_THRESHOLD = "repositorybrowser.usnsf.failureThreshold"; //$NON-NLS-1$
+	/** The time, in milliseconds, for which a failing site is first skipped */
+	public static final String PROP_BACKOFF = "repositorybrowser.usnsf.backoff"; //$NON-NLS-1$
+	/** The maximum time, in milliseconds, for which a failing site is skipped */
+	public static final String PROP_BACKOFF_MAX = "repositorybrowser.usnsf.backoffMax"; //$NON-NLS-1$
+
+	private static final int DEFAULT_FAILURE_THRESHOLD = 2;
+	private static final int DEFAULT_BACKOFF = 60 * 1000;
+	private static final int DEFAULT_BACKOFF_MAX = 15 * 60 * 1000;
+
+	public enum State {
+		/** The site is used normally */
+		CLOSED,
+		/** The site is skipped until its retry time */
+		OPEN,
+		/** The backoff has elapsed and an attempt is underway */
+		HALF_OPEN
+	}
+
+	/** Breakers by database path */
+	private static final Map<String, Breaker> BREAKERS = new ConcurrentHashMap<>();
+
+	private SiteCircuitBreaker() {
+	}
+
+	/**
+	 * Determines whether the given site should be opened for this request. When the
+	 * site's backoff period has elapsed, this lets one attempt through.
+	 *
+	 * @param name the configured site name
+	 * @param path the database path, in "server!!path" form
+	 * @return whether the site should be tried
+	 */
+	public static boolean allow(String name, String path) {
+		return getBreaker(name, path).allow();
+	}
+
+	/**
+	 * Records that the given site was opened and indexed, closing its breaker.
+	 *
+	 * @param name the configured site name
+	 * @param path the database path, in "server!!path" form
+	 */
+	public static void recordSuccess(String name, String path) {
+		getBreaker(name, path).recordSuccess();
+	}
+
+	/**
+	 * Records that the given site could not be opened or indexed in time.
+	 *
+	 * @param name the configured site name
+	 * @param path the database path, in "server!!path" form
+	 * @param reason a description of the failure, for reporting
+	 */
+	public static void recordFailure(String name, String path, String reason) {
+		getBreaker(name, path).recordFailure(reason);
+	}
+
+	/**
+	 * Closes the breaker for the given site, so that the next request tries it again. An
+	 * attempt that has overrun its open timeout is abandoned, so that the next request
+	 * starts a fresh one rather than continuing to skip the site.
+	 *
+	 * @param path the database path, in "server!!path" form
+	 * @return whether a breaker was found for {@code path}
+	 */
+	public static boolean reset(String path) {
+		Breaker breaker = BREAKERS.get(path);
+		if(breaker == null) {
+			return false;
+		}
+		breaker.reset();
+		UpdateSiteNSFFilesystemFactory.abandonOverdue(path);
+		return true;
+	}
+
+	/**
+	 * @param path the database path, in "server!!path" form
+	 * @return whether the given site is being used normally, i.e. it has no breaker or its
+	 *         breaker is neither open nor waiting on a retry
+	 */
+	public static boolean isClosed(String path) {
+		Breaker breaker = BREAKERS.get(path);
+		return breaker == null || breaker.isClosed();
+	}
+
+	/**
+	 * Forgets the breakers of sites that are no longer configured, so that they are not
+	 * reported or treated as unavailable.
+	 *
+	 * @param paths the database paths of the configured sites, in "server!!path" form
+	 */
+	public static void retain(Collection<String> paths) {
+		BREAKERS.keySet().retainAll(paths);
+	}
+
+	/**
+	 * @return the names of the sites whose most recent attempt failed, and whose
+	 *         previously-captured metadata should therefore continue to be served
+	 */
+	public static Set<String> getUnavailableNames() {
+		return BREAKERS.values().stream()
+			.filter(Breaker::isFailing)
+			.map(Breaker::getName)
+			.collect(Collectors.toSet());
+	}
+
+	/**
+	 * @return the number of breakers in each {@link State}, keyed by the state's name in
+	 *         camel case, without identifying the sites
+	 */
+	public static Map<String, Integer> getCounts() {
+		Map<String, Integer> result = new LinkedHashMap<>();
+		result.put("closed", 0); //$NON-NLS-1$
+		result.put("open", 0); //$NON-NLS-1$
+		result.put("halfOpen", 0); //$NON-NLS-1$
+		for(Breaker breaker : BREAKERS.values()) {
+			switch(breaker.getState()) {
+			case OPEN:
+				result.merge("open", 1, Integer::sum); //$NON-NLS-1$
+				break;
+			case HALF_OPEN:
+				result.merge("halfOpen", 1, Integer::sum); //$NON-NLS-1$
+				break;
+			case CLOSED:
+			default:
+				result.merge("closed", 1, Integer::sum); //$NON-NLS-1$
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a {@link List} describing each site's breaker, for status reporting
+	 */
+	public static List<Map<String, Object>> toList() {
+		List<Map<String, Object>> result = new ArrayList<>();
+		for(Breaker breaker : BREAKERS.values()) {
+			result.add(breaker.toMap());
+		}
+		result.sort((a, b) -> StringUtil.toString(a.get("name")).compareToIgnoreCase(StringUtil.toString(b.get("name")))); //$NON-NLS-1$ //$NON-NLS-2$
+		return result;
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static Breaker getBreaker(String name, String path) {
+		Breaker breaker = BREAKERS.computeIfAbsent(path, key -> new Breaker(name, path));
+		// The site may have been renamed in the configuration view
+		breaker.name = name;
+		return breaker;
+	}
+
+	private static class Breaker {
+		private final String path;
+		private volatile String name;
+		private State state = State.CLOSED;
+		private int failures;
+		private long backoff;
+		private long retryAt;
+		private long lastSuccess;
+		private long lastFailure;
+		private String lastError;
+
+		public Breaker(String name, String path) {
+			this.name = name;
+			this.path = path;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized State getState() {
+			return state;
+		}
+
+		public synchronized boolean isClosed() {
+			return state == State.CLOSED;
+		}
+
+		public synchronized boolean isFailing() {
+			return failures > 0;
+		}
+
+		public synchronized boolean allow() {
+			switch(state) {
+			case OPEN:
+				if(System.currentTimeMillis() < retryAt) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+				if(log.isLoggable(Level.INFO)) {
+					log.info(StringUtil.format("Retrying Update Site NSF {0} ({1})", name, path));
+				}
+				return true;
+			case HALF_OPEN:
+				// The retry shares the single in-flight indexing task, so let requests wait on it
+			case CLOSED:
+			default:
+				return true;
+			}
+		}
+
+		public synchronized void recordSuccess() {
+			if(state != State.CLOSED && log.isLoggable(Level.INFO)) {
+				log.info(StringUtil.format("Update Site NSF {0} ({1}) is available again", name, path));
+			}
+			state = State.CLOSED;
+			failures = 0;
+			backoff = 0;
+			lastSuccess = System.currentTimeMillis();
+		}
+
+		public synchronized void recordFailure(String reason) {
+			long now = System.currentTimeMillis();
+			failures++;
+			lastFailure = now;
+			lastError = reason;
+			int threshold = Math.max(1, Constants.getIntProperty(PROP_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD));
+			if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= threshold)) {
+				long max = Constants.getIntProperty(PROP_BACKOFF_MAX, DEFAULT_BACKOFF_MAX);
+				backoff = backoff == 0 ? Constants.getIntProperty(PROP_BACKOFF, DEFAULT_BACKOFF) : Math.min(max, backoff * 2);
+				state = State.OPEN;
+				retryAt = now + backoff;
+				if(log.isLoggable(Level.WARNING)) {
+					log.warning(StringUtil.format("Skipping Update Site NSF {0} ({1}) for {2}ms after {3} consecutive failures", name, path, backoff, failures));
+				}
+			}
+		}
+
+		public synchronized void reset() {
+			state = State.CLOSED;
+			failures = 0;
+			backoff = 0;
+			retryAt = 0;
+		}
+
+		public synchronized Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("name", name); //$NON-NLS-1$
+			result.put("path", path); //$NON-NLS-1$
+			result.put("state", state.name()); //$NON-NLS-1$
+			result.put("failures", failures); //$NON-NLS-1$
+			result.put("retryAt", state == State.OPEN ? retryAt : 0); //$NON-NLS-1$
+			result.put("lastSuccess", lastSuccess); //$NON-NLS-1$
+			result.put("lastFailure", lastFailure); //$NON-NLS-1$
+			result.put("lastError", lastError); //$NON-NLS-1$
+			return result;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An application-wide pool of the identifiers that recur across Update Site NSF catalogs,
+ * such as bundle and package names and versions.
+ *
+ * <p>The pool is never pruned, so it should only hold values drawn from a naturally
+ * bounded set. Free text such as descriptions, URLs and license text belongs on the
+ * catalog entries themselves.</p>
+ *
+ * <p>Each distinct string is stored once and assigned a stable index, allowing catalog
+ * entries to share instances and to store lists of references as {@code int} arrays.
+ * Lookups by value or index do not lock; only adding a new string does.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class StringPool {
+	public static final StringPool INSTANCE = new StringPool();
+
+	private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+	private volatile String[] strings = new String[1024];
+	private volatile int size;
+
+	private StringPool() {
+	}
+
+	/**
+	 * Finds or adds the given string.
+	 *
+	 * @param value the string to pool; may be {@code null}
+	 * @return the index of the pooled string, or {@code -1} for {@code null}
+	 */
+	public int indexOf(String value) {
+		if(value == null) {
+			return -1;
+		}
+		Integer index = indexes.get(value);
+		if(index != null) {
+			return index;
+		}
+		synchronized(this) {
+			index = indexes.get(value);
+			if(index != null) {
+				return index;
+			}
+			int newIndex = size;
+			String[] current = strings;
+			if(newIndex == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+			}
+			current[newIndex] = value;
+			// Publish the array before the size so readers never see an index past its end
+			strings = current;
+			size = newIndex + 1;
+			indexes.put(value, newIndex);
+			return newIndex;
+		}
+	}
+
+	/**
+	 * @param index an index returned by {@link #indexOf}
+	 * @return the pooled string, or {@code null} for {@code -1}
+	 */
+	public String get(int index) {
+		return index < 0 ? null : strings[index];
+	}
+
+	/**
+	 * @param value the string to pool; may be {@code null}
+	 * @return the shared instance equal to {@code value}
+	 */
+	public String pool(String value) {
+		return get(indexOf(value));
+	}
+
+	/**
+	 * Pools a list of strings as an array of indexes.
+	 */
+	public int[] indexesOf(List<String> values) {
+		int[] result = new int[values.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = indexOf(values.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of distinct strings in the pool
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.commons.util.StringUtil;
+
+import lotus.domino.Database;
+import lotus.domino.DateTime;
+import lotus.domino.Document;
+import lotus.domino.DocumentCollection;
+import lotus.domino.NotesException;
+import lotus.domino.View;
+import lotus.domino.ViewEntry;
+import lotus.domino.ViewNavigator;
+
+/**
+ * An immutable, Notes-independent catalog of the plugins and features published in
+ * an Update Site NSF, keyed by document UNID.
+ *
+ * <p>A catalog can be built by scanning the database's views in full or derived from
+ * an older catalog by re-reading only the documents modified since that catalog's
+ * high-water mark, so that the cost of an update is proportional to the number of
+ * changed documents rather than the size of the database.</p>
+ *
+ * <p>The one exception to immutability is the set of artifact checksums, which are
+ * computed in the background after the catalog is built. They are keyed by document
+ * UNID and modification time, so a checksum never outlives the attachment it was
+ * computed from.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class UpdateSiteCatalog {
+	private static final Logger log = Logger.getLogger(UpdateSiteCatalog.class.getPackage().getName());
+
+	private final String replicaId;
+	private final String title;
+	private final long timestamp;
+	private final long highWaterMark;
+	private final Map<String, PluginEntry> plugins;
+	private final Map<String, FeatureEntry> features;
+	private final Map<String, String> checksums;
+	private volatile long checksumsModified;
+
+	UpdateSiteCatalog(String replicaId, String title, long timestamp, long highWaterMark, Map<String, PluginEntry> plugins, Map<String, FeatureEntry> features, Map<String, String> checksums) {
+		this.replicaId = replicaId;
+		this.title = title;
+		this.timestamp = timestamp;
+		this.highWaterMark = highWaterMark;
+		this.plugins = Collections.unmodifiableMap(plugins);
+		this.features = Collections.unmodifiableMap(features);
+		this.checksums = new ConcurrentHashMap<>(checksums);
+	}
+
+	/**
+	 * Builds a new catalog by reading every plugin, fragment, and enabled feature in the
+	 * database.
+	 *
+	 * @param database the Update Site NSF to read
+	 * @return a new {@link UpdateSiteCatalog}
+	 */
+	public static UpdateSiteCatalog build(Database database) throws NotesException, IOException {
+		// Capture this first so that anything modified during the scan is caught by the next delta
+		long timestamp = getLastModified(database);
+
+		Map<String, PluginEntry> plugins = new LinkedHashMap<>();
+		for(String viewName : Arrays.asList(UpdateSiteNSFVFS.VIEW_PLUGINS, UpdateSiteNSFVFS.VIEW_FRAGMENTS)) {
+			View view = database.getView(viewName);
+			view.setAutoUpdate(false);
+			ViewNavigator nav = view.createViewNav();
+			nav.setBufferMaxEntries(400);
+			ViewEntry entry = nav.getFirst();
+			while(entry != null) {
+				entry.setPreferJavaDates(true);
+				if(entry.isDocument()) {
+					PluginEntry plugin = readPlugin(entry);
+					if(plugin != null) {
+						plugins.put(plugin.getUnid(), plugin);
+					}
+				}
+
+				ViewEntry tempEntry = entry;
+				entry = nav.getNext();
+				tempEntry.recycle();
+			}
+		}
+
+		Map<String, FeatureEntry> features = new LinkedHashMap<>();
+		{
+			View view = database.getView(UpdateSiteNSFVFS.VIEW_FEATURES);
+			view.setAutoUpdate(false);
+			ViewNavigator nav = view.createViewNav();
+			nav.setBufferMaxEntries(400);
+			ViewEntry entry = nav.getFirst();
+			while(entry != null) {
+				entry.setPreferJavaDates(true);
+				if(entry.isDocument()) {
+					FeatureEntry feature = readFeature(entry);
+					if(feature != null) {
+						features.put(feature.getUnid(), feature);
+					}
+				}
+
+				ViewEntry tempEntry = entry;
+				entry = nav.getNext();
+				tempEntry.recycle();
+			}
+		}
+
+		return new UpdateSiteCatalog(database.getReplicaID(), database.getTitle(), timestamp, timestamp, plugins, features, Collections.emptyMap());
+	}
+
+	/**
+	 * Derives a catalog reflecting the current state of the database by re-reading only
+	 * the documents modified since this catalog's high-water mark, including deletion
+	 * stubs. Entries for documents that are still present keep their position.
+	 *
+	 * @param database the Update Site NSF this catalog was built from
+	 * @return a new {@link UpdateSiteCatalog}, or this object if nothing has changed
+	 */
+	public UpdateSiteCatalog update(Database database) throws NotesException, IOException {
+		long newTimestamp = getLastModified(database);
+		if(newTimestamp == this.timestamp) {
+			return this;
+		}
+
+		Map<String, PluginEntry> plugins = new LinkedHashMap<>(this.plugins);
+		Map<String, FeatureEntry> features = new LinkedHashMap<>(this.features);
+		long newHighWaterMark;
+		int changed = 0;
+
+		DateTime since = database.getParent().createDateTime(new Date(this.highWaterMark));
+		try {
+			DocumentCollection modified = database.getModifiedDocuments(since, Database.DBMOD_DOC_DATA);
+			try {
+				// The server's "until" time is the exact point to resume from next time
+				DateTime until = modified.getUntilTime();
+				try {
+					newHighWaterMark = until.toJavaDate().getTime();
+				} finally {
+					until.recycle();
+				}
+
+				if(modified.getCount() > 0) {
+					View pluginsView = database.getView(UpdateSiteNSFVFS.VIEW_PLUGINS);
+					View fragmentsView = database.getView(UpdateSiteNSFVFS.VIEW_FRAGMENTS);
+					View featuresView = database.getView(UpdateSiteNSFVFS.VIEW_FEATURES);
+					// The documents were modified since the views were last updated, so bring
+					//   their indexes up to date once before looking each one up
+					for(View view : Arrays.asList(pluginsView, fragmentsView, featuresView)) {
+						view.refresh();
+						view.setAutoUpdate(false);
+					}
+
+					Document doc = modified.getFirstDocument();
+					while(doc != null) {
+						String unid = doc.getUniversalID();
+						PluginEntry plugin = null;
+						FeatureEntry feature = null;
+
+						// Deletion stubs just drop out of the catalog
+						if(!doc.isDeleted() && doc.isValid()) {
+							ViewEntry entry = findEntry(pluginsView, doc);
+							if(entry == null) {
+								entry = findEntry(fragmentsView, doc);
+							}
+							if(entry != null) {
+								plugin = readPlugin(entry);
+								entry.recycle();
+							} else {
+								entry = findEntry(featuresView, doc);
+								if(entry != null) {
+									feature = readFeature(entry);
+									entry.recycle();
+								}
+							}
+						}
+
+						// Replacing in place keeps the existing order for updated documents
+						if(plugin != null) {
+							plugins.put(unid, plugin);
+						} else {
+							plugins.remove(unid);
+						}
+						if(feature != null) {
+							features.put(unid, feature);
+						} else {
+							features.remove(unid);
+						}
+						changed++;
+
+						Document tempDoc = doc;
+						doc = modified.getNextDocument(doc);
+						tempDoc.recycle();
+					}
+				}
+			} finally {
+				modified.recycle();
+			}
+		} finally {
+			since.recycle();
+		}
+
+		if(log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Applied {0} modified documents to the catalog for {1}", changed, this.replicaId));
+		}
+
+		UpdateSiteCatalog result = new UpdateSiteCatalog(database.getReplicaID(), database.getTitle(), newTimestamp, newHighWaterMark, plugins, features, Collections.emptyMap());
+		result.adoptChecksums(this);
+		return result;
+	}
+
+	public String getReplicaId() {
+		return replicaId;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the database modification time as of which this catalog is current
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the server time from which the next incremental update should look for
+	 *         modified documents
+	 */
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	public Collection<PluginEntry> getPlugins() {
+		return plugins.values();
+	}
+
+	public Collection<FeatureEntry> getFeatures() {
+		return features.values();
+	}
+
+	/**
+	 * @param unid the UNID of the plugin or feature document
+	 * @param lastModified the modification time of the document's attachment
+	 * @return the hex-encoded SHA-256 digest of the attachment, or {@code null} if it has
+	 *         not been computed
+	 */
+	public String getChecksum(String unid, long lastModified) {
+		return checksums.get(checksumKey(unid, lastModified));
+	}
+
+	public void putChecksum(String unid, long lastModified, String checksum) {
+		checksums.put(checksumKey(unid, lastModified), checksum);
+		checksumsModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the checksums as stored, keyed by UNID and modification time
+	 */
+	Map<String, String> getChecksums() {
+		return Collections.unmodifiableMap(checksums);
+	}
+
+	/**
+	 * @return the time at which a checksum was last added, or {@code 0} if none have been
+	 *         added since this catalog was created
+	 */
+	public long getChecksumsModified() {
+		return checksumsModified;
+	}
+
+	/**
+	 * @param skip identifies, by UNID and modification time, entries whose checksum is not
+	 *        expected, such as those that could not be read
+	 * @return whether any other plugin or feature in the catalog lacks a checksum
+	 */
+	public boolean isMissingChecksums(BiPredicate<String, Long> skip) {
+		return plugins.values().stream().anyMatch(p -> getChecksum(p.getUnid(), p.getLastModified()) == null && !skip.test(p.getUnid(), p.getLastModified()))
+			|| features.values().stream().anyMatch(f -> getChecksum(f.getUnid(), f.getLastModified()) == null && !skip.test(f.getUnid(), f.getLastModified()));
+	}
+
+	/**
+	 * Copies over the checksums from another catalog for the same database that still
+	 * apply to this catalog's entries.
+	 */
+	void adoptChecksums(UpdateSiteCatalog other) {
+		if(other == this) {
+			return;
+		}
+		int adopted = 0;
+		for(PluginEntry plugin : plugins.values()) {
+			adopted += adoptChecksum(other, plugin.getUnid(), plugin.getLastModified());
+		}
+		for(FeatureEntry feature : features.values()) {
+			adopted += adoptChecksum(other, feature.getUnid(), feature.getLastModified());
+		}
+		if(adopted > 0) {
+			checksumsModified = Math.max(checksumsModified, other.checksumsModified);
+		}
+	}
+
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+
+	private int adoptChecksum(UpdateSiteCatalog other, String unid, long lastModified) {
+		String key = checksumKey(unid, lastModified);
+		String checksum = other.checksums.get(key);
+		if(checksum != null && !checksum.equals(checksums.put(key, checksum))) {
+			return 1;
+		}
+		return 0;
+	}
+
+	private static String checksumKey(String unid, long lastModified) {
+		return unid + '-' + lastModified;
+	}
+
+	static long getLastModified(Database database) throws NotesException {
+		DateTime dt = database.getLastModified();
+		try {
+			return dt.toJavaDate().getTime();
+		} finally {
+			dt.recycle();
+		}
+	}
+
+	/**
+	 * Reads a plugin from an entry in the plugins or fragments view, where the
+	 * second column is the ID and the third is the version.
+	 */
+	private static PluginEntry readPlugin(ViewEntry entry) throws NotesException, IOException {
+		List<?> columnValues = entry.getColumnValues();
+		String id = StringUtil.toString(columnValues.get(1));
+		if(StringUtil.isEmpty(id)) {
+			return null;
+		}
+		String version = StringUtil.toString(columnValues.get(2));
+		return PluginEntry.read(entry.getDocument(), id, version);
+	}
+
+	/**
+	 * Reads a feature from an entry in the features view, skipping disabled features.
+	 */
+	private static FeatureEntry readFeature(ViewEntry entry) throws NotesException {
+		List<?> columnValues = entry.getColumnValues();
+		boolean enabled = (Double)columnValues.get(0) == UpdateSiteNSFVFS.ICON_ENABLED;
+		String id = StringUtil.toString(columnValues.get(4));
+		if(!enabled || StringUtil.isEmpty(id)) {
+			return null;
+		}
+		String version = StringUtil.toString(columnValues.get(5));
+		return FeatureEntry.read(entry.getDocument(), id, version);
+	}
+
+	/**
+	 * Finds the entry for the given document in the view, if the document is
+	 * included in it. The view must have been refreshed since the document was modified.
+	 */
+	private static ViewEntry findEntry(View view, Document doc) throws NotesException {
+		ViewNavigator nav;
+		try {
+			nav = view.createViewNavFrom(doc);
+		} catch(NotesException e) {
+			// Thrown when the document is not in the view
+			return null;
+		}
+		ViewEntry entry = nav.getCurrent();
+		if(entry != null && StringUtil.equals(entry.getUniversalID(), doc.getUniversalID())) {
+			entry.setPreferJavaDates(true);
+			return entry;
+		}
+		if(entry != null) {
+			entry.recycle();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openntf.website.repositorybrowser.Constants;
+
+import com.ibm.commons.util.StringUtil;
+
+/**
+ * Reads and writes {@link UpdateSiteCatalog}s as compact binary snapshots, one file
+ * per replica ID, so that a restarted server only needs to read the documents modified
+ * since the snapshot was taken.
+ *
+ * <p>Snapshots are written to a temporary file and moved into place, so readers never
+ * see a partial file. A snapshot that is missing, unreadable or from a different format
+ * version is ignored and the catalog is rebuilt from the database.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+enum UpdateSiteCatalogSnapshots {
+	;
+	private static final Logger log = Logger.getLogger(UpdateSiteCatalogSnapshots.class.getPackage().getName());
+
+	/** The xsp.properties property used to override the snapshot directory */
+	public static final String PROP_CATALOG_DIR = "repositorybrowser.usnsf.catalogDir"; //$NON-NLS-1$
+
+	/** "USNC" */
+	private static final int MAGIC = 0x55534E43;
+	/** Increment this whenever the layout written by {@link #write} changes */
+	private static final int FORMAT_VERSION = 3;
+
+	/**
+	 * Loads the stored catalog for the given replica, if one exists and is readable.
+	 *
+	 * @param replicaId the replica ID of the Update Site NSF
+	 * @return the stored {@link UpdateSiteCatalog}, or {@code null} if none is usable
+	 */
+	public static UpdateSiteCatalog load(String replicaId) {
+		Path file = getSnapshotFile(replicaId);
+		try(SnapshotInput in = new SnapshotInput(new BufferedInputStream(Files.newInputStream(file)), Files.size(file))) {
+			return read(in);
+		} catch(NoSuchFileException e) {
+			return null;
+		} catch(IOException | RuntimeException e) {
+			if(log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, StringUtil.format("Ignoring unreadable catalog snapshot {0}", file), e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the catalog, replacing any previous snapshot for the same replica. Failures
+	 * are logged and otherwise ignored, since the snapshot is only an optimization.
+	 *
+	 * @param catalog the catalog to store
+	 */
+	public static void save(UpdateSiteCatalog catalog) {
+		Path file = getSnapshotFile(catalog.getReplicaId());
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = Files.createTempFile(file.getParent(), catalog.getReplicaId(), ".tmp"); //$NON-NLS-1$
+			try {
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+					write(catalog, out);
+				}
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch(IOException | RuntimeException e) {
+			if(log.isLoggable(Level.WARNING)) {
+				log.log(Level.WARNING, StringUtil.format("Unable to write catalog snapshot {0}", file), e);
+			}
+		}
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	private static Path getSnapshotFile(String replicaId) {
+		String dir = Constants.getProperty(PROP_CATALOG_DIR, null);
+		Path base = StringUtil.isEmpty(dir) ? Constants.DATA_DIR.resolve("repositorybrowser").resolve("catalog") : Paths.get(dir); //$NON-NLS-1$ //$NON-NLS-2$
+		return base.resolve(replicaId + ".bin"); //$NON-NLS-1$
+	}
+
+	private static void write(UpdateSiteCatalog catalog, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, catalog.getReplicaId());
+		writeString(out, catalog.getTitle());
+		out.writeLong(catalog.getTimestamp());
+		out.writeLong(catalog.getHighWaterMark());
+
+		Collection<PluginEntry> plugins = catalog.getPlugins();
+		out.writeInt(plugins.size());
+		for(PluginEntry plugin : plugins) {
+			writeString(out, plugin.getUnid());
+			writeString(out, plugin.getId());
+			writeString(out, plugin.getVersion());
+			writeString(out, plugin.getName());
+			writeString(out, plugin.getProviderName());
+			out.writeBoolean(plugin.isFragment());
+			writeString(out, plugin.getFragmentHost());
+			out.writeLong(plugin.getLastModified());
+			out.writeLong(plugin.getSize());
+			writeString(out, plugin.getManifestContent());
+			writePlugins(out, plugin.getRequiredPlugins());
+			out.writeInt(plugin.getImportedPackages().size());
+			for(PackageInfo pkg : plugin.getImportedPackages()) {
+				writeString(out, pkg.getName());
+				writeString(out, pkg.getVersion());
+			}
+		}
+
+		Collection<FeatureEntry> features = catalog.getFeatures();
+		out.writeInt(features.size());
+		for(FeatureEntry feature : features) {
+			writeString(out, feature.getUnid());
+			writeString(out, feature.getId());
+			writeString(out, feature.getVersion());
+			writeString(out, feature.getName());
+			writeString(out, feature.getDescription());
+			writeString(out, feature.getDescriptionUrl());
+			writeStrings(out, feature.getImportedFeatures());
+			writeStrings(out, feature.getImportedFeatureVersions());
+			writePlugins(out, feature.getPlugins());
+			writeString(out, feature.getLicense());
+			writeString(out, feature.getLicenseUrl());
+			writeString(out, feature.getCopyright());
+			writeString(out, feature.getCopyrightUrl());
+			writeString(out, feature.getCategory());
+			out.writeLong(feature.getLastModified());
+			out.writeLong(feature.getSize());
+		}
+
+		Map<String, String> checksums = catalog.getChecksums();
+		out.writeInt(checksums.size());
+		for(Map.Entry<String, String> checksum : checksums.entrySet()) {
+			writeString(out, checksum.getKey());
+			writeString(out, checksum.getValue());
+		}
+	}
+
+	private static UpdateSiteCatalog read(SnapshotInput in) throws IOException {
+		if(in.readInt() != MAGIC) {
+			throw new IOException("Not a catalog snapshot");
+		}
+		int version = in.readInt();
+		if(version != FORMAT_VERSION) {
+			throw new IOException(StringUtil.format("Unsupported snapshot version {0}", version));
+		}
+		String replicaId = readString(in);
+		String title = readString(in);
+		long timestamp = in.readLong();
+		long highWaterMark = in.readLong();
+
+		int pluginCount = in.readCount();
+		Map<String, PluginEntry> plugins = new LinkedHashMap<>();
+		for(int i = 0; i < pluginCount; i++) {
+			String unid = readString(in);
+			String id = readString(in);
+			String pluginVersion = readString(in);
+			String name = readString(in);
+			String providerName = readString(in);
+			boolean fragment = in.readBoolean();
+			String fragmentHost = readString(in);
+			long lastModified = in.readLong();
+			long size = in.readLong();
+			String manifestContent = readString(in);
+			List<PluginInfo> requiredPlugins = readPlugins(in);
+			int packageCount = in.readCount();
+			List<PackageInfo> importedPackages = new ArrayList<>(packageCount);
+			for(int j = 0; j < packageCount; j++) {
+				importedPackages.add(new PackageInfo(readString(in), readString(in)));
+			}
+			plugins.put(unid, new PluginEntry(unid, id, pluginVersion, name, providerName, fragment, fragmentHost,
+				lastModified, size, manifestContent, requiredPlugins, importedPackages));
+		}
+
+		int featureCount = in.readCount();
+		Map<String, FeatureEntry> features = new LinkedHashMap<>();
+		for(int i = 0; i < featureCount; i++) {
+			String unid = readString(in);
+			features.put(unid, new FeatureEntry(
+				unid,
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				readStrings(in),
+				readStrings(in),
+				readPlugins(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				in.readLong(),
+				in.readLong()
+			));
+		}
+
+		int checksumCount = in.readCount();
+		Map<String, String> checksums = new HashMap<>();
+		for(int i = 0; i < checksumCount; i++) {
+			checksums.put(readString(in), readString(in));
+		}
+
+		return new UpdateSiteCatalog(replicaId, title, timestamp, highWaterMark, plugins, features, checksums);
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string, since {@link DataOutputStream#writeUTF} is
+	 * limited to 64KB and manifests can exceed that.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(SnapshotInput in) throws IOException {
+		int length = in.readInt();
+		if(length == -1) {
+			return null;
+		}
+		in.checkLength(length, 1);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for(String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	private static List<String> readStrings(SnapshotInput in) throws IOException {
+		int count = in.readCount();
+		List<String> result = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			result.add(readString(in));
+		}
+		return result;
+	}
+
+	private static void writePlugins(DataOutputStream out, List<PluginInfo> plugins) throws IOException {
+		out.writeInt(plugins.size());
+		for(PluginInfo plugin : plugins) {
+			writeString(out, plugin.getId());
+			writeString(out, plugin.getVersion());
+		}
+	}
+
+	private static List<PluginInfo> readPlugins(SnapshotInput in) throws IOException {
+		int count = in.readCount();
+		List<PluginInfo> result = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			result.add(new PluginInfo(readString(in), readString(in)));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads a snapshot while tracking how much of the file remains, so that a corrupt or
+	 * foreign file with an implausible length or count is rejected with an
+	 * {@link IOException} instead of exhausting the heap.
+	 */
+	private static class SnapshotInput extends DataInputStream {
+		/** Every counted item starts with at least one int */
+		private static final int MIN_ITEM_SIZE = 4;
+
+		private final long size;
+
+		public SnapshotInput(InputStream in, long size) {
+			super(new CountingInputStream(in));
+			this.size = size;
+		}
+
+		/**
+		 * Reads the number of items in a list or map.
+		 */
+		public int readCount() throws IOException {
+			int count = readInt();
+			checkLength(count, MIN_ITEM_SIZE);
+			return count;
+		}
+
+		/**
+		 * Verifies that {@code length} items of at least {@code itemSize} bytes each can fit
+		 * in the rest of the file.
+		 */
+		public void checkLength(int length, int itemSize) throws IOException {
+			long remaining = size - ((CountingInputStream)in).count;
+			if(length < 0 || (long)length * itemSize > remaining) {
+				throw new IOException(StringUtil.format("Invalid length {0} with {1} bytes remaining", length, remaining));
+			}
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
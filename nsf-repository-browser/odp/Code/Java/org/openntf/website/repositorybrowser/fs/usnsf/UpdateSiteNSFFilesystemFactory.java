@@ -16,14 +16,26 @@
 package org.openntf.website.repositorybrowser.fs.usnsf;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
+import org.openntf.website.repositorybrowser.Constants;
 import org.openntf.website.repositorybrowser.fs.FilesystemFactory;
 
 import com.ibm.commons.util.StringUtil;
 import com.ibm.commons.vfs.VFS;
-import com.ibm.xsp.extlib.util.ExtLibUtil;
 
 import lotus.domino.Database;
 import lotus.domino.NotesException;
@@ -31,55 +43,134 @@ import lotus.domino.Session;
 import lotus.domino.View;
 import lotus.domino.ViewNavigator;
 import lotus.domino.ViewEntry;
+import util.NotesThreads;
 
 public class UpdateSiteNSFFilesystemFactory implements FilesystemFactory {
+	private static final Logger log = Logger.getLogger(UpdateSiteNSFFilesystemFactory.class.getPackage().getName());
+	
 	public static final String VIEW_SITES = "Update Site NSFs";
 	
+	/** The number of threads used to open and index Update Site NSFs in parallel */
+	public static final String PROP_INDEX_THREADS = "repositorybrowser.usnsf.indexThreads"; //$NON-NLS-1$
+	/** The time, in milliseconds, to wait for an individual Update Site NSF to be indexed */
+	public static final String PROP_INDEX_TIMEOUT = "repositorybrowser.usnsf.indexTimeout"; //$NON-NLS-1$
+	/** The time, in milliseconds, to wait for an individual Update Site NSF to be opened */
+	public static final String PROP_OPEN_TIMEOUT = "repositorybrowser.usnsf.openTimeout"; //$NON-NLS-1$
+	/** The time, in milliseconds, after which an indexed Update Site NSF is checked for changes */
+	public static final String PROP_REFRESH_INTERVAL = "repositorybrowser.usnsf.refreshInterval"; //$NON-NLS-1$
+	
+	private static final int DEFAULT_INDEX_THREADS = 4;
+	private static final int DEFAULT_INDEX_TIMEOUT = 30000;
+	private static final int DEFAULT_OPEN_TIMEOUT = 10000;
+	private static final int DEFAULT_REFRESH_INTERVAL = 60000;
+	/** The longest to wait on a queued task before checking again whether it has started */
+	private static final long QUEUED_POLL_INTERVAL = 250;
+	/** The number of threads used to check that a database can be opened before reading an artifact */
+	private static final int PROBE_THREADS = 2;
+	
+	private static ExecutorService indexPool;
+	private static ExecutorService probePool;
+	/** The time each database was last opened successfully, by database path */
+	private static final Map<String, Long> OPENED = new ConcurrentHashMap<>();
+	/** In-flight indexing tasks by database path, so that slow NSFs are not queued repeatedly */
+	private static final Map<String, IndexTask> INDEXING = new ConcurrentHashMap<>();
+	/** The most recently indexed metadata by database path */
+	private static final Map<String, IndexedSite> INDEXED = new ConcurrentHashMap<>();
+	
 	@Override
 	public Stream<VFS> getFilesystems() {
 		try {
-			Session session = ExtLibUtil.getCurrentSession();
-			Database database = ExtLibUtil.getCurrentDatabase();
+			Database database = NotesThreads.getCurrentDatabase();
 			
-			View view = database.getView(VIEW_SITES);
-			if(view == null) {
-				throw new IllegalStateException("Could not open view '" + VIEW_SITES + "'");
-			}
-			view.setAutoUpdate(false);
+			Map<String, String> sites = getSites(database);
+			INDEXED.keySet().retainAll(sites.values());
+			OPENED.keySet().retainAll(sites.values());
+			SiteCircuitBreaker.retain(sites.values());
 			
-			List<VFS> result = new ArrayList<>();
+			// Sites indexed recently enough are served from their metadata as-is, and ones due
+			//   for a check are re-indexed in the background while the last metadata is served
+			long now = System.currentTimeMillis();
+			long refreshInterval = getRefreshInterval();
+			Map<String, UpdateSiteNSFMetadata> ready = new LinkedHashMap<>();
+			Map<String, IndexTask> waiting = new LinkedHashMap<>();
+			for(Map.Entry<String, String> site : sites.entrySet()) {
+				String name = site.getKey();
+				String path = site.getValue();
+				if(!SiteCircuitBreaker.allow(name, path)) {
+					if(log.isLoggable(Level.FINE)) {
+						log.fine(StringUtil.format("Skipping Update Site NSF {0} ({1}) while its circuit breaker is open", name, path));
+					}
+					continue;
+				}
+				IndexedSite indexed = INDEXED.get(path);
+				IndexTask task = null;
+				if(indexed == null || now - indexed.checked > refreshInterval) {
+					task = index(name, path);
+				}
+				if(indexed != null) {
+					ready.put(name, indexed.metadata);
+				} else if(!task.isOpenOverdue()) {
+					// Otherwise, an earlier request already waited on this attempt and gave up
+					waiting.put(name, task);
+				}
+			}
 			
-			ViewNavigator nav = view.createViewNav();
-			nav.setBufferMaxEntries(400);
-			ViewEntry entry = nav.getFirst();
-			while(entry != null) {
-				entry.setPreferJavaDates(true);
-				List<?> columnValues = entry.getColumnValues();
-				String name = StringUtil.toString(columnValues.get(0));
-				String path = StringUtil.toString(columnValues.get(1));
-				if(StringUtil.isNotEmpty(name) && StringUtil.isNotEmpty(path)) {
-					Database updateSiteNsf = getDatabase(session, path);
-					if(updateSiteNsf != null && updateSiteNsf.isOpen()) {
-						result.add(new UpdateSiteNSFVFS(name, updateSiteNsf));
+			// Only sites that have never been indexed are waited on, each for its own timeouts
+			long queuedDeadline = now + getIndexTimeout();
+			for(Map.Entry<String, IndexTask> entry : waiting.entrySet()) {
+				String name = entry.getKey();
+				String path = sites.get(name);
+				IndexTask task = entry.getValue();
+				try {
+					if(!task.await(task.opened, getOpenTimeout(), queuedDeadline)) {
+						continue;
+					}
+					UpdateSiteNSFMetadata metadata = task.await(task.indexed, getIndexTimeout(), queuedDeadline);
+					if(metadata != null) {
+						ready.put(name, metadata);
+					}
+				} catch(TimeoutException e) {
+					// Leave it running - it will warm the metadata cache for a later request
+					String phase = task.opened.isDone() ? "indexing" : task.started == 0 ? "waiting to open" : "opening"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					if(task.started > 0) {
+						// A task that is still queued says nothing about the database itself
+						task.fail(StringUtil.format("Timed out {0} the database", phase));
+					}
+					if(log.isLoggable(Level.WARNING)) {
+						log.warning(StringUtil.format("Timed out {0} Update Site NSF {1} ({2}); skipping it for this request", phase, name, path));
+					}
+				} catch(ExecutionException e) {
+					if(log.isLoggable(Level.SEVERE)) {
+						log.log(Level.SEVERE, StringUtil.format("Encountered exception indexing Update Site NSF {0} ({1})", name, path), e.getCause());
 					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
 				}
-				
-				ViewEntry tempEntry = entry;
-				entry = nav.getNext();
-				tempEntry.recycle();
 			}
 			
+			// The database itself is only opened on this thread when an artifact is read
+			List<VFS> result = new ArrayList<>();
+			for(Map.Entry<String, String> site : sites.entrySet()) {
+				UpdateSiteNSFMetadata metadata = ready.get(site.getKey());
+				if(metadata != null) {
+					result.add(new UpdateSiteNSFVFS(site.getKey(), site.getValue(), metadata));
+				}
+			}
 			return result.stream();
 		} catch (NotesException e) {
 			throw new RuntimeException(e);
 		}
 	}
-
-	// *******************************************************************************
-	// * Internal utility methods
-	// *******************************************************************************
 	
-	private static Database getDatabase(Session session, String path) throws NotesException {
+	/**
+	 * Opens an Update Site NSF by its configured path.
+	 * 
+	 * @param session the session to open the database with
+	 * @param path the database path, in "server!!path" form
+	 * @return the database, which may not be open
+	 */
+	static Database openDatabase(Session session, String path) throws NotesException {
 		String server;
 		String filePath;
 		int bangIndex = path.indexOf("!!");
@@ -92,4 +183,277 @@ public class UpdateSiteNSFFilesystemFactory implements FilesystemFactory {
 		}
 		return session.getDatabase(server, filePath);
 	}
+
+	/**
+	 * Opens an Update Site NSF on the current thread to read an artifact, skipping it while
+	 * its circuit breaker is not closed.
+	 * 
+	 * <p>A database that was opened successfully within the refresh interval is opened
+	 * directly. Otherwise, since Notes handles can't be passed between threads, the open
+	 * is first tried on a small dedicated pool, where it can be abandoned after the open
+	 * timeout, and only then repeated on the current thread.</p>
+	 * 
+	 * @param session the session to open the database with
+	 * @param name the configured site name
+	 * @param path the database path, in "server!!path" form
+	 * @return the database, or {@code null} if the site is being skipped or could not be
+	 *         opened in time
+	 */
+	static Database openForRead(Session session, String name, String path) throws NotesException {
+		if(!SiteCircuitBreaker.isClosed(path)) {
+			if(log.isLoggable(Level.FINE)) {
+				log.fine(StringUtil.format("Not opening Update Site NSF {0} ({1}) while its circuit breaker is not closed", name, path));
+			}
+			return null;
+		}
+		if(System.currentTimeMillis() - OPENED.getOrDefault(path, 0L) <= getRefreshInterval()) {
+			return openDatabase(session, path);
+		}
+		AtomicBoolean started = new AtomicBoolean();
+		Future<Boolean> probe = getProbePool().submit(NotesThreads.withSession(probeSession -> {
+			started.set(true);
+			Database database = openDatabase(probeSession, path);
+			return database != null && database.isOpen();
+		}));
+		try {
+			if(!probe.get(getOpenTimeout(), TimeUnit.MILLISECONDS)) {
+				SiteCircuitBreaker.recordFailure(name, path, "Could not open the database"); //$NON-NLS-1$
+				return null;
+			}
+		} catch(TimeoutException e) {
+			// A blocked open can't be interrupted, but one that hasn't started can be dropped
+			probe.cancel(false);
+			if(started.get()) {
+				SiteCircuitBreaker.recordFailure(name, path, "Timed out opening the database"); //$NON-NLS-1$
+				if(log.isLoggable(Level.WARNING)) {
+					log.warning(StringUtil.format("Timed out opening Update Site NSF {0} ({1}) to read an artifact", name, path));
+				}
+			} else if(log.isLoggable(Level.WARNING)) {
+				log.warning(StringUtil.format("Timed out waiting to open Update Site NSF {0} ({1}) to read an artifact", name, path));
+			}
+			return null;
+		} catch(ExecutionException e) {
+			SiteCircuitBreaker.recordFailure(name, path, e.getCause().toString());
+			if(log.isLoggable(Level.SEVERE)) {
+				log.log(Level.SEVERE, StringUtil.format("Encountered exception opening Update Site NSF {0} ({1})", name, path), e.getCause());
+			}
+			return null;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		OPENED.put(path, System.currentTimeMillis());
+		return openDatabase(session, path);
+	}
+
+	/**
+	 * Forgets an in-flight attempt to index the given site if it has overrun its open
+	 * timeout, so that the next request starts a new attempt rather than skipping the site.
+	 * 
+	 * @param path the database path, in "server!!path" form
+	 */
+	static void abandonOverdue(String path) {
+		INDEXING.computeIfPresent(path, (key, task) -> task.isOpenOverdue() ? null : task);
+	}
+
+	/**
+	 * Creates a filesystem for an Update Site NSF from its last indexed metadata, without
+	 * opening or indexing any other configured database. The database itself is only
+	 * opened when an artifact is read.
+	 * 
+	 * @param replicaId the replica ID of the Update Site NSF
+	 * @return the filesystem, or {@code null} if no configured site with that replica ID
+	 *         has been indexed
+	 */
+	static UpdateSiteNSFVFS getFilesystem(String replicaId) {
+		for(Map.Entry<String, IndexedSite> entry : INDEXED.entrySet()) {
+			IndexedSite indexed = entry.getValue();
+			if(replicaId.equals(indexed.metadata.getCatalog().getReplicaId())) {
+				return new UpdateSiteNSFVFS(indexed.name, entry.getKey(), indexed.metadata);
+			}
+		}
+		return null;
+	}
+
+	// *******************************************************************************
+	// * Internal utility methods
+	// *******************************************************************************
+	
+	/**
+	 * Reads the configured Update Site NSFs from the current database.
+	 * 
+	 * @return a {@link Map} of site names to database paths, in view order
+	 */
+	private static Map<String, String> getSites(Database database) throws NotesException {
+		View view = database.getView(VIEW_SITES);
+		if(view == null) {
+			throw new IllegalStateException("Could not open view '" + VIEW_SITES + "'");
+		}
+		view.setAutoUpdate(false);
+		
+		Map<String, String> result = new LinkedHashMap<>();
+		
+		ViewNavigator nav = view.createViewNav();
+		nav.setBufferMaxEntries(400);
+		ViewEntry entry = nav.getFirst();
+		while(entry != null) {
+			entry.setPreferJavaDates(true);
+			List<?> columnValues = entry.getColumnValues();
+			String name = StringUtil.toString(columnValues.get(0));
+			String path = StringUtil.toString(columnValues.get(1));
+			if(StringUtil.isNotEmpty(name) && StringUtil.isNotEmpty(path)) {
+				result.put(name, path);
+			}
+			
+			ViewEntry tempEntry = entry;
+			entry = nav.getNext();
+			tempEntry.recycle();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Opens the named database on the index pool and brings its metadata up to date,
+	 * re-using an in-flight task for the same database when one exists.
+	 * 
+	 * @return the task, whose futures resolve to whether the database could be opened and
+	 *         to its metadata
+	 */
+	private static IndexTask index(String name, String path) {
+		return INDEXING.compute(path, (key, existing) -> {
+			if(existing != null && !existing.indexed.isDone()) {
+				return existing;
+			}
+			IndexTask task = new IndexTask(name, path);
+			task.indexed = getIndexPool().submit(NotesThreads.withSession(session -> {
+				task.started = System.currentTimeMillis();
+				try {
+					Database updateSiteNsf = openDatabase(session, path);
+					boolean open = updateSiteNsf != null && updateSiteNsf.isOpen();
+					task.opened.complete(open);
+					if(!open) {
+						task.fail("Could not open the database"); //$NON-NLS-1$
+						return null;
+					}
+					OPENED.put(path, System.currentTimeMillis());
+					// Constructing the VFS brings the shared metadata up to date
+					UpdateSiteNSFVFS vfs = new UpdateSiteNSFVFS(name, path, updateSiteNsf);
+					vfs.close();
+					INDEXED.put(path, new IndexedSite(name, vfs.getMetadata()));
+					SiteCircuitBreaker.recordSuccess(name, path);
+					return vfs.getMetadata();
+				} catch(Throwable t) {
+					task.opened.completeExceptionally(t);
+					task.fail(t.toString());
+					throw t;
+				}
+			}));
+			return task;
+		});
+	}
+	
+	private static synchronized ExecutorService getIndexPool() {
+		if(indexPool == null) {
+			int threads = Math.max(1, Constants.getIntProperty(PROP_INDEX_THREADS, DEFAULT_INDEX_THREADS));
+			indexPool = NotesThreads.newFixedPool(UpdateSiteNSFFilesystemFactory.class.getSimpleName(), threads);
+		}
+		return indexPool;
+	}
+	
+	private static synchronized ExecutorService getProbePool() {
+		// Kept apart from the index pool, so that slow indexing can't hold up artifact reads
+		if(probePool == null) {
+			probePool = NotesThreads.newFixedPool(UpdateSiteNSFFilesystemFactory.class.getSimpleName() + "-probe", PROBE_THREADS); //$NON-NLS-1$
+		}
+		return probePool;
+	}
+	
+	private static long getRefreshInterval() {
+		return Constants.getIntProperty(PROP_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL);
+	}
+	
+	private static long getIndexTimeout() {
+		return Constants.getIntProperty(PROP_INDEX_TIMEOUT, DEFAULT_INDEX_TIMEOUT);
+	}
+	
+	private static long getOpenTimeout() {
+		return Constants.getIntProperty(PROP_OPEN_TIMEOUT, DEFAULT_OPEN_TIMEOUT);
+	}
+	
+	/**
+	 * The metadata from the last successful index of an Update Site NSF.
+	 */
+	private static class IndexedSite {
+		private final String name;
+		private final UpdateSiteNSFMetadata metadata;
+		private final long checked = System.currentTimeMillis();
+		
+		public IndexedSite(String name, UpdateSiteNSFMetadata metadata) {
+			this.name = name;
+			this.metadata = metadata;
+		}
+	}
+	
+	/**
+	 * A single attempt to open and index an Update Site NSF, which is shared by the
+	 * requests that arrive while it runs.
+	 */
+	private static class IndexTask {
+		private final String name;
+		private final String path;
+		/** Completed once the database has been opened, or has failed to open */
+		private final CompletableFuture<Boolean> opened = new CompletableFuture<>();
+		/** Ensures that each attempt counts as at most one failure */
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private volatile long started;
+		private Future<UpdateSiteNSFMetadata> indexed;
+		
+		public IndexTask(String name, String path) {
+			this.name = name;
+			this.path = path;
+		}
+		
+		public void fail(String reason) {
+			if(failed.compareAndSet(false, true)) {
+				SiteCircuitBreaker.recordFailure(name, path, reason);
+			}
+		}
+		
+		/**
+		 * @return whether the task has been trying to open the database for longer than
+		 *         the open timeout
+		 */
+		public boolean isOpenOverdue() {
+			long start = started;
+			return start > 0 && !opened.isDone() && System.currentTimeMillis() - start > getOpenTimeout();
+		}
+		
+		/**
+		 * Waits for one stage of the task, allowing its timeout from when the task started
+		 * rather than when it was queued.
+		 * 
+		 * @param future the stage to wait for
+		 * @param timeout the time allowed for the stage, from the start of the task
+		 * @param queuedDeadline the time after which to stop waiting for the task to start
+		 * @return the result of the stage
+		 * @throws TimeoutException if the applicable deadline passes first
+		 */
+		public <T> T await(Future<T> future, long timeout, long queuedDeadline) throws InterruptedException, ExecutionException, TimeoutException {
+			while(true) {
+				long start = started;
+				long until = start == 0 ? queuedDeadline : start + timeout;
+				long now = System.currentTimeMillis();
+				if(now >= until && !future.isDone()) {
+					throw new TimeoutException();
+				}
+				long wait = start == 0 ? Math.min(until - now, QUEUED_POLL_INTERVAL) : until - now;
+				try {
+					return future.get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+				} catch(TimeoutException e) {
+					// Check the deadline again, in case the task has started since
+				}
+			}
+		}
+	}
 }
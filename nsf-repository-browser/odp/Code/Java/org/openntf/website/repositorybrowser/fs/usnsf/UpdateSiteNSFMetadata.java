@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openntf.website.repositorybrowser.fs.usnsf;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
+import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
+
+import com.ibm.commons.vfs.VFSException;
+
+/**
+ * Holds the generated p2 metadata for a single Update Site NSF, shared among all
+ * {@link UpdateSiteNSFVFS} instances for the same replica.
+ *
+ * <p>Builds are coalesced per replica ID and database modification time: the first
+ * thread to ask for a given key performs the build, while concurrent callers wait
+ * on the same future and share its result. Once a replica has been built, callers are
+ * given its last completed metadata while a newer build is underway, so only the very
+ * first build for a replica makes readers wait.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+class UpdateSiteNSFMetadata {
+	private static final Map<String, CompletableFuture<UpdateSiteNSFMetadata>> BUILDS = new ConcurrentHashMap<>();
+	/** The most recently completed metadata for each replica ID */
+	private static final Map<String, UpdateSiteNSFMetadata> LATEST = new ConcurrentHashMap<>();
+
+	private final UpdateSiteCatalog catalog;
+	private final long databaseLastModified;
+	private final OffHeapContent contentXml;
+	private final long contentLastModified;
+	private final OffHeapContent artifactsXml;
+	private final long artifactsLastModified;
+
+	public UpdateSiteNSFMetadata(UpdateSiteCatalog catalog, long databaseLastModified, XMLDocumentVFSFile contentXml, XMLDocumentVFSFile artifactsXml) throws VFSException {
+		this.catalog = catalog;
+		this.databaseLastModified = databaseLastModified;
+		this.contentXml = contentXml.getContent();
+		this.contentLastModified = contentXml.getLastModificationDate();
+		this.artifactsXml = artifactsXml.getContent();
+		this.artifactsLastModified = artifactsXml.getLastModificationDate();
+	}
+
+	/**
+	 * Retrieves the metadata for the given replica and modification time, building it
+	 * with the provided task if no other thread has done so or is currently doing so.
+	 *
+	 * @param replicaId the replica ID of the Update Site NSF
+	 * @param lastModified the last-modified time of the database
+	 * @param builder the task used to build the metadata when this thread wins the race
+	 * @return the shared metadata object, or the previous metadata for the replica if
+	 *         another thread is still building this one
+	 */
+	public static UpdateSiteNSFMetadata get(String replicaId, long lastModified, Callable<UpdateSiteNSFMetadata> builder) {
+		String key = replicaId + '-' + lastModified;
+		CompletableFuture<UpdateSiteNSFMetadata> future = BUILDS.get(key);
+		if(future == null) {
+			CompletableFuture<UpdateSiteNSFMetadata> build = new CompletableFuture<>();
+			future = BUILDS.putIfAbsent(key, build);
+			if(future == null) {
+				// Then this thread is responsible for the build
+				future = build;
+
+				// Drop any superseded builds for this replica - waiters still hold their futures
+				String prefix = replicaId + '-';
+				BUILDS.keySet().removeIf(k -> k.startsWith(prefix) && !k.equals(key));
+
+				try {
+					UpdateSiteNSFMetadata metadata = builder.call();
+					LATEST.merge(replicaId, metadata, (a, b) -> b.databaseLastModified >= a.databaseLastModified ? b : a);
+					build.complete(metadata);
+				} catch(Throwable t) {
+					// Let the next caller retry instead of caching the failure
+					BUILDS.remove(key, build);
+					build.completeExceptionally(t);
+				}
+			}
+		}
+
+		if(!future.isDone()) {
+			UpdateSiteNSFMetadata latest = LATEST.get(replicaId);
+			if(latest != null) {
+				return latest;
+			}
+		}
+
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Discards the shared metadata for the given replica, so that the next request
+	 * regenerates it even though the database has not changed.
+	 *
+	 * @param replicaId the replica ID of the Update Site NSF
+	 */
+	public static void invalidate(String replicaId) {
+		String prefix = replicaId + '-';
+		BUILDS.keySet().removeIf(k -> k.startsWith(prefix));
+	}
+
+	public UpdateSiteCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * @return the modification time of the database the metadata was built from
+	 */
+	public long getDatabaseLastModified() {
+		return databaseLastModified;
+	}
+
+	public OffHeapContent getContentXml() {
+		return contentXml;
+	}
+
+	public long getContentLastModified() {
+		return contentLastModified;
+	}
+
+	public OffHeapContent getArtifactsXml() {
+		return artifactsXml;
+	}
+
+	public long getArtifactsLastModified() {
+		return artifactsLastModified;
+	}
+}
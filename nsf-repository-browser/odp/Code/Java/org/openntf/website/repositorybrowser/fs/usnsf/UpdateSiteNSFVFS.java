@@ -15,18 +15,36 @@
  */
 package org.openntf.website.repositorybrowser.fs.usnsf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.openntf.website.repositorybrowser.fs.mem.MemoryVFSFolder;
+import org.openntf.website.repositorybrowser.fs.mem.OffHeapContent;
 import org.openntf.website.repositorybrowser.fs.mem.XMLDocumentVFSFile;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.ProcessingInstruction;
 
 import com.ibm.commons.util.StringUtil;
@@ -41,11 +59,9 @@ import com.ibm.commons.vfs.VFSResource;
 
 import lotus.domino.Database;
 import lotus.domino.DateTime;
-import lotus.domino.Document;
 import lotus.domino.NotesException;
-import lotus.domino.View;
-import lotus.domino.ViewEntry;
-import lotus.domino.ViewNavigator;
+import lotus.domino.Session;
+import util.NotesThreads;
 
 /**
  * Virtual filesystem to expose the contents of an Update Site NSF as part
@@ -55,36 +71,80 @@ import lotus.domino.ViewNavigator;
  * @since 2.0.0
  */
 class UpdateSiteNSFVFS extends VFS {
+	private static final Logger log = Logger.getLogger(UpdateSiteNSFVFS.class.getPackage().getName());
+	
 	public static final String VIEW_PLUGINS = "vwPlugins"; //$NON-NLS-1$
 	public static final String VIEW_FRAGMENTS = "vwFragments"; //$NON-NLS-1$
 	public static final String VIEW_FEATURES = "vwFeatures"; //$NON-NLS-1$
 	
 	public static final int ICON_ENABLED = 202;
 	
+	/** The latest catalog for each replica ID, used as the base for incremental updates */
+	private static final Map<String, UpdateSiteCatalog> CATALOGS = new ConcurrentHashMap<>();
+	/** The configured site name for each replica ID, as last seen */
+	private static final Map<String, String> SITE_NAMES = new ConcurrentHashMap<>();
+	/**
+	 * The location of each content.xml unit within its replica's stored content.xml, keyed by document UNID.
+	 * Units are only re-used while the configured manifest headers are unchanged.
+	 */
+	private static final Map<String, Map<String, CachedUnit>> UNIT_CACHE = new ConcurrentHashMap<>();
+	/** Marks where the serialized units are spliced into the generated content.xml */
+	private static final String UNITS_PLACEHOLDER = "units"; //$NON-NLS-1$
+	
 	private final String name;
-	private final Database database;
+	/** The database path, in "server!!path" form, used to open the database on demand */
+	private final String path;
+	private Database database;
+	/** The session {@link #database} belongs to, or {@code null} if it has not been opened */
+	private Session databaseSession;
+	private final long databaseLastModified;
+	private final UpdateSiteNSFMetadata metadata;
 
 	private final VFSFolder root;
 	private final List<VFSResource> rootResources;
 	
-	private List<UpdateSiteNSFVFSPlugin> plugins;
-	private List<UpdateSiteNSFVFSFeature> features;
+	private volatile UpdateSiteCatalog catalog;
+	// Published as immutable lists so that readers never wait on a build
+	private volatile List<UpdateSiteNSFVFSPlugin> plugins;
+	private volatile List<UpdateSiteNSFVFSFeature> features;
 	
-	public UpdateSiteNSFVFS(String name, Database database) {
+	/**
+	 * Opens the filesystem for an open database, building its metadata if it is out of
+	 * date. This is done on the index pool by {@link UpdateSiteNSFFilesystemFactory}.
+	 */
+	public UpdateSiteNSFVFS(String name, String path, Database database) {
 		this.name = name;
+		this.path = path;
 		this.database = database;
+		this.databaseSession = NotesThreads.getCurrentSession();
 		this.root = new MemoryVFSFolder(this, name);
 		try {
-			this.rootResources = Arrays.asList(
-				new MemoryVFSFolder(this, this.name + VFS.SEPARATOR + "features"), //$NON-NLS-1$
-				new MemoryVFSFolder(this, this.name + VFS.SEPARATOR + "plugins"), //$NON-NLS-1$
-				createContentXml(),
-				createArtifactsXml()
-			);
-		} catch(XMLException | IOException | NotesException | VFSException | DOMException e) {
+			// Concurrent requests for the same unchanged database share a single build
+			String replicaId = database.getReplicaID();
+			SITE_NAMES.put(replicaId, name);
+			this.databaseLastModified = readDatabaseLastModified();
+			this.metadata = UpdateSiteNSFMetadata.get(replicaId, databaseLastModified, this::createMetadata);
+			this.catalog = metadata.getCatalog();
+			this.rootResources = createRootResources(metadata);
+		} catch(NotesException e) {
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/**
+	 * Opens the filesystem from already-built metadata, without touching the database
+	 * until an artifact is read.
+	 */
+	public UpdateSiteNSFVFS(String name, String path, UpdateSiteNSFMetadata metadata) {
+		this.name = name;
+		this.path = path;
+		this.root = new MemoryVFSFolder(this, name);
+		this.metadata = metadata;
+		this.catalog = metadata.getCatalog();
+		this.databaseLastModified = metadata.getDatabaseLastModified();
+		SITE_NAMES.put(this.catalog.getReplicaId(), name);
+		this.rootResources = createRootResources(metadata);
+	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
@@ -130,13 +190,13 @@ class UpdateSiteNSFVFS extends VFS {
 			UpdateSiteNSFVFSFile nsfFile = (UpdateSiteNSFVFSFile)file;
 			return new UpdateSiteNSFFileEntry(this, file, nsfFile.getDocLastModified());
 		} else {
-			return new UpdateSiteNSFFileEntry(this, file, this.getDatabaseLastModified());
+			return new UpdateSiteNSFFileEntry(this, file, this.databaseLastModified);
 		}
 	}
 
 	@Override
 	protected FolderEntry doCreateFolderEntry(VFSFolder folder) {
-		return new UpdateSiteNSFFolderEntry(this, folder, this.getDatabaseLastModified());
+		return new UpdateSiteNSFFolderEntry(this, folder, this.databaseLastModified);
 	}
 
 	@Override
@@ -155,12 +215,82 @@ class UpdateSiteNSFVFS extends VFS {
 	}
 
 	@Override
-	protected void doClose() {
-		try {
-			database.recycle();
-		} catch(NotesException e) {
-			// Ignore
+	protected synchronized void doClose() {
+		// Handles from other sessions are recycled along with their session
+		if(database != null && databaseSession == NotesThreads.getCurrentSession()) {
+			try {
+				database.recycle();
+			} catch(NotesException e) {
+				// Ignore
+			}
+		}
+	}
+	
+	/**
+	 * Opens the database on the current thread when it was not already provided.
+	 * 
+	 * @return the database, or {@code null} if it could not be opened
+	 */
+	synchronized Database getDatabase() throws NotesException {
+		// The filesystem may outlive the request it was created for, so the handle is only
+		//   re-used within the same session
+		Session session = NotesThreads.getCurrentSession();
+		if(databaseSession != session) {
+			// A failed open is not remembered, so that a later read in this session retries it
+			Database db = UpdateSiteNSFFilesystemFactory.openForRead(session, name, path);
+			if(db == null || !db.isOpen()) {
+				return null;
+			}
+			database = db;
+			databaseSession = session;
+		}
+		return database;
+	}
+	
+	UpdateSiteCatalog getCatalog() {
+		return catalog;
+	}
+	
+	UpdateSiteNSFMetadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @param feature whether to look in the "features" folder rather than "plugins"
+	 * @param fileName the name of the artifact JAR
+	 * @return the artifact file, or {@code null} if this database does not contain it
+	 */
+	UpdateSiteNSFVFSFile findArtifact(boolean feature, String fileName) {
+		String path = this.name + VFS.SEPARATOR + (feature ? "features" : "plugins") + VFS.SEPARATOR + fileName; //$NON-NLS-1$ //$NON-NLS-2$
+		for(UpdateSiteNSFVFSFile file : feature ? getFeatures() : getPlugins()) {
+			if(path.equals(file.getPath())) {
+				return file;
+			}
 		}
+		return null;
+	}
+
+	/**
+	 * @return the latest catalog for each Update Site NSF that has been loaded
+	 */
+	static Collection<UpdateSiteCatalog> getCatalogs() {
+		return CATALOGS.values();
+	}
+	
+	/**
+	 * @return the latest catalog for the given replica, or {@code null} if it has not
+	 *         been loaded
+	 */
+	static UpdateSiteCatalog getCatalog(String replicaId) {
+		return CATALOGS.get(replicaId);
+	}
+	
+	/**
+	 * @return the name under which the given replica was last served, or {@code null} if
+	 *         it has not been opened
+	 */
+	static String getSiteName(String replicaId) {
+		return SITE_NAMES.get(replicaId);
 	}
 	
 	// *******************************************************************************
@@ -179,106 +309,499 @@ class UpdateSiteNSFVFS extends VFS {
 		}
 	}
 	
-	private long getDatabaseLastModified() {
+	private List<VFSResource> createRootResources(UpdateSiteNSFMetadata metadata) {
+		return Arrays.asList(
+			new MemoryVFSFolder(this, this.name + VFS.SEPARATOR + "features"), //$NON-NLS-1$
+			new MemoryVFSFolder(this, this.name + VFS.SEPARATOR + "plugins"), //$NON-NLS-1$
+			new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "content.xml", metadata.getContentXml(), metadata.getContentLastModified()), //$NON-NLS-1$
+			new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "artifacts.xml", metadata.getArtifactsXml(), metadata.getArtifactsLastModified()) //$NON-NLS-1$
+		);
+	}
+	
+	private long readDatabaseLastModified() throws NotesException {
+		DateTime dt = database.getLastModified();
 		try {
-			DateTime dt = database.getLastModified();
-			try {
-				return dt.toJavaDate().getTime();
-			} finally {
-				dt.recycle();
+			return dt.toJavaDate().getTime();
+		} finally {
+			dt.recycle();
+		}
+	}
+	
+	private List<UpdateSiteNSFVFSPlugin> getPlugins() {
+		List<UpdateSiteNSFVFSPlugin> result = this.plugins;
+		if(result == null) {
+			// Building from the immutable catalog is idempotent, so concurrent callers may
+			//   each build a list and the last one published wins
+			List<UpdateSiteNSFVFSPlugin> plugins = new ArrayList<>();
+			for(PluginEntry entry : this.catalog.getPlugins()) {
+				String fileName = entry.getId() + "_" + entry.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+				plugins.add(new UpdateSiteNSFVFSPlugin(this, this.name + VFS.SEPARATOR + "plugins" + VFS.SEPARATOR + fileName, entry)); //$NON-NLS-1$
 			}
-		} catch(NotesException e) {
-			throw new RuntimeException(e);
+			result = Collections.unmodifiableList(plugins);
+			this.plugins = result;
+		}
+		return result;
+	}
+	private List<UpdateSiteNSFVFSFeature> getFeatures() {
+		List<UpdateSiteNSFVFSFeature> result = this.features;
+		if(result == null) {
+			List<UpdateSiteNSFVFSFeature> features = new ArrayList<>();
+			for(FeatureEntry entry : this.catalog.getFeatures()) {
+				String fileName = entry.getId() + "_" + entry.getVersion() + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+				features.add(new UpdateSiteNSFVFSFeature(this, this.name + VFS.SEPARATOR + "features" + VFS.SEPARATOR + fileName, entry)); //$NON-NLS-1$
+			}
+			result = Collections.unmodifiableList(features);
+			this.features = result;
 		}
+		return result;
 	}
 	
-	private synchronized List<UpdateSiteNSFVFSPlugin> getPlugins() {
-		if(this.plugins == null) {
-			try {
-				this.plugins = new ArrayList<>();
-				
-				for(String viewName : Arrays.asList(VIEW_PLUGINS, VIEW_FRAGMENTS)) {
-					View view = database.getView(viewName);
-					view.setAutoUpdate(false);
-					ViewNavigator nav = view.createViewNav();
-					nav.setBufferMaxEntries(400);
-					ViewEntry entry = nav.getFirst();
-					while(entry != null) {
-						entry.setPreferJavaDates(true);
-						if(entry.isDocument()) {
-							List<?> columnValues = entry.getColumnValues();
-							
-							String name = StringUtil.toString(columnValues.get(1));
-							if(StringUtil.isNotEmpty(name)) {
-								String version = StringUtil.toString(columnValues.get(2));
-								
-								String fileName = name + "_" + version + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
-								Document doc = entry.getDocument();
-								this.plugins.add(new UpdateSiteNSFVFSPlugin(this, this.name + VFS.SEPARATOR + "plugins" + VFS.SEPARATOR + fileName, name, version, doc)); //$NON-NLS-1$
-							}
-						}
-						
-						ViewEntry tempEntry = entry;
-						entry = nav.getNext();
-						tempEntry.recycle();
-					}
-				}
+	private UpdateSiteNSFMetadata createMetadata() throws XMLException, IOException, DOMException, NotesException, VFSException {
+		this.catalog = loadCatalog();
+		return new UpdateSiteNSFMetadata(this.catalog, this.databaseLastModified, createContentXml(), createArtifactsXml());
+	}
+	
+	/**
+	 * Brings the most recent catalog for this replica up to date, re-reading only the
+	 * documents modified since it was built. The in-memory copy is preferred, then the
+	 * on-disk snapshot, and a full scan is only done when neither is available.
+	 */
+	private UpdateSiteCatalog loadCatalog() throws NotesException, IOException {
+		String replicaId = database.getReplicaID();
+		UpdateSiteCatalog base = CATALOGS.get(replicaId);
+		if(base == null) {
+			base = UpdateSiteCatalogSnapshots.load(replicaId);
+		}
+		UpdateSiteCatalog result = base == null ? UpdateSiteCatalog.build(database) : base.update(database);
+		CATALOGS.put(replicaId, result);
+		if(result != base) {
+			UpdateSiteCatalogSnapshots.save(result);
+		}
+		ArtifactChecksums.schedule(database, result);
+		return result;
+	}
+	
+	private XMLDocumentVFSFile createArtifactsXml() throws XMLException, IOException, DOMException, NotesException, VFSException {
+		org.w3c.dom.Document doc = DOMUtil.createDocument();
+		
+		Element repository = createArtifactRepository(doc, this.catalog.getTitle() + " Artifacts", this.catalog.getTimestamp()); //$NON-NLS-1$
+		
+		List<UpdateSiteNSFVFSFeature> features = getFeatures();
+		List<UpdateSiteNSFVFSPlugin> plugins = getPlugins();
+		Element artifacts = DOMUtil.createElement(doc, repository, "artifacts"); //$NON-NLS-1$
+		artifacts.setAttribute("size", StringUtil.toString(features.size() + plugins.size())); //$NON-NLS-1$
+		
+		// Checksums are added after the catalog is built, so they count as a modification
+		long lastMod = this.catalog.getChecksumsModified();
+		
+		for(UpdateSiteNSFVFSFile feature : features) {
+			lastMod = Math.max(lastMod, feature.getDocLastModified());
+			String checksum = this.catalog.getChecksum(feature.getUnid(), feature.getDocLastModified());
+			createArtifact(doc, artifacts, "org.eclipse.update.feature", feature.getId(), feature.getVersion(), feature.getSize(), feature.getMimeType(), checksum); //$NON-NLS-1$
+		}
+		
+		for(UpdateSiteNSFVFSFile plugin : plugins) {
+			lastMod = Math.max(lastMod, plugin.getDocLastModified());
+			String checksum = this.catalog.getChecksum(plugin.getUnid(), plugin.getDocLastModified());
+			createArtifact(doc, artifacts, "osgi.bundle", plugin.getId(), plugin.getVersion(), plugin.getSize(), null, checksum); //$NON-NLS-1$
+		}
+		
+		return new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "artifacts.xml", doc, lastMod); //$NON-NLS-1$
+	}
+	
+	private XMLDocumentVFSFile createContentXml() throws XMLException, IOException, DOMException, NotesException {
+		long lastMod = 0;
+		
+		// Units are serialized individually and re-used until their catalog entry changes
+		Map<String, CachedUnit> previousUnits = UNIT_CACHE.getOrDefault(this.catalog.getReplicaId(), Collections.emptyMap());
+		String manifestHeaders = ManifestReducer.getConfiguration();
+		List<PlacedUnit> placedUnits = new ArrayList<>();
+		Transformer transformer = createUnitTransformer();
+		ByteArrayOutputStream unitsXml = new ByteArrayOutputStream();
+		int unitsSize = 0;
+		int regenerated = 0;
+		long manifestSize = 0;
+		long reducedManifestSize = 0;
+		
+		List<UpdateSiteNSFVFSFeature> features = getFeatures();
+		List<UpdateSiteNSFVFSPlugin> plugins = getPlugins();
+		Map<String, List<UpdateSiteNSFVFSFeature>> categories = new LinkedHashMap<>();
+		
+		for(UpdateSiteNSFVFSFeature feature : features) {
+			lastMod = Math.max(lastMod, feature.getDocLastModified());
+			
+			CachedUnit unit = previousUnits.get(feature.getUnid());
+			int offset = unitsXml.size();
+			if(unit == null || !unit.isFor(feature.getEntry(), null, manifestHeaders)) {
+				unitsXml.write(serializeUnit(transformer, createFeatureUnit(feature)));
+				regenerated++;
+			} else {
+				unit.writeTo(unitsXml);
+			}
+			placedUnits.add(new PlacedUnit(feature.getUnid(), feature.getEntry(), null, offset, unitsXml.size() - offset));
+			unitsSize++;
+			
+			categories.computeIfAbsent(feature.getCategory(), key -> new ArrayList<>()).add(feature);
+		}
+		
+		// Category units are small and depend on every feature, so they are always regenerated
+		for(Map.Entry<String, List<UpdateSiteNSFVFSFeature>> category : categories.entrySet()) {
+			List<FeatureEntry> categoryFeatures = new ArrayList<>();
+			for(UpdateSiteNSFVFSFeature feature : category.getValue()) {
+				categoryFeatures.add(feature.getEntry());
+			}
+			String categoryId = this.catalog.getReplicaId() + "-" + category.getKey(); //$NON-NLS-1$
+			String categoryVersion = "1.0.0.21-" + this.catalog.getReplicaId(); //$NON-NLS-1$
+			unitsXml.write(serializeUnit(transformer, createCategoryUnit(categoryId, categoryVersion, category.getKey(), categoryFeatures)));
+			unitsSize++;
+		}
+		
+		Map<String, String> pluginVersions = new HashMap<>();
+		for(UpdateSiteNSFVFSPlugin plugin : plugins) {
+			pluginVersions.putIfAbsent(plugin.getId(), plugin.getVersion());
+		}
+		for(UpdateSiteNSFVFSPlugin plugin : plugins) {
+			lastMod = Math.max(lastMod, plugin.getDocLastModified());
+			
+			// A fragment's unit also depends on the version of its host
+			String hostVersion = null;
+			if(plugin.isFragment()) {
+				hostVersion = pluginVersions.getOrDefault(plugin.getFragmentHost(), "0.0.0"); //$NON-NLS-1$
+			}
+			
+			CachedUnit unit = previousUnits.get(plugin.getUnid());
+			int offset = unitsXml.size();
+			if(unit == null || !unit.isFor(plugin.getEntry(), hostVersion, manifestHeaders)) {
+				String manifest = ManifestReducer.reduce(plugin.getManifestContent(), plugin.getManifest());
+				manifestSize += plugin.getManifestContent().length();
+				reducedManifestSize += manifest.length();
 				
-			} catch(NotesException e) {
-				throw new RuntimeException(e);
+				unitsXml.write(serializeUnit(transformer, createPluginUnit(plugin, hostVersion, manifest)));
+				regenerated++;
+			} else {
+				unit.writeTo(unitsXml);
 			}
+			placedUnits.add(new PlacedUnit(plugin.getUnid(), plugin.getEntry(), hostVersion, offset, unitsXml.size() - offset));
+			unitsSize++;
+		}
+		
+		ByteArrayOutputStream contentXml = new ByteArrayOutputStream();
+		int unitsOffset = writeMetadataRepository(contentXml, this.catalog.getTitle(), this.catalog.getTimestamp(), unitsSize, unitsXml);
+		OffHeapContent content = OffHeapContent.store(contentXml.toByteArray());
+		
+		// The cached units point into the stored content.xml rather than keeping their own copies,
+		//   and replacing the map drops units for removed or changed documents
+		Map<String, CachedUnit> currentUnits = new HashMap<>();
+		for(PlacedUnit placed : placedUnits) {
+			currentUnits.put(placed.unid, new CachedUnit(placed.entry, placed.variant, manifestHeaders, content, unitsOffset + placed.offset, placed.length));
+		}
+		UNIT_CACHE.put(this.catalog.getReplicaId(), currentUnits);
+		if(log.isLoggable(Level.FINE)) {
+			log.fine(StringUtil.format("Regenerated {0} of {1} units for {2}", regenerated, currentUnits.size(), this.name));
+		}
+		if(manifestSize > 0 && log.isLoggable(Level.INFO)) {
+			log.info(StringUtil.format("Reduced embedded manifests for {0} from {1} to {2} characters", this.name, manifestSize, reducedManifestSize));
 		}
-		return this.plugins;
+		
+		return new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "content.xml", content, lastMod); //$NON-NLS-1$
 	}
-	private synchronized List<UpdateSiteNSFVFSFeature> getFeatures() {
-		if(this.features == null) {
-			try {
-				this.features = new ArrayList<>();
-				
-				View view = database.getView(VIEW_FEATURES);
-				view.setAutoUpdate(false);
-				ViewNavigator nav = view.createViewNav();
-				nav.setBufferMaxEntries(400);
-				ViewEntry entry = nav.getFirst();
-				while(entry != null) {
-					entry.setPreferJavaDates(true);
-					if(entry.isDocument()) {
-						List<?> columnValues = entry.getColumnValues();
-						
-						boolean enabled = (Double)columnValues.get(0) == ICON_ENABLED;
-						String name = StringUtil.toString(columnValues.get(4));
-						if(enabled && StringUtil.isNotEmpty(name)) {
-							String version = StringUtil.toString(columnValues.get(5));
-							
-							String fileName = name + "_" + version + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
-							
-							Document doc = entry.getDocument();
-							this.features.add(new UpdateSiteNSFVFSFeature(this, this.name + VFS.SEPARATOR + "features" + VFS.SEPARATOR + fileName, name, version, doc)); //$NON-NLS-1$
+	
+	private Element createFeatureUnit(UpdateSiteNSFVFSFeature feature) throws XMLException {
+		org.w3c.dom.Document doc = DOMUtil.createDocument();
+		
+		Element unit = DOMUtil.createElement(doc, "unit"); //$NON-NLS-1$
+		unit.setAttribute("id", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+		unit.setAttribute("version", feature.getVersion()); //$NON-NLS-1$
+		
+		{
+			Element update = DOMUtil.createElement(doc, unit, "update"); //$NON-NLS-1$
+			update.setAttribute("id", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+			update.setAttribute("range", "[0.0.0," + feature.getVersion() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			update.setAttribute("severity", "0"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		
+		{
+			Element properties = DOMUtil.createElement(doc, unit, "properties"); //$NON-NLS-1$
+			properties.setAttribute("size", "4"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element propName = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			propName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
+			propName.setAttribute("value", feature.getFeatureName()); //$NON-NLS-1$
+
+			Element propDesc = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			propDesc.setAttribute("name", "org.eclipse.equinox.p2.description"); //$NON-NLS-1$ //$NON-NLS-2$
+			propDesc.setAttribute("value", feature.getFeatureDescription()); //$NON-NLS-1$
+
+			Element propDescUrl = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			propDescUrl.setAttribute("name", "org.eclipse.equinox.p2.description.url"); //$NON-NLS-1$ //$NON-NLS-2$
+			propDescUrl.setAttribute("value", feature.getFeatureDescriptionUrl()); //$NON-NLS-1$
+			
+			Element propTypeGroup = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			propTypeGroup.setAttribute("name", "org.eclipse.equinox.p2.type.group"); //$NON-NLS-1$ //$NON-NLS-2$
+			propTypeGroup.setAttribute("value", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		
+		{
+			Element provides = DOMUtil.createElement(doc, unit, "provides"); //$NON-NLS-1$
+			provides.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element provided = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
+			provided.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+			provided.setAttribute("name", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+			provided.setAttribute("version", feature.getVersion()); //$NON-NLS-1$
+		}
+		
+		{
+			int requiresSize = 0;
+			Element requires = DOMUtil.createElement(doc, unit, "requires"); //$NON-NLS-1$
+			
+			List<String> requiredFeatures = feature.getImportedFeatures();
+			List<String> requiredVersions = feature.getImportedFeatureVersions();
+			for(int i = 0; i < requiredFeatures.size(); i++) {
+				String id = requiredFeatures.get(i);
+				if(StringUtil.isNotEmpty(id)) {
+					Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
+					required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+					required.setAttribute("name", id + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+					if(requiredVersions.size() > i) {
+						String version = requiredVersions.get(i);
+						if(StringUtil.isNotEmpty(version)) {
+							required.setAttribute("range", version); //$NON-NLS-1$
+						} else {
+							required.setAttribute("range", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
 						}
+					} else {
+						required.setAttribute("range", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
 					}
 					
-					ViewEntry tempEntry = entry;
-					entry = nav.getNext();
-					tempEntry.recycle();
+					requiresSize++;
 				}
-			} catch(NotesException e) {
-				throw new RuntimeException(e);
 			}
+			
+			for(PluginInfo plugin : feature.getPlugins()) {
+				Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
+				required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+				required.setAttribute("name", plugin.getId()); //$NON-NLS-1$
+				required.setAttribute("range", "[" + plugin.getVersion() + "," + plugin.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				
+				requiresSize++;
+			}
+			
+			{
+				Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
+				required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+				required.setAttribute("name", feature.getId() + ".feature.jar"); //$NON-NLS-1$ //$NON-NLS-2$
+				required.setAttribute("range", "[" + feature.getVersion() + "," + feature.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				
+				Element filter = DOMUtil.createElement(doc, required, "filter"); //$NON-NLS-1$
+				filter.setTextContent("(org.eclipse.update.install.features=true)"); //$NON-NLS-1$
+				
+				requiresSize++;
+			}
+			
+			requires.setAttribute("size", StringUtil.toString(requiresSize)); //$NON-NLS-1$
+		}
+		
+		{
+			Element touchpoint = DOMUtil.createElement(doc, unit, "touchpoint"); //$NON-NLS-1$
+			touchpoint.setAttribute("id", "null"); //$NON-NLS-1$ //$NON-NLS-2$
+			touchpoint.setAttribute("version", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
-		return this.features;
+		
+		{
+			Element licenses = DOMUtil.createElement(doc, unit, "licenses"); //$NON-NLS-1$
+			licenses.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element license = DOMUtil.createElement(doc, licenses, "license"); //$NON-NLS-1$
+			license.setAttribute("uri", feature.getLicenseUrl()); //$NON-NLS-1$
+			license.setAttribute("url", feature.getLicenseUrl()); //$NON-NLS-1$
+			license.setTextContent(feature.getLicense());
+		}
+		
+		{
+			Element copyright = DOMUtil.createElement(doc, unit, "copyright"); //$NON-NLS-1$
+			copyright.setAttribute("uri", feature.getCopyrightUrl()); //$NON-NLS-1$
+			copyright.setAttribute("url", feature.getCopyrightUrl()); //$NON-NLS-1$
+			copyright.setTextContent(feature.getCopyright());
+		}
+		
+		return unit;
 	}
 	
-	private VFSFile createArtifactsXml() throws XMLException, IOException, DOMException, NotesException, VFSException {
+	/**
+	 * Creates a category unit listing the given features.
+	 * 
+	 * @param id the ID of the category unit, which must be unique within the repository
+	 * @param version the version of the category unit
+	 * @param categoryName the display name of the category
+	 * @param features the features in the category
+	 */
+	static Element createCategoryUnit(String id, String version, String categoryName, List<FeatureEntry> features) throws XMLException {
+		org.w3c.dom.Document doc = DOMUtil.createDocument();
+		
+		Element category = DOMUtil.createElement(doc, "unit"); //$NON-NLS-1$
+		category.setAttribute("id", id); //$NON-NLS-1$
+		category.setAttribute("version", version); //$NON-NLS-1$
+		
+		Element catProperties = DOMUtil.createElement(doc, category, "properties"); //$NON-NLS-1$
+		catProperties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
+		Element propCatName = DOMUtil.createElement(doc, catProperties, "property"); //$NON-NLS-1$
+		propCatName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
+		propCatName.setAttribute("value", categoryName); //$NON-NLS-1$
+		
+		Element propCatCat = DOMUtil.createElement(doc, catProperties, "property"); //$NON-NLS-1$
+		propCatCat.setAttribute("name", "org.eclipse.equinox.p2.type.category"); //$NON-NLS-1$ //$NON-NLS-2$
+		propCatCat.setAttribute("value", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		Element catProvides = DOMUtil.createElement(doc, category, "provides"); //$NON-NLS-1$
+		catProvides.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+		Element catProvided = DOMUtil.createElement(doc, catProvides, "provided"); //$NON-NLS-1$
+		catProvided.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+		catProvided.setAttribute("name", category.getAttribute("id")); //$NON-NLS-1$ //$NON-NLS-2$
+		catProvided.setAttribute("version", category.getAttribute("version")); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		Element catTouchpoint = DOMUtil.createElement(doc, category, "touchpoint"); //$NON-NLS-1$
+		catTouchpoint.setAttribute("id", "null"); //$NON-NLS-1$ //$NON-NLS-2$
+		catTouchpoint.setAttribute("version", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
+		
+		Element catRequires = DOMUtil.createElement(doc, category, "requires"); //$NON-NLS-1$
+		catRequires.setAttribute("size", StringUtil.toString(features.size())); //$NON-NLS-1$
+		for(FeatureEntry feature : features) {
+			Element req = DOMUtil.createElement(doc, catRequires, "required"); //$NON-NLS-1$
+			req.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+			req.setAttribute("name", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+			req.setAttribute("range", "[" + feature.getVersion() + "," + feature.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		}
+		
+		return category;
+	}
+	
+	private Element createPluginUnit(UpdateSiteNSFVFSPlugin plugin, String hostVersion, String manifest) throws XMLException {
 		org.w3c.dom.Document doc = DOMUtil.createDocument();
-		long lastMod = 0;
+		
+		Element unit = DOMUtil.createElement(doc, "unit"); //$NON-NLS-1$
+		unit.setAttribute("id", plugin.getId()); //$NON-NLS-1$
+		unit.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
+		
+		{
+			Element update = DOMUtil.createElement(doc, unit, "update"); //$NON-NLS-1$
+			update.setAttribute("id", plugin.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
+			update.setAttribute("range", "[0.0.0," + plugin.getVersion() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			update.setAttribute("severity", "0"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		
+		{
+			Element properties = DOMUtil.createElement(doc, unit, "properties"); //$NON-NLS-1$
+			properties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element propName = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			propName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
+			propName.setAttribute("value", plugin.getPluginName()); //$NON-NLS-1$
+			
+			Element propProvider = DOMUtil.createElement(doc, properties, "provider"); //$NON-NLS-1$
+			propProvider.setAttribute("name", "org.eclipse.equinox.p2.provider"); //$NON-NLS-1$ //$NON-NLS-2$
+			propProvider.setAttribute("value", plugin.getProviderName()); //$NON-NLS-1$
+		}
 		
+		{
+			Element provides = DOMUtil.createElement(doc, unit, "provides"); //$NON-NLS-1$
+			provides.setAttribute("size", StringUtil.toString(plugin.isFragment() ? 4 : 3)); //$NON-NLS-1$
+			
+			Element providedIu = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
+			providedIu.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
+			providedIu.setAttribute("name", plugin.getId()); //$NON-NLS-1$
+			providedIu.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
+			
+			Element providedBundle = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
+			providedBundle.setAttribute("namespace", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
+			providedBundle.setAttribute("name", plugin.getId()); //$NON-NLS-1$
+			providedBundle.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
+			
+			Element providedType = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
+			providedType.setAttribute("namespace", "org.eclipse.equinox.p2.eclipse.type"); //$NON-NLS-1$ //$NON-NLS-2$
+			providedType.setAttribute("name", "bundle"); //$NON-NLS-1$ //$NON-NLS-2$
+			providedType.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			if(plugin.isFragment()) {
+				Element providedFragment = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
+				providedFragment.setAttribute("namespace", "osgi.fragment"); //$NON-NLS-1$ //$NON-NLS-2$
+				providedFragment.setAttribute("name", plugin.getFragmentHost()); //$NON-NLS-1$
+				providedFragment.setAttribute("version", hostVersion); //$NON-NLS-1$
+			}
+		}
+		
+		{
+			Element requires = DOMUtil.createElement(doc, unit, "requires"); //$NON-NLS-1$
+			int requiresCount = 0;
+			
+			for(PluginInfo info : plugin.getRequiredPlugins()) {
+				Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
+				required.setAttribute("namespace", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
+				required.setAttribute("name", info.getId()); //$NON-NLS-1$
+				required.setAttribute("range", info.getVersion()); //$NON-NLS-1$
+				
+				requiresCount++;
+			}
+			for(PackageInfo info : plugin.getImportedPackages()) {
+				Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
+				required.setAttribute("namespace", "java.package"); //$NON-NLS-1$ //$NON-NLS-2$
+				required.setAttribute("name", info.getName()); //$NON-NLS-1$
+				required.setAttribute("range", info.getVersion()); //$NON-NLS-1$
+				
+				requiresCount++;
+			}
+			
+			requires.setAttribute("size", StringUtil.toString(requiresCount)); //$NON-NLS-1$
+		}
+		
+		{
+			Element artifacts = DOMUtil.createElement(doc, unit, "artifacts"); //$NON-NLS-1$
+			artifacts.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element artifact = DOMUtil.createElement(doc, artifacts, "artifact"); //$NON-NLS-1$
+			artifact.setAttribute("classifier", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
+			artifact.setAttribute("id", plugin.getId()); //$NON-NLS-1$
+			artifact.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
+		}
+		
+		{
+			Element touchpoint = DOMUtil.createElement(doc, unit, "touchpoint"); //$NON-NLS-1$
+			touchpoint.setAttribute("id", "org.eclipse.equinox.p2.osgi"); //$NON-NLS-1$ //$NON-NLS-2$
+			touchpoint.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		{
+			Element touchpointData = DOMUtil.createElement(doc, unit, "touchpointData"); //$NON-NLS-1$
+			touchpointData.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element instructions = DOMUtil.createElement(doc, touchpointData, "instructions"); //$NON-NLS-1$
+			instructions.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
+			
+			Element instZipped = DOMUtil.createElement(doc, instructions, "instruction"); //$NON-NLS-1$
+			instZipped.setAttribute("key", "zipped"); //$NON-NLS-1$ //$NON-NLS-2$
+			instZipped.setTextContent("false"); //$NON-NLS-1$
+			
+			Element instManifest = DOMUtil.createElement(doc, instructions, "manifest"); //$NON-NLS-1$
+			instManifest.setAttribute("key", "manifest"); //$NON-NLS-1$ //$NON-NLS-2$
+			instManifest.setTextContent(manifest);
+		}
+		
+		return unit;
+	}
+	
+	/**
+	 * Creates an artifacts.xml document skeleton with the standard mapping rules, to which
+	 * an "artifacts" element should be added.
+	 * 
+	 * @return the "repository" element
+	 */
+	static Element createArtifactRepository(org.w3c.dom.Document doc, String name, long timestamp) throws XMLException {
 		{
 			ProcessingInstruction proc = doc.createProcessingInstruction("artifactRepository", "version='1.1.0'"); //$NON-NLS-1$ //$NON-NLS-2$
 			doc.appendChild(proc);
 		}
 		
 		Element repository = DOMUtil.createElement(doc, "repository"); //$NON-NLS-1$
-		repository.setAttribute("name", database.getTitle() + " Artifacts"); //$NON-NLS-1$ //$NON-NLS-2$
+		repository.setAttribute("name", name); //$NON-NLS-1$
 		repository.setAttribute("type", "org.eclipse.equinox.p2.artifact.repository.simpleRepository"); //$NON-NLS-1$ //$NON-NLS-2$
 		repository.setAttribute("version", "1"); //$NON-NLS-1$ //$NON-NLS-2$
 		
@@ -286,9 +809,9 @@ class UpdateSiteNSFVFS extends VFS {
 			Element properties = DOMUtil.createElement(doc, repository, "properties"); //$NON-NLS-1$
 			properties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
 			
-			Element timestamp = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			timestamp.setAttribute("name", "p2.timestamp"); //$NON-NLS-1$ //$NON-NLS-2$
-			timestamp.setAttribute("value", StringUtil.toString(this.getDatabaseLastModified())); //$NON-NLS-1$
+			Element timestampProp = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			timestampProp.setAttribute("name", "p2.timestamp"); //$NON-NLS-1$ //$NON-NLS-2$
+			timestampProp.setAttribute("value", StringUtil.toString(timestamp)); //$NON-NLS-1$
 			
 			Element compressed = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
 			compressed.setAttribute("name", "p2.compressed"); //$NON-NLS-1$ //$NON-NLS-2$
@@ -312,61 +835,74 @@ class UpdateSiteNSFVFS extends VFS {
 			rule3.setAttribute("output", "${repoUrl}/features/${id}_${version}.jar"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 		
-		List<UpdateSiteNSFVFSFeature> features = getFeatures();
-		List<UpdateSiteNSFVFSPlugin> plugins = getPlugins();
-		Element artifacts = DOMUtil.createElement(doc, repository, "artifacts"); //$NON-NLS-1$
-		artifacts.setAttribute("size", StringUtil.toString(features.size() + plugins.size())); //$NON-NLS-1$
+		return repository;
+	}
+	
+	/**
+	 * Adds an "artifact" element to an artifacts.xml document.
+	 * 
+	 * @param contentType the download content type, or {@code null} to omit it
+	 * @param checksum the SHA-256 checksum of the artifact, or {@code null} if it is not known
+	 */
+	static void createArtifact(org.w3c.dom.Document doc, Element artifacts, String classifier, String id, String version, long size, String contentType, String checksum) {
+		Element artifact = DOMUtil.createElement(doc, artifacts, "artifact"); //$NON-NLS-1$
+		artifact.setAttribute("classifier", classifier); //$NON-NLS-1$
+		artifact.setAttribute("id", id); //$NON-NLS-1$
+		artifact.setAttribute("version", version); //$NON-NLS-1$
 		
-		for(UpdateSiteNSFVFSFile feature : features) {
-			lastMod = Math.max(lastMod, feature.getDocLastModified());
-			
-			Element artifact = DOMUtil.createElement(doc, artifacts, "artifact"); //$NON-NLS-1$
-			artifact.setAttribute("classifier", "org.eclipse.update.feature"); //$NON-NLS-1$ //$NON-NLS-2$
-			artifact.setAttribute("id", feature.getId()); //$NON-NLS-1$
-			artifact.setAttribute("version", feature.getVersion()); //$NON-NLS-1$
-			
-			Element properties = DOMUtil.createElement(doc, artifact, "properties"); //$NON-NLS-1$
-			properties.setAttribute("size", "3"); //$NON-NLS-1$ //$NON-NLS-2$
-			
-			Element artifactSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			artifactSize.setAttribute("name", "artifact.size"); //$NON-NLS-1$ //$NON-NLS-2$
-			artifactSize.setAttribute("value", StringUtil.toString(feature.getSize())); //$NON-NLS-1$
-			
-			Element downloadSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			downloadSize.setAttribute("name", "download.size"); //$NON-NLS-1$ //$NON-NLS-2$
-			downloadSize.setAttribute("value", StringUtil.toString(feature.getSize())); //$NON-NLS-1$
-			
-			Element contentType = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			contentType.setAttribute("name", "download.contentType"); //$NON-NLS-1$ //$NON-NLS-2$
-			contentType.setAttribute("value", feature.getMimeType()); //$NON-NLS-1$
-		}
+		Element properties = DOMUtil.createElement(doc, artifact, "properties"); //$NON-NLS-1$
+		properties.setAttribute("size", StringUtil.toString(2 + (contentType == null ? 0 : 1) + (checksum == null ? 0 : 1))); //$NON-NLS-1$
 		
-		for(UpdateSiteNSFVFSFile plugin : plugins) {
-			lastMod = Math.max(lastMod, plugin.getDocLastModified());
-			
-			Element artifact = DOMUtil.createElement(doc, artifacts, "artifact"); //$NON-NLS-1$
-			artifact.setAttribute("classifier", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
-			artifact.setAttribute("id", plugin.getId()); //$NON-NLS-1$
-			artifact.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
-			
-			Element properties = DOMUtil.createElement(doc, artifact, "properties"); //$NON-NLS-1$
-			properties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
-			
-			Element artifactSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			artifactSize.setAttribute("name", "artifact.size"); //$NON-NLS-1$ //$NON-NLS-2$
-			artifactSize.setAttribute("value", StringUtil.toString(plugin.getSize())); //$NON-NLS-1$
-			
-			Element downloadSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			downloadSize.setAttribute("name", "download.size"); //$NON-NLS-1$ //$NON-NLS-2$
-			downloadSize.setAttribute("value", StringUtil.toString(plugin.getSize())); //$NON-NLS-1$
+		Element artifactSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+		artifactSize.setAttribute("name", "artifact.size"); //$NON-NLS-1$ //$NON-NLS-2$
+		artifactSize.setAttribute("value", StringUtil.toString(size)); //$NON-NLS-1$
+		
+		Element downloadSize = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+		downloadSize.setAttribute("name", "download.size"); //$NON-NLS-1$ //$NON-NLS-2$
+		downloadSize.setAttribute("value", StringUtil.toString(size)); //$NON-NLS-1$
+		
+		if(contentType != null) {
+			Element contentTypeProp = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			contentTypeProp.setAttribute("name", "download.contentType"); //$NON-NLS-1$ //$NON-NLS-2$
+			contentTypeProp.setAttribute("value", contentType); //$NON-NLS-1$
 		}
 		
-		return new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "artifacts.xml", doc, lastMod); //$NON-NLS-1$
+		if(checksum != null) {
+			Element sha256 = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			sha256.setAttribute("name", ArtifactChecksums.PROPERTY_SHA256); //$NON-NLS-1$
+			sha256.setAttribute("value", checksum); //$NON-NLS-1$
+		}
+	}
+	
+	/**
+	 * Builds a content.xml document around already-serialized units.
+	 * 
+	 * @param name the repository name
+	 * @param timestamp the p2 timestamp of the repository
+	 * @param unitsSize the number of units in {@code unitsXml}
+	 * @param unitsXml the serialized units
+	 * @return the serialized document
+	 */
+	static byte[] createMetadataRepository(String name, long timestamp, int unitsSize, ByteArrayOutputStream unitsXml) throws XMLException, IOException {
+		try(ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+			writeMetadataRepository(baos, name, timestamp, unitsSize, unitsXml);
+			return baos.toByteArray();
+		}
 	}
 	
-	private VFSFile createContentXml() throws XMLException, IOException, DOMException, NotesException {
+	/**
+	 * Writes a content.xml document around already-serialized units.
+	 * 
+	 * @param os the stream to write the document to
+	 * @param name the repository name
+	 * @param timestamp the p2 timestamp of the repository
+	 * @param unitsSize the number of units in {@code unitsXml}
+	 * @param unitsXml the serialized units
+	 * @return the position within the document at which the units begin
+	 */
+	private static int writeMetadataRepository(ByteArrayOutputStream os, String name, long timestamp, int unitsSize, ByteArrayOutputStream unitsXml) throws XMLException, IOException {
 		org.w3c.dom.Document doc = DOMUtil.createDocument();
-		long lastMod = 0;
+		doc.setXmlStandalone(true);
 		
 		{
 			ProcessingInstruction proc = doc.createProcessingInstruction("metadataRepository", "version='1.1.0'"); //$NON-NLS-1$ //$NON-NLS-2$
@@ -374,7 +910,7 @@ class UpdateSiteNSFVFS extends VFS {
 		}
 		
 		Element repository = DOMUtil.createElement(doc, "repository"); //$NON-NLS-1$
-		repository.setAttribute("name", database.getTitle()); //$NON-NLS-1$
+		repository.setAttribute("name", name); //$NON-NLS-1$
 		repository.setAttribute("type", "org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository"); //$NON-NLS-1$ //$NON-NLS-2$
 		repository.setAttribute("version", "1"); //$NON-NLS-1$ //$NON-NLS-2$
 		
@@ -382,307 +918,124 @@ class UpdateSiteNSFVFS extends VFS {
 			Element properties = DOMUtil.createElement(doc, repository, "properties"); //$NON-NLS-1$
 			properties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
 			
-			Element timestamp = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-			timestamp.setAttribute("name", "p2.timestamp"); //$NON-NLS-1$ //$NON-NLS-2$
-			timestamp.setAttribute("value", StringUtil.toString(this.getDatabaseLastModified())); //$NON-NLS-1$
+			Element timestampProp = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
+			timestampProp.setAttribute("name", "p2.timestamp"); //$NON-NLS-1$ //$NON-NLS-2$
+			timestampProp.setAttribute("value", StringUtil.toString(timestamp)); //$NON-NLS-1$
 			
 			Element compressed = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
 			compressed.setAttribute("name", "p2.compressed"); //$NON-NLS-1$ //$NON-NLS-2$
 			compressed.setAttribute("value", "false"); //$NON-NLS-1$ //$NON-NLS-2$
 		}
 		
-		List<UpdateSiteNSFVFSFeature> features = getFeatures();
-		List<UpdateSiteNSFVFSPlugin> plugins = getPlugins();
 		Element units = DOMUtil.createElement(doc, repository, "units"); //$NON-NLS-1$
-		int unitsSize = features.size() + plugins.size();
-		
-		Map<String, Element> categories = new HashMap<>();
+		units.setAttribute("size", StringUtil.toString(unitsSize)); //$NON-NLS-1$
+		units.appendChild(doc.createComment(UNITS_PLACEHOLDER));
 		
-		for(UpdateSiteNSFVFSFeature feature : features) {
-			lastMod = Math.max(lastMod, feature.getDocLastModified());
-			
-			Element unit = DOMUtil.createElement(doc, units, "unit"); //$NON-NLS-1$
-			unit.setAttribute("id", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-			unit.setAttribute("version", feature.getVersion()); //$NON-NLS-1$
-			
-			{
-				Element update = DOMUtil.createElement(doc, unit, "update"); //$NON-NLS-1$
-				update.setAttribute("id", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-				update.setAttribute("range", "[0.0.0," + feature.getVersion() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-				update.setAttribute("severity", "0"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			
-			{
-				Element properties = DOMUtil.createElement(doc, unit, "properties"); //$NON-NLS-1$
-				properties.setAttribute("size", "4"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element propName = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-				propName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
-				propName.setAttribute("value", feature.getFeatureName()); //$NON-NLS-1$
+		// Splice the serialized units into the skeleton, serialized the same way as the units
+		String skeleton = new String(serialize(createTransformer(false), doc), StandardCharsets.UTF_8);
+		String placeholder = "<!--" + UNITS_PLACEHOLDER + "-->"; //$NON-NLS-1$ //$NON-NLS-2$
+		int placeholderIndex = skeleton.indexOf(placeholder);
+		if(placeholderIndex < 0) {
+			throw new IllegalStateException(StringUtil.format("Unable to find the units placeholder in the serialized repository \"{0}\"", name));
+		}
+		byte[] prefix = skeleton.substring(0, placeholderIndex).getBytes(StandardCharsets.UTF_8);
+		os.write(prefix);
+		unitsXml.writeTo(os);
+		os.write(skeleton.substring(placeholderIndex + placeholder.length()).getBytes(StandardCharsets.UTF_8));
+		return prefix.length;
+	}
 	
-				Element propDesc = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-				propDesc.setAttribute("name", "org.eclipse.equinox.p2.description"); //$NON-NLS-1$ //$NON-NLS-2$
-				propDesc.setAttribute("value", feature.getFeatureDescription()); //$NON-NLS-1$
+	/**
+	 * Retrieves the serialized content.xml unit last generated for a catalog entry.
+	 * 
+	 * @return the serialized unit, or {@code null} if none has been generated for this
+	 *         version of the entry
+	 */
+	static CachedUnit getCachedUnit(String replicaId, String unid, Object entry) {
+		CachedUnit unit = UNIT_CACHE.getOrDefault(replicaId, Collections.emptyMap()).get(unid);
+		return unit != null && unit.entry == entry && StringUtil.equals(unit.manifestHeaders, ManifestReducer.getConfiguration()) ? unit : null;
+	}
 	
-				Element propDescUrl = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-				propDescUrl.setAttribute("name", "org.eclipse.equinox.p2.description.url"); //$NON-NLS-1$ //$NON-NLS-2$
-				propDescUrl.setAttribute("value", feature.getFeatureDescriptionUrl()); //$NON-NLS-1$
-				
-				Element propTypeGroup = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-				propTypeGroup.setAttribute("name", "org.eclipse.equinox.p2.type.group"); //$NON-NLS-1$ //$NON-NLS-2$
-				propTypeGroup.setAttribute("value", "true"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			
-			{
-				Element provides = DOMUtil.createElement(doc, unit, "provides"); //$NON-NLS-1$
-				provides.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element provided = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
-				provided.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-				provided.setAttribute("name", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-				provided.setAttribute("version", feature.getVersion()); //$NON-NLS-1$
-			}
-			
-			{
-				int requiresSize = 0;
-				Element requires = DOMUtil.createElement(doc, unit, "requires"); //$NON-NLS-1$
-				
-				List<String> requiredFeatures = feature.getImportedFeatures();
-				List<String> requiredVersions = feature.getImportedFeatureVersions();
-				for(int i = 0; i < requiredFeatures.size(); i++) {
-					String id = requiredFeatures.get(i);
-					if(StringUtil.isNotEmpty(id)) {
-						Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
-						required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-						required.setAttribute("name", id + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-						if(requiredVersions.size() > i) {
-							String version = requiredVersions.get(i);
-							if(StringUtil.isNotEmpty(version)) {
-								required.setAttribute("range", version); //$NON-NLS-1$
-							} else {
-								required.setAttribute("range", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-							}
-						} else {
-							required.setAttribute("range", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-						}
-						
-						requiresSize++;
-					}
-				}
-				
-				for(PluginInfo plugin : feature.getPlugins()) {
-					Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
-					required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-					required.setAttribute("name", plugin.getId()); //$NON-NLS-1$
-					required.setAttribute("range", "[" + plugin.getVersion() + "," + plugin.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-					
-					requiresSize++;
-				}
-				
-				{
-					Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
-					required.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-					required.setAttribute("name", feature.getId() + ".feature.jar"); //$NON-NLS-1$ //$NON-NLS-2$
-					required.setAttribute("range", "[" + feature.getVersion() + "," + feature.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-					
-					Element filter = DOMUtil.createElement(doc, required, "filter"); //$NON-NLS-1$
-					filter.setTextContent("(org.eclipse.update.install.features=true)"); //$NON-NLS-1$
-					
-					requiresSize++;
-				}
-				
-				requires.setAttribute("size", StringUtil.toString(requiresSize)); //$NON-NLS-1$
-			}
-			
-			{
-				Element touchpoint = DOMUtil.createElement(doc, unit, "touchpoint"); //$NON-NLS-1$
-				touchpoint.setAttribute("id", "null"); //$NON-NLS-1$ //$NON-NLS-2$
-				touchpoint.setAttribute("version", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			
-			{
-				Element licenses = DOMUtil.createElement(doc, unit, "licenses"); //$NON-NLS-1$
-				licenses.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element license = DOMUtil.createElement(doc, licenses, "license"); //$NON-NLS-1$
-				license.setAttribute("uri", feature.getLicenseUrl()); //$NON-NLS-1$
-				license.setAttribute("url", feature.getLicenseUrl()); //$NON-NLS-1$
-				license.setTextContent(feature.getLicense());
-			}
-			
-			{
-				Element copyright = DOMUtil.createElement(doc, unit, "copyright"); //$NON-NLS-1$
-				copyright.setAttribute("uri", feature.getCopyrightUrl()); //$NON-NLS-1$
-				copyright.setAttribute("url", feature.getCopyrightUrl()); //$NON-NLS-1$
-				copyright.setTextContent(feature.getCopyright());
-			}
-			
-			// Add in a category element if it hasn't been added
-			if(!categories.containsKey(feature.getCategory())) {
-				Element category = DOMUtil.createElement(doc, units, "unit"); //$NON-NLS-1$
-				category.setAttribute("id", database.getReplicaID() + "-" + feature.getCategory()); //$NON-NLS-1$ //$NON-NLS-2$
-				category.setAttribute("version", "1.0.0.21-" + database.getReplicaID()); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element catProperties = DOMUtil.createElement(doc, category, "properties"); //$NON-NLS-1$
-				catProperties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
-				Element propCatName = DOMUtil.createElement(doc, catProperties, "property"); //$NON-NLS-1$
-				propCatName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
-				propCatName.setAttribute("value", feature.getCategory()); //$NON-NLS-1$
-				
-				Element propCatCat = DOMUtil.createElement(doc, catProperties, "property"); //$NON-NLS-1$
-				propCatCat.setAttribute("name", "org.eclipse.equinox.p2.type.category"); //$NON-NLS-1$ //$NON-NLS-2$
-				propCatCat.setAttribute("value", "true"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element catProvides = DOMUtil.createElement(doc, category, "provides"); //$NON-NLS-1$
-				catProvides.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-				Element catProvided = DOMUtil.createElement(doc, catProvides, "provided"); //$NON-NLS-1$
-				catProvided.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-				catProvided.setAttribute("name", category.getAttribute("id")); //$NON-NLS-1$ //$NON-NLS-2$
-				catProvided.setAttribute("version", category.getAttribute("version")); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element catTouchpoint = DOMUtil.createElement(doc, category, "touchpoint"); //$NON-NLS-1$
-				catTouchpoint.setAttribute("id", "null"); //$NON-NLS-1$ //$NON-NLS-2$
-				catTouchpoint.setAttribute("version", "0.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element catRequires = DOMUtil.createElement(doc, category, "requires"); //$NON-NLS-1$
-				categories.put(feature.getCategory(), catRequires);
-				catRequires.setAttribute("size", "0"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				unitsSize++;
-			}
-			Element catRequires = categories.get(feature.getCategory());
-			int reqSize = Integer.parseInt(catRequires.getAttribute("size"), 10); //$NON-NLS-1$
-			catRequires.setAttribute("size", StringUtil.toString(reqSize+1)); //$NON-NLS-1$
-			
-			Element req = DOMUtil.createElement(doc, catRequires, "required"); //$NON-NLS-1$
-			req.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-			req.setAttribute("name", feature.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-			req.setAttribute("range", "[" + feature.getVersion() + "," + feature.getVersion() + "]"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	static Transformer createUnitTransformer() {
+		return createTransformer(true);
+	}
+	
+	static byte[] serializeUnit(Transformer transformer, Element unit) {
+		return serialize(transformer, unit);
+	}
+	
+	private static Transformer createTransformer(boolean omitDeclaration) {
+		try {
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitDeclaration ? "yes" : "no"); //$NON-NLS-1$ //$NON-NLS-2$
+			transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8"); //$NON-NLS-1$
+			return transformer;
+		} catch(TransformerConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static byte[] serialize(Transformer transformer, Node node) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			transformer.transform(new DOMSource(node), new StreamResult(baos));
+			return baos.toByteArray();
+		} catch(TransformerException e) {
+			throw new RuntimeException(e);
 		}
+	}
+	
+	/**
+	 * A serialized content.xml unit along with the catalog entry and manifest headers it
+	 * was generated from. Catalog entries are immutable and replaced whenever their
+	 * document changes, so an identity check is enough to tell whether the entry is still
+	 * current.
+	 * 
+	 * <p>The unit's bytes are not copied: it refers to its location within the stored
+	 * content.xml it was last written to.</p>
+	 */
+	static class CachedUnit {
+		private final Object entry;
+		private final String variant;
+		private final String manifestHeaders;
+		private final OffHeapContent content;
+		private final int offset;
+		private final int length;
 		
-		for(UpdateSiteNSFVFSPlugin plugin : plugins) {
-			lastMod = Math.max(lastMod, plugin.getDocLastModified());
-			
-			Element unit = DOMUtil.createElement(doc, units, "unit"); //$NON-NLS-1$
-			unit.setAttribute("id", plugin.getId()); //$NON-NLS-1$
-			unit.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
-			
-			{
-				Element update = DOMUtil.createElement(doc, unit, "update"); //$NON-NLS-1$
-				update.setAttribute("id", plugin.getId() + ".feature.group"); //$NON-NLS-1$ //$NON-NLS-2$
-				update.setAttribute("range", "[0.0.0," + plugin.getVersion() + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-				update.setAttribute("severity", "0"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			
-			{
-				Element properties = DOMUtil.createElement(doc, unit, "properties"); //$NON-NLS-1$
-				properties.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element propName = DOMUtil.createElement(doc, properties, "property"); //$NON-NLS-1$
-				propName.setAttribute("name", "org.eclipse.equinox.p2.name"); //$NON-NLS-1$ //$NON-NLS-2$
-				propName.setAttribute("value", plugin.getPluginName()); //$NON-NLS-1$
-				
-				Element propProvider = DOMUtil.createElement(doc, properties, "provider"); //$NON-NLS-1$
-				propProvider.setAttribute("name", "org.eclipse.equinox.p2.provider"); //$NON-NLS-1$ //$NON-NLS-2$
-				propProvider.setAttribute("value", plugin.getProviderName()); //$NON-NLS-1$
-			}
-			
-			{
-				Element provides = DOMUtil.createElement(doc, unit, "provides"); //$NON-NLS-1$
-				provides.setAttribute("size", StringUtil.toString(plugin.isFragment() ? 4 : 3)); //$NON-NLS-1$
-				
-				Element providedIu = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
-				providedIu.setAttribute("namespace", "org.eclipse.equinox.p2.iu"); //$NON-NLS-1$ //$NON-NLS-2$
-				providedIu.setAttribute("name", plugin.getId()); //$NON-NLS-1$
-				providedIu.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
-				
-				Element providedBundle = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
-				providedBundle.setAttribute("namespace", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
-				providedBundle.setAttribute("name", plugin.getId()); //$NON-NLS-1$
-				providedBundle.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
-				
-				Element providedType = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
-				providedType.setAttribute("namespace", "org.eclipse.equinox.p2.eclipse.type"); //$NON-NLS-1$ //$NON-NLS-2$
-				providedType.setAttribute("name", "bundle"); //$NON-NLS-1$ //$NON-NLS-2$
-				providedType.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				if(plugin.isFragment()) {
-					String host = plugin.getFragmentHost();
-					String version;
-					Optional<UpdateSiteNSFVFSPlugin> hostPlugin = getPlugins().stream().filter(p -> p.getId().equals(host)).findFirst();
-					if(hostPlugin.isPresent()) {
-						version = hostPlugin.get().getVersion();
-					} else {
-						version = "0.0.0"; //$NON-NLS-1$
-					}
-					
-					Element providedFragment = DOMUtil.createElement(doc, provides, "provided"); //$NON-NLS-1$
-					providedFragment.setAttribute("namespace", "osgi.fragment"); //$NON-NLS-1$ //$NON-NLS-2$
-					providedFragment.setAttribute("name", host); //$NON-NLS-1$
-					providedFragment.setAttribute("version", version); //$NON-NLS-1$
-				}
-			}
-			
-			{
-				Element requires = DOMUtil.createElement(doc, unit, "requires"); //$NON-NLS-1$
-				int requiresCount = 0;
-				
-				for(PluginInfo info : plugin.getRequiredPlugins()) {
-					Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
-					required.setAttribute("namespace", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
-					required.setAttribute("name", info.getId()); //$NON-NLS-1$
-					required.setAttribute("range", info.getVersion()); //$NON-NLS-1$
-					
-					requiresCount++;
-				}
-				for(PackageInfo info : plugin.getImportedPackages()) {
-					Element required = DOMUtil.createElement(doc, requires, "required"); //$NON-NLS-1$
-					required.setAttribute("namespace", "java.package"); //$NON-NLS-1$ //$NON-NLS-2$
-					required.setAttribute("name", info.getName()); //$NON-NLS-1$
-					required.setAttribute("range", info.getVersion()); //$NON-NLS-1$
-					
-					requiresCount++;
-				}
-				
-				requires.setAttribute("size", StringUtil.toString(requiresCount)); //$NON-NLS-1$
-			}
-			
-			{
-				Element artifacts = DOMUtil.createElement(doc, unit, "artifacts"); //$NON-NLS-1$
-				artifacts.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element artifact = DOMUtil.createElement(doc, artifacts, "artifact"); //$NON-NLS-1$
-				artifact.setAttribute("classifier", "osgi.bundle"); //$NON-NLS-1$ //$NON-NLS-2$
-				artifact.setAttribute("id", plugin.getId()); //$NON-NLS-1$
-				artifact.setAttribute("version", plugin.getVersion()); //$NON-NLS-1$
-			}
-			
-			{
-				Element touchpoint = DOMUtil.createElement(doc, unit, "touchpoint"); //$NON-NLS-1$
-				touchpoint.setAttribute("id", "org.eclipse.equinox.p2.osgi"); //$NON-NLS-1$ //$NON-NLS-2$
-				touchpoint.setAttribute("version", "1.0.0"); //$NON-NLS-1$ //$NON-NLS-2$
-			}
-			{
-				Element touchpointData = DOMUtil.createElement(doc, unit, "touchpointData"); //$NON-NLS-1$
-				touchpointData.setAttribute("size", "1"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element instructions = DOMUtil.createElement(doc, touchpointData, "instructions"); //$NON-NLS-1$
-				instructions.setAttribute("size", "2"); //$NON-NLS-1$ //$NON-NLS-2$
-				
-				Element instZipped = DOMUtil.createElement(doc, instructions, "instruction"); //$NON-NLS-1$
-				instZipped.setAttribute("key", "zipped"); //$NON-NLS-1$ //$NON-NLS-2$
-				instZipped.setTextContent("false"); //$NON-NLS-1$
-				
-				Element instManifest = DOMUtil.createElement(doc, instructions, "manifest"); //$NON-NLS-1$
-				instManifest.setAttribute("key", "manifest"); //$NON-NLS-1$ //$NON-NLS-2$
-				// TODO trim this down?
-				instManifest.setTextContent(plugin.getManifestContent());
-			}
+		public CachedUnit(Object entry, String variant, String manifestHeaders, OffHeapContent content, int offset, int length) {
+			this.entry = entry;
+			this.variant = variant;
+			this.manifestHeaders = manifestHeaders;
+			this.content = content;
+			this.offset = offset;
+			this.length = length;
 		}
 		
-
-		units.setAttribute("size", StringUtil.toString(unitsSize)); //$NON-NLS-1$
+		public boolean isFor(Object entry, String variant, String manifestHeaders) {
+			return this.entry == entry && StringUtil.equals(this.variant, variant) && StringUtil.equals(this.manifestHeaders, manifestHeaders);
+		}
 		
-		return new XMLDocumentVFSFile(this, this.name + VFS.SEPARATOR + "content.xml", doc, lastMod); //$NON-NLS-1$
+		public void writeTo(OutputStream os) throws IOException {
+			content.writeTo(os, offset, length);
+		}
+	}
+	
+	/**
+	 * The position of a unit within the units being written for a new content.xml.
+	 */
+	private static class PlacedUnit {
+		private final String unid;
+		private final Object entry;
+		private final String variant;
+		private final int offset;
+		private final int length;
+		
+		public PlacedUnit(String unid, Object entry, String variant, int offset, int length) {
+			this.unid = unid;
+			this.entry = entry;
+			this.variant = variant;
+			this.offset = offset;
+			this.length = length;
+		}
 	}
 }
@@ -15,17 +15,8 @@
  */
 package org.openntf.website.repositorybrowser.fs.usnsf;
 
-import java.util.ArrayList;
 import java.util.List;
 
-import com.ibm.commons.util.StringUtil;
-import com.ibm.commons.vfs.VFS;
-
-import lotus.domino.Document;
-import lotus.domino.EmbeddedObject;
-import lotus.domino.NotesException;
-import lotus.domino.RichTextItem;
-
 /**
  * A concrete implementation of {@link UpdateSiteNSFVFSFile} with additional
  * methods to access feature metadata.
@@ -49,89 +40,63 @@ public class UpdateSiteNSFVFSFeature extends UpdateSiteNSFVFSFile {
 	public static final String ITEM_COPYRIGHT_URL = "feature.copyright.url"; //$NON-NLS-1$
 	public static final String ITEM_CATEGORY = "feature.category"; //$NON-NLS-1$
 	
-	public UpdateSiteNSFVFSFeature(VFS vfs, String name, String id, String version, Document doc) {
-		super(vfs, name, id, version, doc);
+	private final FeatureEntry entry;
+	
+	UpdateSiteNSFVFSFeature(UpdateSiteNSFVFS vfs, String name, FeatureEntry entry) {
+		super(vfs, name, entry.getUnid(), entry.getId(), entry.getVersion(), entry.getLastModified(), entry.getSize());
+		this.entry = entry;
 	}
-
+	
 	@Override
-	public long getDocLastModified() {
-		try {
-			String modString = doc.getItemValueString(ITEM_MOD);
-			return Long.parseLong(modString, 10);
-		} catch(NotesException e) {
-			throw new RuntimeException(e);
-		}
+	protected String getFileItemName() {
+		return ITEM_FILE;
 	}
 	
-	@Override
-	protected EmbeddedObject getFile() throws NotesException {
-		RichTextItem body = (RichTextItem)doc.getFirstItem(ITEM_FILE);
-		return (EmbeddedObject)body.getEmbeddedObjects().get(0);
+	FeatureEntry getEntry() {
+		return entry;
 	}
 	
-	public String getFeatureName() throws NotesException {
-		return doc.getItemValueString(ITEM_NAME);
+	public String getFeatureName() {
+		return entry.getName();
 	}
 	
-	public String getFeatureDescription() throws NotesException {
-		return doc.getItemValueString(ITEM_DESC);
+	public String getFeatureDescription() {
+		return entry.getDescription();
 	}
 	
-	public String getFeatureDescriptionUrl() throws NotesException {
-		return doc.getItemValueString(ITEM_DESC_URL);
+	public String getFeatureDescriptionUrl() {
+		return entry.getDescriptionUrl();
 	}
 	
-	@SuppressWarnings("unchecked")
-	public List<String> getImportedFeatures() throws NotesException {
-		return doc.getItemValue(ITEM_IMPORT_FEATURE);
+	public List<String> getImportedFeatures() {
+		return entry.getImportedFeatures();
 	}
 	
-	@SuppressWarnings("unchecked")
-	public List<String> getImportedFeatureVersions() throws NotesException {
-		return doc.getItemValue(ITEM_IMPORT_VERSION);
+	public List<String> getImportedFeatureVersions() {
+		return entry.getImportedFeatureVersions();
 	}
 	
-	@SuppressWarnings("unchecked")
-	public List<PluginInfo> getPlugins() throws NotesException {
-		List<PluginInfo> result = new ArrayList<>();
-		
-		List<String> ids = doc.getItemValue(ITEM_PLUGIN_ID);
-		List<String> versions = doc.getItemValue(ITEM_PLUGIN_VERSION);
-		for(int i = 0; i < ids.size(); i++) {
-			String id = ids.get(i);
-			if(StringUtil.isNotEmpty(id)) {
-				String version = null;;
-				if(versions.size() > i) {
-					version = versions.get(i);
-				}
-				if(StringUtil.isEmpty(version)) {
-					version = "0.0.0"; //$NON-NLS-1$
-				}
-				
-				result.add(new PluginInfo(id, version));
-			}
-		}
-		
-		return result;
+	public List<PluginInfo> getPlugins() {
+		return entry.getPlugins();
 	}
 	
-	public String getLicense() throws NotesException {
-		return doc.getItemValueString(ITEM_LICENSE);
+	public String getLicense() {
+		return entry.getLicense();
 	}
 	
-	public String getLicenseUrl() throws NotesException {
-		return doc.getItemValueString(ITEM_LICENSE_URL);
+	public String getLicenseUrl() {
+		return entry.getLicenseUrl();
 	}
 	
-	public String getCopyright() throws NotesException {
-		return doc.getItemValueString(ITEM_COPYRIGHT);
+	public String getCopyright() {
+		return entry.getCopyright();
 	}
 	
-	public String getCopyrightUrl() throws NotesException {
-		return doc.getItemValueString(ITEM_COPYRIGHT_URL);
+	public String getCopyrightUrl() {
+		return entry.getCopyrightUrl();
 	}
 	
-	public String getCategory() throws NotesException {
-		return doc.getItemValueString(ITEM_CATEGORY);
+	public String getCategory() {
+		return entry.getCategory();
 	}
 }
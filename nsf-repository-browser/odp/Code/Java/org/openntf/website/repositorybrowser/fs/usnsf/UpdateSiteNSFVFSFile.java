@@ -19,46 +19,72 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
 import java.util.List;
 
+import org.openntf.website.repositorybrowser.Constants;
 import org.openntf.website.repositorybrowser.fs.MimeTypeProvider;
 
-import com.ibm.commons.vfs.VFS;
 import com.ibm.commons.vfs.VFSException;
 import com.ibm.commons.vfs.VFSFile;
 
+import lotus.domino.Database;
 import lotus.domino.Document;
 import lotus.domino.EmbeddedObject;
 import lotus.domino.NotesException;
-import util.TempFileInputStream;
-import util.Utils;
+import lotus.domino.RichTextItem;
 
 public abstract class UpdateSiteNSFVFSFile extends VFSFile implements MimeTypeProvider {
+	/**
+	 * The xsp.properties property controlling whether attachments are streamed directly
+	 * from the NSF rather than extracted to a temporary file first
+	 */
+	public static final String PROP_STREAM_ARTIFACTS = "repositorybrowser.usnsf.streamArtifacts"; //$NON-NLS-1$
+
 	private long lastModificationDate;
+	private final String unid;
 	private final String id;
 	private final String version;
-	protected final Document doc;
+	private final long docLastModified;
+	private final long size;
 
-	protected UpdateSiteNSFVFSFile(VFS vfs, String name, String id, String version, Document doc) {
+	protected UpdateSiteNSFVFSFile(UpdateSiteNSFVFS vfs, String name, String unid, String id, String version, long docLastModified, long size) {
 		super(vfs, name);
+		this.unid = unid;
 		this.id = id;
 		this.version = version;
-		this.doc = doc;
+		this.docLastModified = docLastModified;
+		this.size = size;
 	}
 
 	@Override
 	protected InputStream doGetInputStream() throws VFSException {
 		try {
-			EmbeddedObject obj = getFile();
+			Document doc = getDocument();
+			if(doc == null) {
+				throw new VFSException(null, "Unable to open the database for {0}", getPath());
+			}
+			boolean streaming = false;
 			try {
-				File tempFile = Files.createTempFile(Utils.getTempDirectory(), obj.getSource(), ".dat").toFile(); //$NON-NLS-1$
-				tempFile.delete();
-				obj.extractFile(tempFile.getAbsolutePath());
-				tempFile.deleteOnExit();
-				return new TempFileInputStream(tempFile);
+				RichTextItem body = (RichTextItem)doc.getFirstItem(getFileItemName());
+				EmbeddedObject obj = (EmbeddedObject)body.getEmbeddedObjects().get(0);
+				if(!isStreamArtifacts()) {
+					UpdateSiteCatalog catalog = ((UpdateSiteNSFVFS)getVFS()).getCatalog();
+					String key = ArtifactDedupIndex.key(id, version, catalog.getChecksum(unid, docLastModified));
+					InputStream is = ScratchSpace.INSTANCE.extract(obj, size, key);
+					if(is != null) {
+						obj.recycle();
+						return is;
+					}
+					// Otherwise, the scratch space is full, so stream it instead
+				}
+				// The stream takes ownership of the object and document
+				InputStream is = new EmbeddedObjectInputStream(doc, obj);
+				streaming = true;
+				return is;
 			} finally {
-				obj.recycle();
+				if(!streaming) {
+					doc.recycle();
+				}
 			}
 		} catch(NotesException | IOException e) {
 			throw new RuntimeException(e);
@@ -72,16 +98,7 @@ public abstract class UpdateSiteNSFVFSFile extends VFSFile implements MimeTypePr
 
 	@Override
 	protected long doGetSize() throws VFSException {
-		try {
-			EmbeddedObject obj = getFile();
-			try {
-				return obj.getFileSize();
-			} finally {
-				obj.recycle();
-			}
-		} catch(NotesException e) {
-			throw new RuntimeException(e);
-		}
+		return size;
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -131,12 +148,18 @@ public abstract class UpdateSiteNSFVFSFile extends VFSFile implements MimeTypePr
 		return "application/java-archive"; //$NON-NLS-1$
 	}
 	
-	public abstract long getDocLastModified();
+	public long getDocLastModified() {
+		return docLastModified;
+	}
 	
 	// *******************************************************************************
 	// * p2 metadata access
 	// *******************************************************************************
 	
+	public String getUnid() {
+		return unid;
+	}
+	
 	public String getId() {
 		return id;
 	}
@@ -149,5 +172,23 @@ public abstract class UpdateSiteNSFVFSFile extends VFSFile implements MimeTypePr
 	// * Internal implementation methods
 	// *******************************************************************************
 	
-	protected abstract EmbeddedObject getFile() throws NotesException;
+	/**
+	 * Opens the backing document from the filesystem's database. Callers are responsible
+	 * for recycling it.
+	 * 
+	 * @return the document, or {@code null} if the database could not be opened
+	 */
+	protected Document getDocument() throws NotesException {
+		Database database = ((UpdateSiteNSFVFS)getVFS()).getDatabase();
+		return database == null ? null : database.getDocumentByUNID(unid);
+	}
+	
+	private static boolean isStreamArtifacts() {
+		return !"false".equalsIgnoreCase(Constants.getProperty(PROP_STREAM_ARTIFACTS, "true")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	/**
+	 * @return the name of the rich text item holding the file attachment
+	 */
+	protected abstract String getFileItemName();
 }
@@ -17,22 +17,13 @@ package org.openntf.website.repositorybrowser.fs.usnsf;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.openntf.eclipse.osgi.util.ManifestElement;
 
-import com.ibm.commons.util.StringUtil;
-import com.ibm.commons.vfs.VFS;
-
-import lotus.domino.Document;
-import lotus.domino.EmbeddedObject;
-import lotus.domino.NotesException;
-import lotus.domino.RichTextItem;
-
 /**
  * A concrete implementation of {@link UpdateSiteNSFVFSFile} with additional
  * methods to access plugin metadata.
@@ -49,101 +40,64 @@ public class UpdateSiteNSFVFSPlugin extends UpdateSiteNSFVFSFile {
 	
 	public static final String ITEM_MANIFESTMF = "plugin.manifest.mf"; //$NON-NLS-1$
 	
-	private String manifestContent;
-	private Map<String, String> manifest;
+	private final PluginEntry entry;
+	private volatile Map<String, String> manifest;
 
-	public UpdateSiteNSFVFSPlugin(VFS vfs, String name, String id, String version, Document doc) {
-		super(vfs, name, id, version, doc);
+	UpdateSiteNSFVFSPlugin(UpdateSiteNSFVFS vfs, String name, PluginEntry entry) {
+		super(vfs, name, entry.getUnid(), entry.getId(), entry.getVersion(), entry.getLastModified(), entry.getSize());
+		this.entry = entry;
 	}
-
+	
 	@Override
-	public long getDocLastModified() {
-		try {
-			String modString = doc.getItemValueString(ITEM_MOD);
-			return Long.parseLong(modString, 10);
-		} catch(NotesException e) {
-			throw new RuntimeException(e);
-		}
+	protected String getFileItemName() {
+		return ITEM_FILE;
 	}
 	
-	@Override
-	protected EmbeddedObject getFile() throws NotesException {
-		RichTextItem body = (RichTextItem)doc.getFirstItem(ITEM_FILE);
-		return (EmbeddedObject)body.getEmbeddedObjects().get(0);
+	PluginEntry getEntry() {
+		return entry;
 	}
 	
-	public String getProviderName() throws NotesException {
-		return doc.getItemValueString(ITEM_PROVIDER);
+	public String getProviderName() {
+		return entry.getProviderName();
 	}
 	
-	public String getPluginName() throws NotesException {
-		return doc.getItemValueString(ITEM_NAME);
+	public String getPluginName() {
+		return entry.getName();
 	}
 	
-	public boolean isFragment() throws NotesException {
-		return "true".equals(doc.getItemValueString(ITEM_FRAGMENT)); //$NON-NLS-1$
+	public boolean isFragment() {
+		return entry.isFragment();
 	}
 	
-	public String getFragmentHost() throws NotesException, IOException {
-		return getManifest().get("Fragment-Host"); //$NON-NLS-1$
+	public String getFragmentHost() {
+		return entry.getFragmentHost();
 	}
 	
-	public List<PluginInfo> getRequiredPlugins() throws NotesException, IOException {
-		String require = getManifest().get("Require-Bundle"); //$NON-NLS-1$
-		if(StringUtil.isEmpty(require)) {
-			return Collections.emptyList();
-		} else {
-			ManifestElement[] elements = ManifestElement.parseHeader("Require-Bundle", require); //$NON-NLS-1$
-			return Arrays.stream(elements)
-				.filter(el -> !StringUtil.equals("optional", el.getAttribute("resolution"))) //$NON-NLS-1$ //$NON-NLS-2$
-				.map(el -> {
-					String version = el.getAttribute("version"); //$NON-NLS-1$
-					if(StringUtil.isEmpty(version)) {
-						version = "0.0.0"; //$NON-NLS-1$
-					}
-					return new PluginInfo(el.getValue(), version);
-				})
-				.collect(Collectors.toList());
-		}
+	public List<PluginInfo> getRequiredPlugins() {
+		return entry.getRequiredPlugins();
 	}
 	
-	public List<PackageInfo> getImportedPackages() throws NotesException, IOException {
-		String imports = getManifest().get("Import-Package"); //$NON-NLS-1$
-		if(StringUtil.isEmpty(imports)) {
-			return Collections.emptyList();
-		} else {
-			ManifestElement[] elements = ManifestElement.parseHeader("Import-Package", imports); //$NON-NLS-1$
-			return Arrays.stream(elements)
-				.filter(el -> !StringUtil.equals("optional", el.getAttribute("resolution"))) //$NON-NLS-1$ //$NON-NLS-2$
-				.map(el -> {
-					String version = el.getAttribute("version"); //$NON-NLS-1$
-					if(StringUtil.isEmpty(version)) {
-						version = "0.0.0"; //$NON-NLS-1$
-					}
-					return new PackageInfo(el.getValue(), version);
-				})
-				.collect(Collectors.toList());
-		}
+	public List<PackageInfo> getImportedPackages() {
+		return entry.getImportedPackages();
 	}
 	
-	public synchronized String getManifestContent() throws NotesException {
-		if(this.manifestContent == null) {
-			RichTextItem item = (RichTextItem)doc.getFirstItem(ITEM_MANIFESTMF);
-			this.manifestContent = item.getUnformattedText();
-		}
-		return this.manifestContent;
+	public String getManifestContent() {
+		return entry.getManifestContent();
 	}
 	
 	// *******************************************************************************
 	// * Internal utility methods
 	// *******************************************************************************
 
-	public synchronized Map<String, String> getManifest() throws NotesException, IOException {
-		if(this.manifest == null) {
+	public Map<String, String> getManifest() throws IOException {
+		Map<String, String> result = this.manifest;
+		if(result == null) {
+			// Parsing is idempotent, so a race only costs a redundant parse
 			String text = getManifestContent();
-			ByteArrayInputStream bais = new ByteArrayInputStream(text.getBytes());
-			this.manifest = ManifestElement.parseBundleManifest(bais, null);
+			ByteArrayInputStream bais = new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+			result = Collections.unmodifiableMap(ManifestElement.parseBundleManifest(bais, null));
+			this.manifest = result;
 		}
-		return this.manifest;
+		return result;
 	}
 }
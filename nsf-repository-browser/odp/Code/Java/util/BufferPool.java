@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable copy buffers, so that streaming a download does not allocate
+ * a new buffer per request.
+ *
+ * <p>The pool holds at most {@link #SLABS} buffers. When all of them are in use, callers
+ * wait briefly for one to be returned, which throttles copying under peak load; if none
+ * comes back in time, an unpooled buffer is allocated rather than failing the request.
+ * Hit and miss counts are kept for status reporting.</p>
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public class BufferPool {
+	public static final int BUFFER_SIZE = 64 * 1024;
+	/** The maximum number of buffers allocated by the pool */
+	public static final int SLABS = 64;
+	/** The time, in milliseconds, to wait for a buffer when all slabs are in use */
+	private static final long WAIT_TIME = 5000;
+
+	public static final BufferPool INSTANCE = new BufferPool();
+
+	private final BlockingQueue<byte[]> idle = new ArrayBlockingQueue<>(SLABS);
+	private final AtomicInteger allocated = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return a buffer of {@link #BUFFER_SIZE} bytes, which should be passed to
+	 *         {@link #release} when no longer in use
+	 */
+	public byte[] acquire() {
+		byte[] buffer = idle.poll();
+		if(buffer != null) {
+			hits.incrementAndGet();
+			return buffer;
+		}
+
+		// Allocate another slab if the pool has room
+		if(allocated.incrementAndGet() <= SLABS) {
+			misses.incrementAndGet();
+			return new byte[BUFFER_SIZE];
+		}
+		allocated.decrementAndGet();
+
+		// Otherwise, wait for one to be returned
+		waits.incrementAndGet();
+		try {
+			buffer = idle.poll(WAIT_TIME, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(buffer != null) {
+			hits.incrementAndGet();
+			return buffer;
+		}
+		misses.incrementAndGet();
+		overflows.incrementAndGet();
+		return new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire} to the pool.
+	 */
+	public void release(byte[] buffer) {
+		if(buffer == null || buffer.length != BUFFER_SIZE) {
+			return;
+		}
+		// If the pool is already full, this was an overflow buffer and is left to the GC
+		idle.offer(buffer);
+	}
+
+	/**
+	 * @return the pool's counters as a map, suitable for JSON serialization
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("bufferSize", BUFFER_SIZE); //$NON-NLS-1$
+		result.put("slabs", SLABS); //$NON-NLS-1$
+		result.put("allocated", Math.min(allocated.get(), SLABS)); //$NON-NLS-1$
+		result.put("idle", idle.size()); //$NON-NLS-1$
+		result.put("hits", hits.get()); //$NON-NLS-1$
+		result.put("misses", misses.get()); //$NON-NLS-1$
+		result.put("waits", waits.get()); //$NON-NLS-1$
+		result.put("overflows", overflows.get()); //$NON-NLS-1$
+		return result;
+	}
+
+	/**
+	 * Copies the full contents of the input stream to the output stream using a pooled
+	 * buffer. Neither stream is closed.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public static long copy(InputStream is, OutputStream os) throws IOException {
+		byte[] buffer = INSTANCE.acquire();
+		try {
+			long total = 0;
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				os.write(buffer, 0, read);
+				total += read;
+			}
+			return total;
+		} finally {
+			INSTANCE.release(buffer);
+		}
+	}
+
+	/**
+	 * Copies the full contents of a file to the output stream. The output stream is not
+	 * closed.
+	 *
+	 * <p>The file is read through its channel into a pooled buffer, which avoids the
+	 * per-stream overhead of {@link java.io.FileInputStream}. Reading stops at the end of
+	 * the file as it is found, so a file that shrinks while being copied ends the copy
+	 * early rather than stalling it.</p>
+	 *
+	 * @return the number of bytes copied
+	 */
+	public static long copy(Path file, OutputStream os) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			byte[] buffer = INSTANCE.acquire();
+			try {
+				ByteBuffer view = ByteBuffer.wrap(buffer);
+				long total = 0;
+				int read;
+				while((read = channel.read(view)) != -1) {
+					os.write(buffer, 0, read);
+					total += read;
+					view.clear();
+				}
+				return total;
+			} finally {
+				INSTANCE.release(buffer);
+			}
+		}
+	}
+}
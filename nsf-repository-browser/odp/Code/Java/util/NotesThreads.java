@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2016-2024 Christian Guedemann, Jesse Gallagher
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.faces.context.FacesContext;
+
+import com.ibm.domino.xsp.module.nsf.NSFComponentModule;
+import com.ibm.domino.xsp.module.nsf.NotesContext;
+import com.ibm.domino.xsp.module.nsf.SessionCloner;
+import com.ibm.xsp.extlib.util.ExtLibUtil;
+
+import lotus.domino.Database;
+import lotus.domino.NotesException;
+import lotus.domino.NotesThread;
+import lotus.domino.Session;
+
+/**
+ * Utilities for running Notes API work off of the XPages request thread.
+ *
+ * @author Jesse Gallagher
+ * @since 2.1.0
+ */
+public enum NotesThreads {
+	;
+
+	/**
+	 * A task to be run with a Notes session on a background thread.
+	 */
+	@FunctionalInterface
+	public interface SessionCallable<T> {
+		T call(Session session) throws Exception;
+	}
+
+	private static final ThreadLocal<SessionContext> CONTEXT = new ThreadLocal<>();
+	private static final ThreadLocal<Session> SESSION = new ThreadLocal<>();
+	private static final ThreadLocal<Database> DATABASE = new ThreadLocal<>();
+
+	/**
+	 * Creates a fixed-size pool of daemon {@link NotesThread}s.
+	 *
+	 * <p>Tasks from {@link #withSession} that never run, because they are cancelled
+	 * first, rejected, or drained by {@link ExecutorService#shutdownNow()}, release their
+	 * captured session context rather than leaking it.</p>
+	 *
+	 * @param name the base name for the pool's threads
+	 * @param size the number of threads in the pool
+	 * @return a new {@link ExecutorService}
+	 */
+	public static ExecutorService newFixedPool(String name, int size) {
+		return new NotesThreadPool(name, size);
+	}
+
+	/**
+	 * Wraps the provided task so that it runs inside the current application's module
+	 * context with a clone of the calling thread's session.
+	 *
+	 * <p>This must be called on a thread with an active XPages context, such as a
+	 * request thread, or from within another task created by this method; the returned
+	 * {@link Callable} may then be run on any Notes-initialized thread.</p>
+	 *
+	 * @param task the task to run
+	 * @return a {@link Callable} suitable for submission to a pool from {@link #newFixedPool}
+	 */
+	public static <T> Callable<T> withSession(SessionCallable<T> task) {
+		return new SessionTask<>(SessionContext.capture(), task);
+	}
+
+	/**
+	 * Retrieves the session for the current thread: either the session of a task run via
+	 * {@link #withSession} or the session for the current XPages request.
+	 *
+	 * @return the current thread's {@link Session}
+	 */
+	public static Session getCurrentSession() {
+		Session session = SESSION.get();
+		if(session != null) {
+			return session;
+		}
+		if(FacesContext.getCurrentInstance() != null) {
+			return ExtLibUtil.getCurrentSession();
+		}
+		return NotesContext.getCurrent().getCurrentSession();
+	}
+
+	/**
+	 * Retrieves the application database for the current thread, opening it with the
+	 * task session when called from a task run via {@link #withSession}.
+	 *
+	 * @return the current application {@link Database}
+	 */
+	public static Database getCurrentDatabase() throws NotesException {
+		SessionContext context = CONTEXT.get();
+		if(context != null) {
+			Database database = DATABASE.get();
+			if(database == null) {
+				database = SESSION.get().getDatabase("", context.databasePath); //$NON-NLS-1$
+				DATABASE.set(database);
+			}
+			return database;
+		}
+		if(FacesContext.getCurrentInstance() != null) {
+			return ExtLibUtil.getCurrentDatabase();
+		}
+		return NotesContext.getCurrent().getCurrentDatabase();
+	}
+
+	// *******************************************************************************
+	// * Internal implementation methods
+	// *******************************************************************************
+
+	/**
+	 * A task wrapped by {@link #withSession}, which releases its session context exactly
+	 * once: after running, or when discarded without having run.
+	 */
+	private static class SessionTask<T> implements Callable<T> {
+		private final SessionContext context;
+		private final SessionCallable<T> task;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		SessionTask(SessionContext context, SessionCallable<T> task) {
+			this.context = context;
+			this.task = task;
+		}
+
+		@Override
+		public T call() throws Exception {
+			if(!claimed.compareAndSet(false, true)) {
+				throw new IllegalStateException("This task has already been run or discarded");
+			}
+			NotesContext.initThread(new NotesContext(context.module));
+			Session session = null;
+			try {
+				session = context.cloner.getSession();
+				CONTEXT.set(context);
+				SESSION.set(session);
+				return task.call(session);
+			} finally {
+				Database database = DATABASE.get();
+				DATABASE.remove();
+				SESSION.remove();
+				CONTEXT.remove();
+				try {
+					if(database != null) {
+						database.recycle();
+					}
+					if(session != null) {
+						session.recycle();
+					}
+				} catch(NotesException e) {
+					// Ignore
+				}
+				context.release();
+				NotesContext.termThread();
+			}
+		}
+
+		void discard() {
+			if(claimed.compareAndSet(false, true)) {
+				context.release();
+			}
+		}
+	}
+
+	/**
+	 * The future for a {@link SessionTask}, which discards the task if it is cancelled
+	 * before it runs.
+	 */
+	private static class SessionFuture<T> extends FutureTask<T> {
+		private final SessionTask<T> task;
+
+		SessionFuture(SessionTask<T> task) {
+			super(task);
+			this.task = task;
+		}
+
+		@Override
+		protected void done() {
+			if(isCancelled()) {
+				// A no-op if the task already started, since it then releases the context itself
+				task.discard();
+			}
+		}
+	}
+
+	/**
+	 * A fixed-size pool of daemon {@link NotesThread}s that discards {@link SessionTask}s
+	 * which will never run.
+	 */
+	private static class NotesThreadPool extends ThreadPoolExecutor {
+		NotesThreadPool(String name, int size) {
+			super(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), newThreadFactory(name), (r, executor) -> {
+				if(r instanceof SessionFuture) {
+					((SessionFuture<?>)r).cancel(false);
+				}
+				throw new RejectedExecutionException("Task " + r + " rejected from " + executor);
+			});
+		}
+
+		private static ThreadFactory newThreadFactory(String name) {
+			AtomicInteger count = new AtomicInteger();
+			return r -> {
+				Thread thread = new NotesThread(r, name + "-" + count.incrementAndGet()); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+			if(callable instanceof SessionTask) {
+				return new SessionFuture<>((SessionTask<T>)callable);
+			}
+			return super.newTaskFor(callable);
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			List<Runnable> drained = super.shutdownNow();
+			for(Runnable r : drained) {
+				if(r instanceof SessionFuture) {
+					((SessionFuture<?>)r).cancel(false);
+				}
+			}
+			return drained;
+		}
+	}
+
+	/**
+	 * Holds the module and session cloner captured from an XPages thread, shared by
+	 * all tasks spawned from it and released once the last of them completes.
+	 */
+	private static class SessionContext {
+		private final NSFComponentModule module;
+		private final SessionCloner cloner;
+		private final String databasePath;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private SessionContext(NSFComponentModule module, SessionCloner cloner, String databasePath) {
+			this.module = module;
+			this.cloner = cloner;
+			this.databasePath = databasePath;
+		}
+
+		static SessionContext capture() {
+			SessionContext current = CONTEXT.get();
+			if(current != null) {
+				// Nested tasks keep the originating context alive until they finish
+				current.references.incrementAndGet();
+				return current;
+			}
+			NSFComponentModule module = NotesContext.getCurrent().getModule();
+			return new SessionContext(module, SessionCloner.getSessionCloner(), module.getDatabasePath());
+		}
+
+		void release() {
+			if(references.decrementAndGet() == 0) {
+				cloner.recycle();
+			}
+		}
+	}
+}